@@ -13,6 +13,8 @@ import org.rocksdb.RocksIterator;
 
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
@@ -29,14 +31,25 @@ import static outbackcdx.Json.JSON_MAPPER;
  * Manages a set of access control rules and policies. Rules are persisted
  * in RocksDB but are also kept in-memory in a radix tree for fast filtering
  * of results.
+ *
+ * Lookups are cached at two levels: the rules that may apply to a SSURT are
+ * compiled into a {@link RuleSet} and kept in an LRU cache, and decisions
+ * that can't depend on the access time are cached by SSURT, access point and
+ * capture day. Both caches are replaced together whenever a rule or policy
+ * changes.
  */
 class AccessControl {
+    static final int RULE_SET_CACHE_SIZE = 100_000;
+    static final int DECISION_CACHE_SIZE = 100_000;
+    private static final AccessDecision ALLOWED = new AccessDecision(true, null, null);
+
     private final Map<Long,AccessPolicy> policies;
     private final Map<Long,AccessRule> rules;
     private final RulesBySsurt rulesBySurt;
     private final RocksDB db;
     private final ColumnFamilyHandle ruleCf, policyCf;
     private final AtomicLong nextRuleId, nextPolicyId;
+    private volatile CacheGeneration caches = new CacheGeneration();
 
     public AccessControl(RocksDB db, ColumnFamilyHandle ruleCf, ColumnFamilyHandle policyCf) throws RocksDBException {
         this.db = db;
@@ -150,6 +163,7 @@ class AccessControl {
 
             rules.put(rule.id, rule);
             rulesBySurt.put(rule);
+            invalidateCaches();
         }
 
         return generatedId;
@@ -170,6 +184,7 @@ class AccessControl {
             throw new UncheckedIOException("Exception serializing access policy " + policy.id, e);
         }
         policies.put(policy.id, policy);
+        invalidateCaches();
         return generatedId;
     }
 
@@ -177,14 +192,45 @@ class AccessControl {
      * Find all rules that may apply to the given SSURT.
      */
     List<AccessRule> rulesForSsurt(String ssurt) {
-        return rulesBySurt.prefixing(ssurt);
+        return Arrays.asList(ruleSet(ssurt).rules);
     }
 
     /**
      * Find all rules that may apply to the given URL.
      */
     List<AccessRule> rulesForUrl(String url) {
-        return rulesBySurt.prefixing(canonSsurt(url));
+        return rulesForSsurt(canonSsurt(url));
+    }
+
+    RuleSet ruleSet(String ssurt) {
+        return ruleSet(caches, ssurt);
+    }
+
+    private RuleSet ruleSet(CacheGeneration caches, String ssurt) {
+        RuleSet ruleSet = caches.ruleSets.get(ssurt);
+        if (ruleSet == null) {
+            ruleSet = rulesBySurt.compile(ssurt);
+            caches.ruleSets.put(ssurt, ruleSet);
+        }
+        return ruleSet;
+    }
+
+    /**
+     * Starts a new cache generation. Called after the rules or policies have changed. A lookup that read the
+     * previous generation may still compile a rule set or decision from the old rules, but it only stores it
+     * into the generation it read, which no new lookup will see.
+     */
+    void invalidateCaches() {
+        caches = new CacheGeneration();
+    }
+
+    /**
+     * The rule sets and decisions cached for one version of the rules and policies. Each lookup or run of
+     * captures reads the current generation once and uses it for both caches.
+     */
+    private static class CacheGeneration {
+        final LruCache<String, RuleSet> ruleSets = new LruCache<>(RULE_SET_CACHE_SIZE);
+        final LruCache<DecisionKey, AccessDecision> decisions = new LruCache<>(DECISION_CACHE_SIZE);
     }
 
     private static final Pattern PANDORA_REGEX = Pattern.compile("(?i)http://pandora.nla.gov.au/pan/[0-9]+/[0-9-]+/([^/.]+\\.[^/]+/.*)");
@@ -224,6 +270,123 @@ class AccessControl {
         return parsed.ssurt().toString();
     }
 
+    /**
+     * Returns the SSURT of a capture, deriving it from the stored urlkey when possible and otherwise canonicalizing
+     * the original URL.
+     */
+    static String ssurtOf(Capture capture) {
+        String ssurt = ssurtFromUrlkey(capture.urlkey, capture.original);
+        return ssurt != null ? ssurt : canonSsurt(capture.original);
+    }
+
+    /**
+     * Rewrites a urlkey like "com,example):8080/path?a=1" into the SSURT "com,example,//8080:http:/path?a=1" that
+     * {@link #canonSsurt(String)} would produce for its original URL, without reparsing the URL.
+     *
+     * UrlCanonicalizer and urlcanon agree on plain http and https URLs but not on everything: session ids, POST
+     * request keys, fuzzy rules, IP addresses, percent-encoding and the PANDORA prefix are all handled differently.
+     * Returns null whenever the urlkey or original URL shows any sign of one of those so the caller can fall back to
+     * full canonicalization.
+     */
+    static String ssurtFromUrlkey(String urlkey, String original) {
+        if (urlkey == null || original == null || !isPlainHttpUrl(original) || urlkey.contains("__wb_method=")) {
+            return null;
+        }
+        int paren = urlkey.indexOf(')');
+        if (paren <= 0 || paren + 1 >= urlkey.length()) {
+            return null;
+        }
+        for (int i = 0; i < paren; i++) {
+            char c = urlkey.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == ',')) {
+                return null;
+            }
+        }
+        if (FeatureFlags.pandoraHacks() && urlkey.startsWith("au,gov,nla,pandora)")) {
+            return null;
+        }
+
+        StringBuilder out = new StringBuilder(urlkey.length() + 8);
+        out.append(urlkey, 0, paren).append(",//");
+        int i = paren + 1;
+        if (urlkey.charAt(i) == ':') {
+            int j = i + 1;
+            while (j < urlkey.length() && urlkey.charAt(j) >= '0' && urlkey.charAt(j) <= '9') {
+                j++;
+            }
+            if (j == i + 1) {
+                return null;
+            }
+            out.append(urlkey, i + 1, j).append(':');
+            i = j;
+        }
+        if (i >= urlkey.length() || urlkey.charAt(i) != '/') {
+            return null;
+        }
+        out.append("http:").append(urlkey, i, urlkey.length());
+        return out.toString();
+    }
+
+    /**
+     * True if the URL is http or https and made up only of characters both canonicalizers leave alone.
+     */
+    private static boolean isPlainHttpUrl(String url) {
+        int start;
+        if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            start = 7;
+        } else if (url.regionMatches(true, 0, "https://", 0, 8)) {
+            start = 8;
+        } else {
+            return false;
+        }
+        int colon = -1;
+        boolean inAuthority = true, inQuery = false, seenEquals = false;
+        for (int i = start; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || "-._~:/?#@!$&'*+,;=".indexOf(c) >= 0)) {
+                return false;
+            }
+            if (inAuthority) {
+                if (c == '/' || c == '?' || c == '#') {
+                    inAuthority = false;
+                    // empty ports and ports with leading zeros are written differently
+                    if (colon != -1 && (colon == i - 1 || url.charAt(colon + 1) == '0')) {
+                        return false;
+                    }
+                } else if (c == ':') {
+                    colon = i;
+                } else if (c == '@') {
+                    colon = -1;
+                }
+            }
+            if ((c == 's' || c == 'S') && (url.regionMatches(true, i, "sid=", 0, 4)
+                    || url.regionMatches(true, i, "sess", 0, 4))) {
+                // possibly a session id UrlCanonicalizer would strip
+                return false;
+            } else if ((c == 'c' || c == 'C') && url.regionMatches(true, i, "cfid=", 0, 5)) {
+                return false;
+            }
+            if (c == '#') {
+                break;
+            } else if (!inQuery && c == '/' && i > start && url.charAt(i - 1) == '/') {
+                // empty path segments interact with dot segments differently
+                return false;
+            } else if (c == '?') {
+                inQuery = true;
+            } else if (inQuery && c == '&') {
+                seenEquals = false;
+            } else if (inQuery && c == '=') {
+                // urlcanon escapes any '=' after the first in a query parameter
+                if (seenEquals) {
+                    return false;
+                }
+                seenEquals = true;
+            }
+        }
+        return !inAuthority || colon == -1 || (colon != url.length() - 1 && url.charAt(colon + 1) != '0');
+    }
+
     private static void reverseDomain(String host, StringBuilder out) {
         int i = host.lastIndexOf('.');
         int j = host.length();
@@ -259,51 +422,91 @@ class AccessControl {
     }
 
     /**
-     * Returns a predicate which can be used to filter a list of captures.
+     * Returns a predicate which can be used to filter a list of captures. The access time conditions of each rule set
+     * are worked out once for the whole scan.
      */
     public Predicate<Capture> filter(String accessPoint, Date accessTime) {
         return new Predicate<Capture>() {
             String previousUrl = null;
-            List<AccessRule> previousRules = null;
+            String previousSsurt = null;
+            CacheGeneration previousCaches = null;
+            RuleSet previousRules = null;
+            RuleSet.Evaluator previousEvaluator = null;
 
             @Override
             public boolean test(Capture capture) {
-                AccessRule matching = null;
-                List<AccessRule> rules;
-
                 // we often process runs of identical urls so cache the last SSURT
-                if (Objects.equals(previousUrl, capture.original)) {
-                    rules = previousRules;
-                } else {
+                if (!Objects.equals(previousUrl, capture.original)) {
                     previousUrl = capture.original;
-                    previousRules = rules = rulesForUrl(capture.original);
+                    previousSsurt = ssurtOf(capture);
+                    previousCaches = caches;
+                    RuleSet rules = ruleSet(previousCaches, previousSsurt);
+                    if (rules != previousRules) {
+                        previousRules = rules;
+                        previousEvaluator = rules.at(accessTime);
+                    }
                 }
 
-                return checkAccess(accessPoint, capture.date(), accessTime, rules).isAllowed();
+                return decide(previousCaches, accessPoint, previousSsurt, previousEvaluator, capture.timestamp).isAllowed();
             }
         };
     }
 
+    /**
+     * Checks access for a capture. The capture time is truncated to whole seconds, the resolution of CDX timestamps.
+     */
     public AccessDecision checkAccess(String accessPoint, String url, Date captureTime, Date accessTime) {
-        List<AccessRule> rules = rulesForUrl(url);
-        return checkAccess(accessPoint, captureTime, accessTime, rules);
+        return checkAccess(accessPoint, url, RuleSet.timestamp(Math.floorDiv(captureTime.getTime(), 1000)), accessTime);
     }
 
-    private AccessDecision checkAccess(String accessPoint, Date captureTime, Date accessTime, List<AccessRule> rules) {
-        AccessRule matching = null;
+    /**
+     * Checks access for a 14-digit capture timestamp.
+     */
+    public AccessDecision checkAccess(String accessPoint, String url, long captureTimestamp, Date accessTime) {
+        String ssurt = canonSsurt(url);
+        CacheGeneration caches = this.caches;
+        return decide(caches, accessPoint, ssurt, ruleSet(caches, ssurt).at(accessTime), captureTimestamp);
+    }
 
-        for (AccessRule rule : rules) {
-            if (rule.matchesDates(captureTime, accessTime)) {
-                matching = rule;
-            }
+    /**
+     * Decides access using an evaluator whose rule set came from the given cache generation, caching the decision
+     * in that same generation.
+     */
+    private AccessDecision decide(CacheGeneration caches, String accessPoint, String ssurt, RuleSet.Evaluator evaluator,
+                                  long captureTimestamp) {
+        RuleSet ruleSet = evaluator.ruleSet();
+        if (ruleSet.rules.length == 0) {
+            return ALLOWED;
         }
+        long captureDay = captureTimestamp / 1_000_000L;
+        if (!ruleSet.timeInvariant || !ruleSet.isStableOn(captureDay)) {
+            return evaluate(accessPoint, evaluator, captureTimestamp);
+        }
+        DecisionKey key = new DecisionKey(ssurt, accessPoint, captureDay);
+        AccessDecision decision = caches.decisions.get(key);
+        if (decision == null) {
+            decision = evaluate(accessPoint, evaluator, captureTimestamp);
+            caches.decisions.put(key, decision);
+        }
+        return decision;
+    }
 
+    private AccessDecision evaluate(String accessPoint, RuleSet.Evaluator evaluator, long captureTimestamp) {
+        AccessRule matching = evaluator.match(captureTimestamp);
         if (matching != null) {
             AccessPolicy policy = policies.get(matching.policyId);
             boolean allowed = policy == null || policy.accessPoints.contains(accessPoint);
             return new AccessDecision(allowed, matching, policy);
         }
-        return new AccessDecision(true, null, null);
+        return ALLOWED;
+    }
+
+    /**
+     * The UTC day of the given date as a number like 20190128, to compare against the first 8 digits of a timestamp.
+     */
+    static long utcDay(Date date) {
+        LocalDate day = date.toInstant().atOffset(ZoneOffset.UTC).toLocalDate();
+        return day.getYear() * 10000L + day.getMonthValue() * 100 + day.getDayOfMonth();
     }
 
     /**
@@ -325,31 +528,152 @@ class AccessControl {
         return policies.get(policyId);
     }
 
-    public boolean deleteRule(long ruleId) throws RocksDBException {
-        // XXX: sync?
+    public synchronized boolean deleteRule(long ruleId) throws RocksDBException {
         AccessRule rule = rules.remove(ruleId);
         if (rule == null) {
             return false;
         }
         rulesBySurt.remove(rule);
+        invalidateCaches();
         db.delete(ruleCf, encodeKey(ruleId));
         return true;
     }
 
+    /**
+     * Brings the in-memory rules and policies up to date after a replicated write batch has been committed, reloading
+     * from the database just the ones the batch touched. Returns the number reloaded.
+     */
+    int applyReplicated(byte[] writeBatch) throws RocksDBException {
+        int ruleCfId = ruleCf.getID();
+        int policyCfId = policyCf.getID();
+        Set<Long> ruleIds = new TreeSet<>();
+        Set<Long> policyIds = new TreeSet<>();
+        boolean[] rangeDeleted = new boolean[2];
+        WriteBatchKeys.forEach(writeBatch, (cf, key) -> {
+            if (cf != ruleCfId && cf != policyCfId) return;
+            int i = cf == ruleCfId ? 0 : 1;
+            if (key == null) {
+                rangeDeleted[i] = true;
+            } else if (key.length == 8) {
+                (i == 0 ? ruleIds : policyIds).add(decodeKey(key));
+            }
+        });
+        if (ruleIds.isEmpty() && policyIds.isEmpty() && !rangeDeleted[0] && !rangeDeleted[1]) {
+            return 0;
+        }
+
+        synchronized (this) {
+            if (rangeDeleted[0]) {
+                ruleIds.addAll(rules.keySet());
+                ruleIds.addAll(loadRules(db, ruleCf).keySet());
+            }
+            if (rangeDeleted[1]) {
+                policyIds.addAll(policies.keySet());
+                policyIds.addAll(loadPolicies(db, policyCf).keySet());
+            }
+            for (long id : ruleIds) {
+                reloadRule(id);
+            }
+            for (long id : policyIds) {
+                reloadPolicy(id);
+            }
+            invalidateCaches();
+        }
+        return ruleIds.size() + policyIds.size();
+    }
+
+    /**
+     * Reloads every rule and policy from the database, for when we can't tell which of them changed.
+     */
+    synchronized void reloadAll() throws RocksDBException {
+        Set<Long> ruleIds = new TreeSet<>(rules.keySet());
+        ruleIds.addAll(loadRules(db, ruleCf).keySet());
+        Set<Long> policyIds = new TreeSet<>(policies.keySet());
+        policyIds.addAll(loadPolicies(db, policyCf).keySet());
+        for (long id : ruleIds) {
+            reloadRule(id);
+        }
+        for (long id : policyIds) {
+            reloadPolicy(id);
+        }
+        invalidateCaches();
+    }
+
+    private void reloadRule(long id) throws RocksDBException {
+        AccessRule previous = rules.remove(id);
+        if (previous != null) {
+            rulesBySurt.remove(previous);
+        }
+        byte[] value = db.get(ruleCf, encodeKey(id));
+        if (value == null) {
+            return;
+        }
+        try {
+            AccessRule rule = JSON_MAPPER.readValue(new String(value, UTF_8), AccessRule.class);
+            rules.put(id, rule);
+            rulesBySurt.put(rule);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            System.err.println("WARNING: Exception loading replicated access rule " + id);
+            e.printStackTrace();
+        }
+        nextRuleId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    private void reloadPolicy(long id) throws RocksDBException {
+        byte[] value = db.get(policyCf, encodeKey(id));
+        if (value == null) {
+            policies.remove(id);
+            return;
+        }
+        try {
+            policies.put(id, JSON_MAPPER.readValue(new String(value, UTF_8), AccessPolicy.class));
+        } catch (JsonProcessingException e) {
+            System.err.println("WARNING: Exception loading replicated access policy " + id);
+            e.printStackTrace();
+        }
+        nextPolicyId.accumulateAndGet(id + 1, Math::max);
+    }
+
     public Collection<AccessPolicy> listPolicies() {
         return policies.values();
     }
 
+    private static class DecisionKey {
+        private final String ssurt;
+        private final String accessPoint;
+        private final long captureDay;
+
+        DecisionKey(String ssurt, String accessPoint, long captureDay) {
+            this.ssurt = ssurt;
+            this.accessPoint = accessPoint;
+            this.captureDay = captureDay;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DecisionKey)) return false;
+            DecisionKey that = (DecisionKey) o;
+            return captureDay == that.captureDay && ssurt.equals(that.ssurt) && Objects.equals(accessPoint, that.accessPoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * ssurt.hashCode() + Objects.hashCode(accessPoint)) + Long.hashCode(captureDay);
+        }
+    }
+
     /**
      * A secondary index for looking up access control URLs which prefix a
      * given SURT.
      *
      * As the radix tree library can't handle an empty keys we prefix every key
-     * by " " to allow for a default rule.
+     * by " " to allow for a default rule. Each key maps to an immutable array
+     * which is replaced whenever a rule is added or removed.
      */
     static class RulesBySsurt {
         private static final Logger log = Logger.getLogger(RulesBySsurt.class.getName());
-        private final InvertedRadixTree<List<AccessRule>> tree;
+        private final InvertedRadixTree<AccessRule[]> tree;
 
         RulesBySsurt(Collection<AccessRule> rules) {
             tree = new ConcurrentInvertedRadixTree<>(new DefaultCharArrayNodeFactory());
@@ -366,34 +690,54 @@ class AccessControl {
          * Add an AccessRule to the radix tree. The rule will be added multiple times,
          * once for each SURT prefix.
          */
-        void put(AccessRule rule) {
+        synchronized void put(AccessRule rule) {
             rule.ssurtPrefixes().forEach(ssurtPrefix -> {
                 String key = " " + ssurtPrefix;
-                List<AccessRule> list = tree.getValueForExactKey(key);
-                if (list == null) {
-                    list = Collections.synchronizedList(new ArrayList<>());
-                    tree.put(key, list);
+                AccessRule[] array = tree.getValueForExactKey(key);
+                if (array == null) {
+                    tree.put(key, new AccessRule[]{rule});
+                } else {
+                    AccessRule[] copy = Arrays.copyOf(array, array.length + 1);
+                    copy[array.length] = rule;
+                    tree.put(key, copy);
                 }
-                list.add(rule);
             });
         }
 
-        void remove(AccessRule rule) {
+        synchronized void remove(AccessRule rule) {
             rule.ssurtPrefixes().forEach(ssurtPrefix -> {
-                List<AccessRule> list = tree.getValueForExactKey(" " + ssurtPrefix);
+                String key = " " + ssurtPrefix;
+                AccessRule[] array = tree.getValueForExactKey(key);
+                if (array == null) return;
+                List<AccessRule> list = new ArrayList<>(Arrays.asList(array));
                 list.remove(rule);
+                if (list.isEmpty()) {
+                    tree.remove(key);
+                } else {
+                    tree.put(key, list.toArray(new AccessRule[0]));
+                }
             });
         }
 
         List<AccessRule> prefixing(String ssurt) {
-            return flatten(tree.getValuesForKeysPrefixing(" " + ssurt + " "));
+            return Arrays.asList(compile(ssurt).rules);
         }
 
-        static List<AccessRule> flatten(Iterable<List<AccessRule>> listsOfRules) {
-            // XXX make lazy?
-            ArrayList<AccessRule> result = new ArrayList<>();
-            listsOfRules.forEach(result::addAll);
-            return result;
+        /**
+         * Collects the rules whose prefixes match the given SSURT, shortest prefix first.
+         */
+        RuleSet compile(String ssurt) {
+            AccessRule[] result = null;
+            for (AccessRule[] array : tree.getValuesForKeysPrefixing(" " + ssurt + " ")) {
+                if (result == null) {
+                    result = array;
+                } else {
+                    AccessRule[] combined = Arrays.copyOf(result, result.length + array.length);
+                    System.arraycopy(array, 0, combined, result.length, array.length);
+                    result = combined;
+                }
+            }
+            return result == null ? RuleSet.EMPTY : new RuleSet(result);
         }
     }
 }
@@ -47,7 +47,7 @@ public class AccessRule {
                 (period == null || period.equals(Period.ZERO) || isWithinPeriod(captureTime, accessTime));
     }
 
-    private boolean isWithinPeriod(Date captureTime, Date accessTime) {
+    boolean isWithinPeriod(Date captureTime, Date accessTime) {
         // do the period calculation in the local timezone so that 'years' periods work
         LocalDateTime localCaptureTime = LocalDateTime.ofInstant(captureTime.toInstant(), ZoneId.systemDefault());
         LocalDateTime localAccessTime = LocalDateTime.ofInstant(accessTime.toInstant(), ZoneId.systemDefault());
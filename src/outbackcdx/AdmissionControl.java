@@ -0,0 +1,281 @@
+package outbackcdx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sorts requests into lanes (interactive lookups, bulk scans, ingest, admin and followed change feeds) each with its
+ * own concurrency limit and queue timeout, so that a domain dump can't crowd out replay lookups. A request that can't
+ * get into its lane within the timeout is turned away with 503 and Retry-After. Requests that don't touch the index
+ * (static files, stats, the dashboard) bypass admission control.
+ */
+class AdmissionControl {
+    enum Lane {
+        LOOKUP, SCAN, INGEST, ADMIN, FOLLOW;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static class LaneConfig {
+        /**
+         * Maximum requests in the lane at once, or 0 for unlimited.
+         */
+        public final int concurrency;
+        public final long queueTimeoutMillis;
+
+        LaneConfig(int concurrency, long queueTimeoutMillis) {
+            this.concurrency = concurrency;
+            this.queueTimeoutMillis = queueTimeoutMillis;
+        }
+    }
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+
+    AdmissionControl() {
+        this(defaults());
+    }
+
+    AdmissionControl(Map<Lane, LaneConfig> config) {
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneState(lane, config.getOrDefault(lane, defaults().get(lane))));
+        }
+    }
+
+    static Map<Lane, LaneConfig> defaults() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Map<Lane, LaneConfig> map = new EnumMap<>(Lane.class);
+        map.put(Lane.LOOKUP, new LaneConfig(0, 1000));
+        map.put(Lane.SCAN, new LaneConfig(Math.max(2, cpus / 2), 30_000));
+        map.put(Lane.INGEST, new LaneConfig(Math.max(2, cpus), 60_000));
+        map.put(Lane.ADMIN, new LaneConfig(2, 5_000));
+        map.put(Lane.FOLLOW, followLane(cpus));
+        return map;
+    }
+
+    /**
+     * A followed change feed holds a worker thread for as long as it stays open, so only let a quarter of the
+     * workers follow at once. Feeds beyond that are refused straight away rather than queued, and the secondary
+     * polls instead.
+     */
+    static LaneConfig followLane(int workers) {
+        return new LaneConfig(Math.max(1, workers / 4), 0);
+    }
+
+    /**
+     * Decides which lane a request belongs in, or null if it isn't subject to admission control.
+     */
+    static Lane classify(Web.Request request) {
+        String[] segments = request.relativePath().substring(1).split("/", 4);
+        String collection = segments[0];
+        if (!collection.matches(DataStore.COLLECTION_PATTERN) || collection.equals("api") || collection.equals("lib")
+                || collection.equals("metrics")) {
+            return null; // dashboard, static resources and metrics
+        }
+        boolean get = request.method().equalsIgnoreCase("GET");
+        if (segments.length == 1) {
+            if (!get) return Lane.INGEST;
+            return isScanQuery(request) ? Lane.SCAN : Lane.LOOKUP;
+        }
+        switch (segments[1]) {
+            case "delete":
+                return Lane.INGEST;
+            case "compact":
+            case "upgrade":
+            case "checkpoint":
+            case "truncate_replication":
+                return Lane.ADMIN;
+            case "changes":
+                // a followed feed stays open indefinitely, it mustn't hold a scan slot
+                return "true".equals(request.param("follow")) ? Lane.FOLLOW : Lane.SCAN;
+            case "cube":
+            case "captures":
+            case "aliases":
+                return Lane.SCAN;
+            case "stats":
+            case "sequence":
+                return null;
+            case "access":
+                return get ? null : Lane.ADMIN;
+            case "bootstrap":
+                // file downloads are long and few, creating or dropping a checkpoint is admin work
+                return get ? null : Lane.ADMIN;
+            case "ap":
+                if (segments.length == 3) {
+                    return isScanQuery(request) ? Lane.SCAN : Lane.LOOKUP;
+                }
+                return get ? Lane.LOOKUP : Lane.SCAN;
+            default:
+                // replay: /<collection>/<timestamp>/<url>
+                return Lane.LOOKUP;
+        }
+    }
+
+    /**
+     * True if a query will scan a range of URLs rather than look up a single one.
+     */
+    private static boolean isScanQuery(Web.Request request) {
+        String matchType = request.param("matchType");
+        if (matchType != null) {
+            return !matchType.equalsIgnoreCase("exact") && !matchType.equalsIgnoreCase("default");
+        }
+        String url = request.param("url");
+        if (url != null && (url.endsWith("*") || url.startsWith("*."))) {
+            return true;
+        }
+        String q = request.param("q");
+        return q != null && q.toLowerCase(Locale.ROOT).contains("type:prefixquery");
+    }
+
+    /**
+     * Waits for room in the request's lane. Returns a ticket that must be released when the request completes, or
+     * null if the request isn't subject to admission control.
+     *
+     * @throws Web.ResponseException with a 503 response if the lane stayed full for its whole queue timeout
+     */
+    Ticket admit(Web.Request request) throws Web.ResponseException, InterruptedException {
+        Lane lane = classify(request);
+        if (lane == null) {
+            return null;
+        }
+        return lanes.get(lane).admit();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (LaneState state : lanes.values()) {
+            map.put(state.lane.toString(), state.stats());
+        }
+        return map;
+    }
+
+    private static class LaneState {
+        final Lane lane;
+        final LaneConfig config;
+        final Semaphore permits;
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final LongAdder admitted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+        LaneState(Lane lane, LaneConfig config) {
+            this.lane = lane;
+            this.config = config;
+            this.permits = config.concurrency > 0 ? new Semaphore(config.concurrency, true) : null;
+        }
+
+        Ticket admit() throws Web.ResponseException, InterruptedException {
+            if (permits != null && !permits.tryAcquire()) {
+                long start = System.nanoTime();
+                queued.incrementAndGet();
+                boolean acquired;
+                try {
+                    acquired = permits.tryAcquire(config.queueTimeoutMillis, TimeUnit.MILLISECONDS);
+                } finally {
+                    queued.decrementAndGet();
+                }
+                long waited = System.nanoTime() - start;
+                waitNanos.add(waited);
+                maxWaitNanos.accumulate(waited);
+                if (!acquired) {
+                    rejected.increment();
+                    long retryAfter = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(config.queueTimeoutMillis));
+                    Web.Response response = new Web.Response(Web.Status.SERVICE_UNAVAILABLE, "text/plain",
+                            "Too many " + lane + " requests in progress, try again later\n");
+                    response.addHeader("Retry-After", String.valueOf(retryAfter));
+                    throw new Web.ResponseException(response);
+                }
+            }
+            admitted.increment();
+            active.incrementAndGet();
+            return new Ticket(this);
+        }
+
+        void release() {
+            active.decrementAndGet();
+            if (permits != null) {
+                permits.release();
+            }
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("concurrency", config.concurrency);
+            map.put("queueTimeoutMillis", config.queueTimeoutMillis);
+            map.put("active", active.get());
+            map.put("queued", queued.get());
+            map.put("admitted", admitted.sum());
+            map.put("rejected", rejected.sum());
+            map.put("totalWaitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+            map.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+            return map;
+        }
+    }
+
+    /**
+     * A request's place in its lane. Released once, either when the handler returns or, for a response that
+     * streams its body later, when the server closes the body writer.
+     */
+    static class Ticket {
+        private final LaneState lane;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Ticket(LaneState lane) {
+            this.lane = lane;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                lane.release();
+            }
+        }
+
+        /**
+         * Wraps a response body so the ticket is held until the server has finished streaming it.
+         */
+        Web.IStreamer holdUntilClosed(Web.IStreamer body) {
+            return new HeldStreamer(body, this);
+        }
+    }
+
+    private static class HeldStreamer implements Web.IStreamer, Closeable {
+        private final Web.IStreamer body;
+        private final Ticket ticket;
+
+        HeldStreamer(Web.IStreamer body, Ticket ticket) {
+            this.body = body;
+            this.ticket = ticket;
+        }
+
+        @Override
+        public void stream(OutputStream out) throws IOException {
+            body.stream(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (body instanceof Closeable) {
+                    ((Closeable) body).close();
+                }
+            } finally {
+                ticket.release();
+            }
+        }
+    }
+}
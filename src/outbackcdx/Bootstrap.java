@@ -0,0 +1,280 @@
+package outbackcdx;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static outbackcdx.Json.JSON_MAPPER;
+
+/**
+ * Seeds a new secondary from a checkpoint of the primary, rather than replaying its whole history through the change
+ * feed (which may no longer be possible once the primary's WAL has been truncated).
+ *
+ * The primary creates a checkpoint and describes it with a {@link Manifest}: the sequence number it was taken at and
+ * the size and CRC32C of every file. The secondary downloads the files in parallel, resuming partial files with Range
+ * requests and verifying each against the manifest, then opens the result and follows the change feed from the
+ * manifest's sequence number.
+ */
+class Bootstrap {
+    static final int DEFAULT_THREADS = 4;
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final int MAX_ATTEMPTS = 5;
+
+    public static class Manifest {
+        public String id;
+        /**
+         * The primary's latest sequence number just before the checkpoint, so replicating from here replays nothing
+         * the checkpoint lacks.
+         */
+        public long sequenceNumber;
+        public List<FileEntry> files = new ArrayList<>();
+    }
+
+    public static class FileEntry {
+        public String name;
+        public long size;
+        public long crc32c;
+    }
+
+    private Bootstrap() {}
+
+    /**
+     * Checkpoints the index into dir/db and writes the manifest alongside it.
+     */
+    static Manifest create(Index index, String id, Path dir) throws IOException, RocksDBException {
+        Manifest manifest = new Manifest();
+        manifest.id = id;
+        manifest.sequenceNumber = index.getLatestSequenceNumber();
+        Path db = dir.resolve("db");
+        index.checkpoint(db);
+        try (Stream<Path> files = Files.list(db)) {
+            for (Path path : files.sorted().collect(Collectors.toList())) {
+                FileEntry file = new FileEntry();
+                file.name = path.getFileName().toString();
+                file.size = Files.size(path);
+                file.crc32c = crc32c(path);
+                manifest.files.add(file);
+            }
+        }
+        JSON_MAPPER.writeValue(dir.resolve(MANIFEST_FILE).toFile(), manifest);
+        return manifest;
+    }
+
+    /**
+     * Reads the manifest of a checkpoint made by {@link #create}, or returns null if there isn't one.
+     */
+    static Manifest read(Path dir) throws IOException {
+        Path path = dir.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        return JSON_MAPPER.readValue(path.toFile(), Manifest.class);
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    static long crc32c(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        update(crc, path);
+        return crc.getValue();
+    }
+
+    private static void update(CRC32C crc, Path path) throws IOException {
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                crc.update(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Downloads a checkpoint of the collection at collectionUrl into staging/db. A download interrupted earlier is
+     * resumed if the primary still has its checkpoint, otherwise a new checkpoint is requested.
+     *
+     * @return the manifest, or null if the primary doesn't support bootstrapping or won't checkpoint for us
+     */
+    static Manifest download(CloseableHttpClient client, String collectionUrl, Path staging, int threads, String name)
+            throws IOException, InterruptedException {
+        Manifest manifest = read(staging);
+        if (manifest != null && !checkpointExists(client, collectionUrl, manifest.id)) {
+            System.out.println(new Date() + " " + name + ": checkpoint " + manifest.id + " has gone from the primary, starting again");
+            manifest = null;
+        }
+        if (manifest == null) {
+            delete(staging);
+            manifest = requestCheckpoint(client, collectionUrl);
+            if (manifest == null) {
+                return null;
+            }
+            Files.createDirectories(staging.resolve("db"));
+            JSON_MAPPER.writeValue(staging.resolve(MANIFEST_FILE).toFile(), manifest);
+        }
+
+        long total = manifest.files.stream().mapToLong(f -> f.size).sum();
+        System.out.println(new Date() + " " + name + ": downloading checkpoint " + manifest.id + " (" + manifest.files.size()
+                + " files, " + total + " bytes) at sequence number " + manifest.sequenceNumber);
+        long start = System.currentTimeMillis();
+        String baseUrl = collectionUrl + "/bootstrap/" + manifest.id + "/";
+        List<FileEntry> files = new ArrayList<>(manifest.files);
+        files.sort(Comparator.comparingLong((FileEntry f) -> f.size).reversed()); // biggest first
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, name + " bootstrap");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (FileEntry file : files) {
+                futures.add(executor.submit(() -> {
+                    downloadFile(client, baseUrl + file.name, staging.resolve("db").resolve(file.name), file);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(new Date() + " " + name + ": downloaded checkpoint " + manifest.id + " in "
+                + (System.currentTimeMillis() - start) / 1000 + "s");
+
+        // the primary can drop its copy now, failure just leaves it for the next one to clean up
+        try {
+            execute(client, new HttpDelete(collectionUrl + "/bootstrap/" + manifest.id));
+        } catch (IOException e) {
+            System.err.println(new Date() + " " + name + ": unable to release checkpoint " + manifest.id + ": " + e);
+        }
+        return manifest;
+    }
+
+    private static Manifest requestCheckpoint(CloseableHttpClient client, String collectionUrl) throws IOException {
+        HttpPost request = new HttpPost(collectionUrl + "/bootstrap");
+        // checkpointing a large collection means checksumming every file
+        request.setConfig(RequestConfig.custom().setSocketTimeout(3600 * 1000).build());
+        try (CloseableHttpResponse response = client.execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 404 || status == 405 || status == 401 || status == 403) {
+                // an older primary, or one that only lets INDEX_EDIT users checkpoint
+                return null;
+            } else if (status != 200) {
+                throw new IOException("Received '" + response.getStatusLine() + "' response from " + request.getURI()
+                        + ": " + EntityUtils.toString(response.getEntity()));
+            }
+            return JSON_MAPPER.readValue(response.getEntity().getContent(), Manifest.class);
+        }
+    }
+
+    private static boolean checkpointExists(CloseableHttpClient client, String collectionUrl, String id) throws IOException {
+        HttpGet request = new HttpGet(collectionUrl + "/bootstrap/" + id);
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode() == 200;
+        }
+    }
+
+    private static void execute(CloseableHttpClient client, HttpRequestBase request) throws IOException {
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Fetches whatever part of a file we don't have yet and checks it against the manifest, retrying from what was
+     * written if the transfer fails and from scratch if the checksum doesn't match.
+     */
+    private static void downloadFile(CloseableHttpClient client, String url, Path path, FileEntry file) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long have = Files.exists(path) ? Files.size(path) : 0;
+                CRC32C crc = new CRC32C();
+                if (have > file.size) {
+                    Files.delete(path);
+                    have = 0;
+                } else if (have > 0) {
+                    update(crc, path);
+                }
+                if (have < file.size || !Files.exists(path)) {
+                    fetch(client, url, path, have, crc);
+                }
+                if (Files.size(path) == file.size && crc.getValue() == file.crc32c) {
+                    return;
+                }
+                Files.delete(path);
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IOException("checksum mismatch downloading " + url);
+                }
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                System.err.println(new Date() + " retrying " + url + " after " + e);
+            }
+        }
+    }
+
+    private static void fetch(CloseableHttpClient client, String url, Path path, long offset, CRC32C crc) throws IOException {
+        HttpGet request = new HttpGet(url);
+        // SST files are already compressed
+        request.setHeader("Accept-Encoding", "identity");
+        if (offset > 0) {
+            request.setHeader("Range", "bytes=" + offset + "-");
+        }
+        try (CloseableHttpResponse response = client.execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            StandardOpenOption mode;
+            if (status == 206 && offset > 0) {
+                mode = StandardOpenOption.APPEND;
+            } else if (status == 200) {
+                mode = StandardOpenOption.TRUNCATE_EXISTING;
+                crc.reset();
+            } else {
+                throw new IOException("Received '" + response.getStatusLine() + "' response from " + url);
+            }
+            byte[] buffer = new byte[256 * 1024];
+            try (InputStream in = response.getEntity().getContent();
+                 OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    out.write(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package outbackcdx;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.YearMonth;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static outbackcdx.Json.JSON_MAPPER;
+
+/**
+ * Streams the response to a bulk access check. Queries are parsed incrementally from the request body, either a JSON
+ * array or newline-delimited objects, and gathered into chunks that are evaluated on a shared worker pool. Decisions
+ * are written back in request order as each chunk completes, so only a bounded number of chunks is ever held in
+ * memory regardless of the size of the request.
+ *
+ * Because the response is written while the request is still being read, clients sending very large requests must
+ * read the response concurrently. A malformed query part way through aborts the response.
+ */
+class BulkAccessCheck implements Web.IStreamer, Closeable {
+    static final int CHUNK_SIZE = 1000;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_CHUNKS_IN_FLIGHT = THREADS * 2;
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "Bulk access check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ObjectWriter decisionWriter = JSON_MAPPER.writerFor(AccessDecision.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private final AccessControl accessControl;
+    private final String accessPoint;
+    private final JsonParser parser;
+    private final boolean array;
+    private final boolean ndjson;
+    private final JsonToken first;
+    private final ArrayDeque<Future<AccessDecision[]>> inFlight = new ArrayDeque<>();
+
+    /**
+     * Reads the first token of the request so an empty or non-JSON body can be rejected before the response starts.
+     *
+     * @throws IllegalArgumentException if the body doesn't start with an array or object
+     */
+    BulkAccessCheck(AccessControl accessControl, String accessPoint, InputStream in, boolean ndjson) throws IOException {
+        this.accessControl = accessControl;
+        this.accessPoint = accessPoint;
+        this.ndjson = ndjson;
+        this.parser = JSON_MAPPER.getFactory().createParser(in);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                array = true;
+                first = nextQuery();
+            } else if (token == JsonToken.START_OBJECT) {
+                array = false;
+                first = token;
+            } else {
+                throw new IllegalArgumentException("expected a JSON array or newline-delimited objects");
+            }
+        } catch (IOException | RuntimeException e) {
+            parser.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void stream(OutputStream out) throws IOException {
+        Date accessTime = new Date();
+        try (JsonGenerator generator = JSON_MAPPER.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            generator.setRootValueSeparator(null);
+            if (!ndjson) generator.writeStartArray();
+
+            String[] urls = new String[CHUNK_SIZE];
+            long[] timestamps = new long[CHUNK_SIZE];
+            int n = 0;
+            for (JsonToken token = first; token != null; token = nextQuery()) {
+                readQuery(urls, timestamps, n++);
+                if (n == CHUNK_SIZE) {
+                    submit(urls, timestamps, n, accessTime, generator);
+                    urls = new String[CHUNK_SIZE];
+                    timestamps = new long[CHUNK_SIZE];
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                submit(urls, timestamps, n, accessTime, generator);
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.removeFirst(), generator);
+            }
+
+            if (!ndjson) generator.writeEndArray();
+        }
+    }
+
+    private JsonToken nextQuery() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null || (array && token == JsonToken.END_ARRAY)) {
+            return null;
+        } else if (token != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("expected a query object but got " + token);
+        }
+        return token;
+    }
+
+    private void readQuery(String[] urls, long[] timestamps, int i) throws IOException {
+        String url = null;
+        long timestamp = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("url".equals(field)) {
+                url = parser.getValueAsString();
+            } else if ("timestamp".equals(field)) {
+                timestamp = value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue()
+                        : parseTimestamp(parser.getValueAsString());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (url == null) {
+            throw new IllegalArgumentException("query is missing url");
+        }
+        if (!isValidTimestamp(timestamp)) {
+            throw new IllegalArgumentException("query for " + url + " has an invalid 14-digit timestamp");
+        }
+        urls[i] = url;
+        timestamps[i] = timestamp;
+    }
+
+    private static long parseTimestamp(String s) {
+        if (s == null || s.length() != 14) {
+            return -1;
+        }
+        long timestamp = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            timestamp = timestamp * 10 + (c - '0');
+        }
+        return timestamp;
+    }
+
+    /**
+     * Range checks each field of a yyyyMMddHHmmss timestamp without converting it to a date.
+     */
+    static boolean isValidTimestamp(long timestamp) {
+        if (timestamp < 10000101000000L || timestamp > 99991231235959L) {
+            return false;
+        }
+        int year = (int) (timestamp / 10000000000L);
+        int month = (int) (timestamp / 100000000L % 100);
+        int day = (int) (timestamp / 1000000L % 100);
+        int hour = (int) (timestamp / 10000L % 100);
+        int minute = (int) (timestamp / 100L % 100);
+        int second = (int) (timestamp % 100);
+        return month >= 1 && month <= 12 && day >= 1 && day <= YearMonth.of(year, month).lengthOfMonth()
+                && hour < 24 && minute < 60 && second < 60;
+    }
+
+    private void submit(String[] urls, long[] timestamps, int n, Date accessTime, JsonGenerator generator) throws IOException {
+        if (inFlight.size() >= MAX_CHUNKS_IN_FLIGHT) {
+            write(inFlight.removeFirst(), generator);
+        }
+        inFlight.addLast(pool.submit(() -> {
+            AccessDecision[] decisions = new AccessDecision[n];
+            for (int i = 0; i < n; i++) {
+                decisions[i] = accessControl.checkAccess(accessPoint, urls[i], timestamps[i], accessTime);
+            }
+            return decisions;
+        }));
+    }
+
+    private void write(Future<AccessDecision[]> chunk, JsonGenerator generator) throws IOException {
+        AccessDecision[] decisions;
+        try {
+            decisions = chunk.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("access check failed", e.getCause());
+        }
+        for (AccessDecision decision : decisions) {
+            decisionWriter.writeValue(generator, decision);
+            if (ndjson) generator.writeRaw('\n');
+        }
+    }
+
+    /**
+     * Cancels any chunks still queued if the response was aborted.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Future<AccessDecision[]> chunk : inFlight) {
+            chunk.cancel(false);
+        }
+        inFlight.clear();
+        parser.close();
+    }
+}
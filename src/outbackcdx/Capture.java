@@ -779,6 +779,39 @@ public class Capture {
         return out.toString();
     }
 
+    /**
+     * Decodes a base32 digest. Plain unpadded digests (the usual case) take a fast path; anything else is left to
+     * commons-codec so the result always matches what the index stores.
+     */
+    static byte[] base32Decode(String s) {
+        int len = s.length();
+        if (len % 8 != 0) {
+            return base32.decode(s);
+        }
+        byte[] out = new byte[len / 8 * 5];
+        for (int i = 0, j = 0; i < len; i += 8, j += 5) {
+            long buf = 0;
+            for (int k = 0; k < 8; k++) {
+                char c = s.charAt(i + k);
+                int v;
+                if (c >= 'A' && c <= 'Z') {
+                    v = c - 'A';
+                } else if (c >= '2' && c <= '7') {
+                    v = c - '2' + 26;
+                } else {
+                    return base32.decode(s);
+                }
+                buf = buf << 5 | v;
+            }
+            out[j] = (byte) (buf >>> 32);
+            out[j + 1] = (byte) (buf >>> 24);
+            out[j + 2] = (byte) (buf >>> 16);
+            out[j + 3] = (byte) (buf >>> 8);
+            out[j + 4] = (byte) buf;
+        }
+        return out;
+    }
+
     public boolean isSelfRedirect(UrlCanonicalizer canonicalizer) {
         if (redirecturl == null) return false;
         if (status < 300 || status >= 400) return false;
@@ -0,0 +1,144 @@
+package outbackcdx;
+
+import org.rocksdb.RocksDBException;
+import org.rocksdb.TransactionLogIterator;
+import org.rocksdb.TransactionLogIterator.BatchResult;
+import org.rocksdb.WriteBatch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import static outbackcdx.Webapp.ChangeFeedBinaryStream.END;
+import static outbackcdx.Webapp.ChangeFeedBinaryStream.HEARTBEAT;
+import static outbackcdx.Webapp.ChangeFeedBinaryStream.writeHeader;
+
+/**
+ * A binary change feed that stays open, pushing write batches to the secondary as they're committed instead of
+ * waiting to be polled.
+ *
+ * Whenever it has caught up it sends a heartbeat and waits for {@link Index#awaitCommit(long, long)}, sending another
+ * heartbeat if nothing arrives within the heartbeat interval. Batches are read from the transaction log only as fast
+ * as the socket accepts them, so a slow secondary holds back its own stream without anything piling up in memory.
+ * After {@link #MAX_DURATION_MILLIS} the feed ends normally and the secondary reconnects from its last sequence
+ * number.
+ */
+class ChangeFeedFollower implements Web.IStreamer, Closeable {
+    static final long MAX_DURATION_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_HEARTBEAT_MILLIS = 10 * 1000;
+
+    private final Index index;
+    private final long heartbeatMillis;
+    private final Metrics.ReplicaMetrics replica;
+    private TransactionLogIterator logReader;
+    /**
+     * The latest sequence number just before logReader was opened, so everything up to it is in the log it reads.
+     */
+    private long openedAt;
+    private long next;
+    private boolean closed = false;
+
+    /**
+     * @param logReader the log from since onwards, opened after openedAt was read
+     * @param replica the secondary's entry in the metrics, updated as we send
+     */
+    ChangeFeedFollower(Index index, TransactionLogIterator logReader, long since, long openedAt, long heartbeatMillis,
+                       Metrics.ReplicaMetrics replica) {
+        this.index = index;
+        this.logReader = logReader;
+        this.next = since;
+        this.openedAt = openedAt;
+        this.heartbeatMillis = heartbeatMillis;
+        this.replica = replica;
+    }
+
+    @Override
+    public void stream(OutputStream outputStream) throws IOException {
+        Events.ChangeFeed event = new Events.ChangeFeed();
+        event.begin();
+        long size = 0L;
+        long initialSeqNo = -1;
+        long lastSeqNo = -1;
+        long deadline = System.currentTimeMillis() + MAX_DURATION_MILLIS;
+        try {
+            Compression.unbuffer(outputStream);
+            BufferedOutputStream output = new BufferedOutputStream(outputStream, 64 * 1024);
+            while (true) {
+                for (; logReader.isValid(); logReader.next()) {
+                    BatchResult batch = logReader.getBatch();
+                    long sequenceNumber = batch.sequenceNumber();
+                    // the WriteBatch owns its native handle, see ChangeFeedStream
+                    try (WriteBatch writeBatch = batch.writeBatch()) {
+                        byte[] data = writeBatch.data();
+                        writeHeader(output, sequenceNumber, data.length);
+                        output.write(data);
+                        size += data.length;
+                        next = sequenceNumber + writeBatch.count();
+                    }
+                    if (initialSeqNo < 0) {
+                        initialSeqNo = sequenceNumber;
+                    }
+                    lastSeqNo = sequenceNumber;
+                    event.batches++;
+                }
+
+                writeHeader(output, index.getLatestSequenceNumber(), HEARTBEAT);
+                output.flush();
+                replica.sent(Math.max(next - 1, openedAt));
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                if (index.awaitCommit(Math.max(next - 1, openedAt), Math.min(heartbeatMillis, remaining))) {
+                    reopen();
+                }
+            }
+            writeHeader(output, -1, END);
+            output.flush();
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            close();
+            if (event.shouldCommit()) {
+                event.collection = index.name;
+                event.bytes = size;
+                event.firstSequenceNumber = initialSeqNo;
+                event.lastSequenceNumber = lastSeqNo;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Replaces logReader with one starting after the last batch sent. A log iterator doesn't see batches committed
+     * after it reached the end, so we need a new one each time we wake up.
+     */
+    private synchronized void reopen() throws RocksDBException, IOException {
+        if (closed) {
+            throw new IOException("change feed closed");
+        }
+        long latest = index.getLatestSequenceNumber();
+        TransactionLogIterator newReader = index.getUpdatesSince(next);
+        logReader.close();
+        logReader = newReader;
+        openedAt = latest;
+    }
+
+    /**
+     * Frees the current log iterator, exactly once. Like ChangeFeedStream.close(), safe to call from both stream()
+     * and the server.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            logReader.close();
+        }
+    }
+}
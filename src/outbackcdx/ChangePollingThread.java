@@ -3,24 +3,44 @@ package outbackcdx;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.databind.MappingIterator;
-import org.apache.http.HttpResponse;
+import org.apache.http.Header;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.GZIPInputStreamFactory;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.WriteBatch;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static outbackcdx.Json.JSON_MAPPER;
 
 public class ChangePollingThread extends Thread {
+    /**
+     * Shared by every collection's polling thread, so connections to a primary are pooled and kept alive between
+     * requests.
+     */
+    static final CloseableHttpClient HTTP_CLIENT = HttpClientBuilder.create()
+            .setMaxConnPerRoute(1024)
+            .setMaxConnTotal(1024)
+            .setContentDecoderRegistry(contentDecoders())
+            .build();
+
     final byte[] SEQ_NUM_KEY = "#ReplicationSequence".getBytes();
 
     String primaryReplicationUrl = null;
@@ -32,6 +52,35 @@ public class ChangePollingThread extends Thread {
     String collection;
     boolean shuttingDown = false;
     long batchSize = 10*1024*1024;
+    /**
+     * Ask the primary to hold the change feed open and push batches as they're committed, rather than polling.
+     */
+    boolean follow = true;
+    /**
+     * How long to poll instead after the primary refuses to let us follow because all its follow slots are taken.
+     */
+    static final long FOLLOW_RETRY_MILLIS = 5 * 60 * 1000;
+    /**
+     * When the primary last refused to let us follow, or 0.
+     */
+    private long followRefusedAt = 0;
+    /**
+     * Whether the request in progress asked to follow.
+     */
+    private boolean following;
+    /**
+     * Seed a collection we don't have yet from a checkpoint of the primary, rather than replaying its whole history.
+     */
+    boolean bootstrap = true;
+    private ReplicationApplier applier;
+    /**
+     * Sequence number of the last batch handed to the applier, or -1 to resume from what's been written locally.
+     */
+    long fetched = -1;
+    /**
+     * Number of consecutive rounds that have failed.
+     */
+    int failures = 0;
 
     protected ChangePollingThread(String primaryReplicationUrl, int pollingInterval, long batchSize, DataStore dataStore) throws IOException {
         super("ChangePollingThread(" + primaryReplicationUrl + ")");
@@ -40,9 +89,13 @@ public class ChangePollingThread extends Thread {
         this.primaryReplicationUrl = primaryReplicationUrl.replaceFirst("/$", "");
         String[] splitCollectionUrl = this.primaryReplicationUrl.split("/");
         collection = splitCollectionUrl[splitCollectionUrl.length - 1];
-        this.index = dataStore.getIndex(collection, true);
+        this.index = dataStore.getIndex(collection);
         this.batchSize = batchSize;
+    }
 
+    @Override
+    public synchronized void start() {
+        // pollers driven by a ReplicationScheduler are never started and have nothing to wait for
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -54,40 +107,23 @@ public class ChangePollingThread extends Thread {
                 }
             }
         });
+        super.start();
     }
 
     public void run() {
         while (!shuttingDown) {
             try {
                 long startTime = System.currentTimeMillis();
+                boolean more;
                 try {
-                    byte[] output = this.index.db.get(SEQ_NUM_KEY);
-                    if(output == null){
-                        since = "0";
-                    } else {
-                        since = new String(output);
-                    }
-                } catch (RocksDBException e) {
-                    System.err.println(new Date() + " " + getName() + ": Received rocks db exception while looking up the value of the key " + new String(SEQ_NUM_KEY) + " locally");
-                    e.printStackTrace();
-                }
-                finalUrl = primaryReplicationUrl + "/changes?size=" + batchSize + "&since=" + since;
-                try {
-                    if (!shuttingDown) {
-                        replicate();
-                    }
-                } catch (IOException e) {
-                    System.err.println(new Date() + " " + getName() + ": I/O exception processing " + finalUrl);
-                    e.printStackTrace();
-                } catch (RocksDBException e){
-                    System.err.println(new Date() + " " + getName() + ": The plane has crashed into the mountain. RocksDB threw an exception during replication from "+ finalUrl);
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    System.err.println(new Date() + " " + getName() + ": Dang! something happened while processing " + finalUrl);
-                    e.printStackTrace();
+                    more = poll();
+                } catch (InterruptedException e) {
+                    System.out.println(new Date() + " " + getName() + ": Received interruption at " + System.currentTimeMillis());
+                    return;
                 }
 
-                long sleepTime = (pollingInterval * 1000L) - (System.currentTimeMillis() - startTime);
+                // fetch the next window straight away while catching up, or reconnect to a followed feed that ended
+                long sleepTime = more ? 0 : (pollingInterval * 1000L) - (System.currentTimeMillis() - startTime);
                 if (sleepTime > 0 && !shuttingDown) {
                     try {
                         Thread.sleep(sleepTime);
@@ -101,68 +137,308 @@ public class ChangePollingThread extends Thread {
                 e.printStackTrace();
             }
         }
+        awaitApplied();
         System.err.println(new Date() + " " + getName() + ": finished gracefully");
 
     }
 
+    /**
+     * Lets batches already fetched reach the disk before the index is closed.
+     */
+    void awaitApplied() {
+        try {
+            if (applier != null) {
+                applier.await();
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println(new Date() + " " + getName() + ": unable to apply all fetched batches: " + e);
+        }
+    }
+
+    /**
+     * Runs one round of replication: opens or bootstraps the collection if need be, then fetches from where we left
+     * off. Errors are logged and counted in {@link #failures} rather than thrown.
+     *
+     * @return true to poll again straight away
+     */
+    boolean poll() throws InterruptedException {
+        if (index == null) {
+            try {
+                index = openIndex();
+            } catch (IOException | RocksDBException e) {
+                Metrics.recordReplicationError(collection);
+                Metrics.recordReplicationFailures(collection, ++failures);
+                System.err.println(new Date() + " " + getName() + ": unable to bootstrap from " + primaryReplicationUrl);
+                e.printStackTrace();
+                return false;
+            }
+        }
+        if (fetched >= 0) {
+            // carry on from the last batch fetched while the applier catches up
+            since = String.valueOf(fetched);
+        } else {
+            try {
+                byte[] output = this.index.db.get(SEQ_NUM_KEY);
+                if(output == null){
+                    since = "0";
+                } else {
+                    since = new String(output);
+                }
+            } catch (RocksDBException e) {
+                System.err.println(new Date() + " " + getName() + ": Received rocks db exception while looking up the value of the key " + new String(SEQ_NUM_KEY) + " locally");
+                e.printStackTrace();
+            }
+        }
+        following = follow && System.currentTimeMillis() - followRefusedAt >= FOLLOW_RETRY_MILLIS;
+        finalUrl = primaryReplicationUrl + "/changes?size=" + batchSize + "&since=" + since
+                + (following ? "&follow=true" : "");
+        boolean more = false;
+        try {
+            if (!shuttingDown) {
+                more = replicate();
+            }
+            failures = 0;
+        } catch (IOException e) {
+            Metrics.recordReplicationError(collection);
+            failures++;
+            System.err.println(new Date() + " " + getName() + ": I/O exception processing " + finalUrl);
+            e.printStackTrace();
+            resetPipeline();
+        } catch (RocksDBException e){
+            Metrics.recordReplicationError(collection);
+            failures++;
+            System.err.println(new Date() + " " + getName() + ": The plane has crashed into the mountain. RocksDB threw an exception during replication from "+ finalUrl);
+            e.printStackTrace();
+            resetPipeline();
+        } catch (Exception e) {
+            Metrics.recordReplicationError(collection);
+            failures++;
+            System.err.println(new Date() + " " + getName() + ": Dang! something happened while processing " + finalUrl);
+            e.printStackTrace();
+            resetPipeline();
+        }
+        Metrics.recordReplicationFailures(collection, failures);
+        return more;
+    }
+
+    /**
+     * Creates the local collection, downloading a checkpoint of the primary's if it offers one. An interrupted
+     * download is resumed on the next attempt.
+     */
+    private Index openIndex() throws IOException, RocksDBException, InterruptedException {
+        if (bootstrap) {
+            Path staging = dataStore.bootstrapDir(collection).resolve("incoming");
+            Bootstrap.Manifest manifest = Bootstrap.download(HTTP_CLIENT, primaryReplicationUrl, staging,
+                    Bootstrap.DEFAULT_THREADS, getName());
+            if (manifest != null) {
+                Index index = dataStore.install(collection, staging.resolve("db"));
+                index.db.put(SEQ_NUM_KEY, String.valueOf(manifest.sequenceNumber).getBytes());
+                Bootstrap.delete(staging);
+                System.out.println(new Date() + " " + getName() + ": bootstrapped " + collection
+                        + ", replicating from sequence number " + manifest.sequenceNumber);
+                return index;
+            }
+            System.out.println(new Date() + " " + getName() + ": primary can't bootstrap us, replicating from the start");
+        }
+        return dataStore.getIndex(collection, true);
+    }
+
     @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.PUBLIC_ONLY)
     public static class ChangeEvent {
         public long sequenceNumber;
         public byte[] writeBatch;
     }
 
-    void replicate() throws IOException, RocksDBException {
-        long start = System.currentTimeMillis();
+    /**
+     * Drops anything fetched but not yet applied, so the next request resumes from what has been written locally.
+     */
+    private void resetPipeline() throws InterruptedException {
+        fetched = -1;
+        if (applier != null) {
+            applier.reset();
+        }
+    }
 
-        int countCommitted = 0;
-        long totalLengthCommitted = 0;
-        Long firstCommitted = null;
-        Long lastCommitted = null;
+    /**
+     * Fetches one response from the primary's change feed, queueing its batches for the applier as they arrive.
+     * Returns once the response has been read, waiting for the applier only if we've caught up.
+     *
+     * @return true to fetch again straight away, because the primary had more to send or held the feed open
+     */
+    boolean replicate() throws IOException, RocksDBException {
+        long start = System.currentTimeMillis();
+        Events.Replication event = new Events.Replication();
+        event.begin();
+        if (applier == null) {
+            applier = new ReplicationApplier(getName() + " apply",
+                    (sequenceNumber, writeBatch) -> commitWriteBatch(index, sequenceNumber, writeBatch),
+                    (sequenceNumber, batches, bytes, nanos) ->
+                            Metrics.recordReplicationApply(collection, sequenceNumber, batches, bytes, nanos));
+        }
+        // the primary starts from the batch containing since, which we already have
+        long skipUpTo = fetched >= 0 ? fetched : Long.parseLong(since);
 
-        // timeouts in milliseconds
+        // timeouts in milliseconds, a followed feed sends heartbeats so a silent one is soon given up on
         RequestConfig config = RequestConfig.custom()
             .setConnectTimeout(10*1000)
-            .setSocketTimeout(600*1000)
+            .setSocketTimeout(following ? 6 * (int) ChangeFeedFollower.DEFAULT_HEARTBEAT_MILLIS : 600*1000)
             .setConnectionRequestTimeout(5*1000).build();
-        CloseableHttpClient httpclient =
-            HttpClientBuilder.create().setDefaultRequestConfig(config).build();
         HttpGet request = new HttpGet(finalUrl);
+        request.setConfig(config);
+        // primaries that predate the binary format ignore this and send json
+        request.setHeader("Accept", Webapp.ChangeFeedBinaryStream.CONTENT_TYPE + ", application/json;q=0.5");
         System.out.println(new Date() + " " + getName() + ": requesting replication from " + finalUrl);
-        HttpResponse response = httpclient.execute(request);
 
-        if(response.getStatusLine().getStatusCode() != 200){
-            InputStream inputStream = response.getEntity().getContent();
-            String contentString = new BufferedReader(new InputStreamReader(inputStream)).readLine();
-            throw new IOException("Received '" + response.getStatusLine() + "' response from " + finalUrl +": \n" + contentString);
-        }
-        InputStream content = response.getEntity().getContent();
-
-        try (MappingIterator<ChangeEvent> iterator = JSON_MAPPER.readerFor(ChangeEvent.class).readValues(content)) {
-            while (iterator.hasNext()) {
-                ChangeEvent item = iterator.next();
-                assert item.writeBatch != null;
-                commitWriteBatch(index, item.sequenceNumber, item.writeBatch);
-                if (firstCommitted == null) {
-                    firstCommitted = item.sequenceNumber;
+        Progress progress = new Progress();
+        long received = 0;
+        boolean followed = false;
+        long fetchStart = System.nanoTime();
+        // closing the response without reading to the end discards the connection rather than draining it
+        try (CloseableHttpResponse response = HTTP_CLIENT.execute(request)) {
+            Metrics.recordReplicationFetch(collection, System.nanoTime() - fetchStart);
+            if (following && response.getStatusLine().getStatusCode() == 503) {
+                // the primary has no room for another followed feed, poll for a while and then try again
+                followRefusedAt = System.currentTimeMillis();
+                System.out.println(new Date() + " " + getName() + ": primary refused to let us follow, polling for the next "
+                        + FOLLOW_RETRY_MILLIS / 1000 + "s");
+                return true;
+            }
+            if(response.getStatusLine().getStatusCode() != 200){
+                InputStream inputStream = response.getEntity().getContent();
+                String contentString = new BufferedReader(new InputStreamReader(inputStream)).readLine();
+                throw new IOException("Received '" + response.getStatusLine() + "' response from " + finalUrl +": \n" + contentString);
+            }
+            InputStream content = response.getEntity().getContent();
+            Header contentType = response.getEntity().getContentType();
+            // the primary's latest sequence number when it opened the feed, older primaries don't send it
+            Header sequenceHeader = response.getFirstHeader(Webapp.SEQUENCE_HEADER);
+            long primarySequence = sequenceHeader == null ? -1 : Long.parseLong(sequenceHeader.getValue());
+            Metrics.recordPrimarySequence(collection, primarySequence);
+
+            if (contentType != null && contentType.getValue().startsWith(Webapp.ChangeFeedBinaryStream.CONTENT_TYPE)) {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(content, 64 * 1024));
+                while (!shuttingDown) {
+                    long sequenceNumber = input.readLong();
+                    int length = input.readInt();
+                    if (length == Webapp.ChangeFeedBinaryStream.HEARTBEAT) {
+                        // the primary only sends these once it has nothing more for us
+                        followed = true;
+                        applier.await();
+                        // a heartbeat carries the primary's latest sequence number
+                        Metrics.recordReplication(collection, sequenceNumber, true);
+                        continue;
+                    } else if (length < 0) {
+                        input.close();
+                        break;
+                    }
+                    byte[] writeBatch = new byte[length];
+                    input.readFully(writeBatch);
+                    received += length;
+                    if (sequenceNumber > skipUpTo) {
+                        applier.put(sequenceNumber, writeBatch);
+                        fetched = sequenceNumber;
+                        progress.add(sequenceNumber, length);
+                    }
+                }
+            } else {
+                try (MappingIterator<ChangeEvent> iterator = JSON_MAPPER.readerFor(ChangeEvent.class).readValues(content)) {
+                    while (iterator.hasNext()) {
+                        ChangeEvent item = iterator.next();
+                        assert item.writeBatch != null;
+                        // the primary counts a JSON feed's size in base64, so we do too
+                        received += 4 * ((item.writeBatch.length + 2) / 3);
+                        if (item.sequenceNumber > skipUpTo) {
+                            applier.put(item.sequenceNumber, item.writeBatch);
+                            fetched = item.sequenceNumber;
+                            progress.add(item.sequenceNumber, item.writeBatch.length);
+                        }
+                    }
+                }
+            }
+
+            // the primary stops once the batches it has sent reach the requested size (raw bytes in the binary
+            // format, base64 characters in json), so a smaller response means we've caught up
+            boolean caughtUp = received < batchSize;
+            if (!followed) {
+                if (caughtUp) {
+                    applier.await();
                 }
-                lastCommitted = item.sequenceNumber;
-                countCommitted++;
-                totalLengthCommitted += item.writeBatch.length;
+                Metrics.recordReplication(collection, primarySequence, caughtUp);
+            }
+
+            int countCommitted = progress.count;
+            long totalLengthCommitted = progress.bytes;
+            Long firstCommitted = progress.first;
+            Long lastCommitted = progress.last;
+
+            if (event.shouldCommit()) {
+                event.collection = collection;
+                event.url = finalUrl;
+                event.batches = countCommitted;
+                event.bytes = totalLengthCommitted;
+                event.firstSequenceNumber = firstCommitted == null ? -1 : firstCommitted;
+                event.lastSequenceNumber = lastCommitted == null ? -1 : lastCommitted;
+                event.commit();
+            }
+
+            String elapsed = String.format("%.3f", 1.0 * (System.currentTimeMillis() - start) / 1000);
+            System.out.println(new Date() + " " + getName() + ": replicated "
+                    + countCommitted + " write batches (" + firstCommitted + ".."
+                    + lastCommitted + ") with total length " + totalLengthCommitted
+                    + " in " + elapsed + "s from " + finalUrl + " and our latest"
+                    + " sequence number is now " + index.getLatestSequenceNumber());
+            return followed || !caughtUp;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Progress {
+        int count;
+        long bytes;
+        Long first;
+        Long last;
+
+        void add(long sequenceNumber, int length) {
+            if (first == null) {
+                first = sequenceNumber;
             }
+            last = sequenceNumber;
+            count++;
+            bytes += length;
         }
+    }
 
-        String elapsed = String.format("%.3f", 1.0 * (System.currentTimeMillis() - start) / 1000);
-        System.out.println(new Date() + " " + getName() + ": replicated "
-                + countCommitted + " write batches (" + firstCommitted + ".."
-                + lastCommitted + ") with total length " + totalLengthCommitted
-                + " in " + elapsed + "s from " + finalUrl + " and our latest"
-                + " sequence number is now " + index.getLatestSequenceNumber());
+    /**
+     * HttpClient's default gzip and deflate decoders, plus zstd if zstd-jni is on the classpath.
+     */
+    private static Map<String, InputStreamFactory> contentDecoders() {
+        Map<String, InputStreamFactory> decoders = new LinkedHashMap<>();
+        decoders.put("gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("x-gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("deflate", DeflateInputStreamFactory.getInstance());
+        if (Compression.canDecodeZstd()) {
+            decoders.put("zstd", Compression::zstdInput);
+        }
+        return decoders;
     }
 
-    private void commitWriteBatch(Index index, long sequenceNumber, byte[] writeBatchData) throws RocksDBException {
+    void commitWriteBatch(Index index, long sequenceNumber, byte[] writeBatchData) throws RocksDBException {
         try (WriteBatch batch = new WriteBatch(writeBatchData)){
+            // Our position is in the upstream's sequence numbers. If the upstream is itself a secondary its batches
+            // carry its own SEQ_NUM_KEY write, which this later put overrides. Our own change feed is in our
+            // sequence numbers, so nodes replicating from us track their position in those.
             batch.put(SEQ_NUM_KEY, String.valueOf(sequenceNumber).getBytes(StandardCharsets.US_ASCII));
             index.commitBatch(batch);
         }
+        // keep the in-memory access rules in step with any replicated rule or policy changes
+        if (index.accessControl != null) {
+            int reloaded = index.accessControl.applyReplicated(writeBatchData);
+            if (reloaded > 0) {
+                System.out.println(new Date() + " " + getName() + ": reloaded " + reloaded
+                        + " access rules and policies changed in batch " + sequenceNumber);
+            }
+        }
     }
 }
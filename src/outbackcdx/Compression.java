@@ -0,0 +1,239 @@
+package outbackcdx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses responses for clients that send Accept-Encoding. Supports gzip, and zstd when zstd-jni is on the
+ * classpath.
+ *
+ * Streamed responses are held back until they reach {@link #minSize} bytes. A response that finishes below that is
+ * sent uncompressed with a Content-Length, so small lookups don't pay for compression. Routes can be switched off
+ * individually by their pattern (e.g. "/&lt;collection&gt;/sequence").
+ */
+class Compression {
+    static final int DEFAULT_MIN_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Constructor<? extends OutputStream> ZSTD = findZstd("com.github.luben.zstd.ZstdOutputStream", OutputStream.class);
+    private static final Constructor<? extends InputStream> ZSTD_INPUT = findZstd("com.github.luben.zstd.ZstdInputStream", InputStream.class);
+
+    boolean enabled = true;
+    int minSize = DEFAULT_MIN_SIZE;
+
+    /**
+     * Overrides keyed by route pattern. Routes not listed are compressed when enabled is true.
+     */
+    final Map<String, Boolean> routes = new HashMap<>();
+
+    /**
+     * Where a negotiated response is written once we know whether it will be compressed.
+     */
+    interface Sink {
+        void header(String name, String value);
+
+        /**
+         * Sends the status and headers and returns the raw body stream.
+         *
+         * @param length the exact body length, or -1 if unknown
+         */
+        OutputStream begin(long length) throws IOException;
+    }
+
+    /**
+     * Picks a content encoding for the response to this request, or returns null to send it as is.
+     *
+     * @param knownLength the body length if already known, otherwise 0
+     * @param alreadyEncoded true if the response already has a Content-Encoding (e.g. proxied replay content)
+     */
+    String negotiate(Web.Request request, long knownLength, boolean alreadyEncoded) {
+        if (!enabled || alreadyEncoded || (knownLength > 0 && knownLength < minSize)) {
+            return null;
+        }
+        String route = request.route();
+        if (route != null && !routes.getOrDefault(route, true)) {
+            return null;
+        }
+        String acceptEncoding = request.header("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // null until the coding is listed, so "*" only stands in for gzip when gzip itself wasn't mentioned
+        Double gzipQ = null, wildcardQ = null;
+        double zstd = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzipQ = q;
+            } else if (coding.equals("zstd")) {
+                zstd = q;
+            } else if (coding.equals("*")) {
+                wildcardQ = q;
+            }
+        }
+        double gzip = gzipQ != null ? gzipQ : wildcardQ != null ? wildcardQ : 0;
+        if (ZSTD != null && zstd > 0 && zstd >= gzip) {
+            return "zstd";
+        }
+        return gzip > 0 ? "gzip" : null;
+    }
+
+    /**
+     * Returns a stream that buffers up to minSize bytes and then commits to the sink, compressed with the given
+     * encoding if the body turned out large enough.
+     */
+    OutputStream stream(String encoding, Sink sink) {
+        return new NegotiatedStream(encoding, sink);
+    }
+
+    static OutputStream compress(String encoding, OutputStream out) throws IOException {
+        switch (encoding) {
+            case "gzip":
+                return new GZIPOutputStream(out, BUFFER_SIZE, true);
+            case "zstd":
+                try {
+                    return ZSTD.newInstance(out);
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("zstd unavailable", e);
+                }
+            default:
+                throw new IllegalArgumentException("unsupported encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Stops a negotiated stream holding back output until minSize, so that every flush of a long-lived response is
+     * delivered. Other streams are left alone.
+     */
+    static void unbuffer(OutputStream out) throws IOException {
+        if (out instanceof NegotiatedStream) {
+            NegotiatedStream stream = (NegotiatedStream) out;
+            if (stream.out == null) {
+                stream.commitCompressed();
+            }
+        }
+    }
+
+    /**
+     * True if zstd-jni is on the classpath, so zstd responses can be decoded by {@link #zstdInput(InputStream)}.
+     */
+    static boolean canDecodeZstd() {
+        return ZSTD_INPUT != null;
+    }
+
+    static InputStream zstdInput(InputStream in) throws IOException {
+        if (ZSTD_INPUT == null) {
+            throw new IOException("zstd unavailable");
+        }
+        try {
+            return ZSTD_INPUT.newInstance(in);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("zstd unavailable", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Constructor<? extends T> findZstd(String className, Class<T> streamType) {
+        try {
+            Class<?> clazz = Class.forName(className);
+            return (Constructor<? extends T>) clazz.getConstructor(streamType);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private class NegotiatedStream extends OutputStream {
+        private final String encoding;
+        private final Sink sink;
+        private byte[] buffer = new byte[Math.min(minSize, BUFFER_SIZE)];
+        private int buffered;
+        private OutputStream out;
+        private CountingOutputStream raw;
+        private long uncompressed;
+        private boolean closed;
+
+        NegotiatedStream(String encoding, Sink sink) {
+            this.encoding = encoding;
+            this.sink = sink;
+        }
+
+        private void commitCompressed() throws IOException {
+            sink.header("Content-Encoding", encoding);
+            sink.header("Vary", "Accept-Encoding");
+            raw = new CountingOutputStream(sink.begin(-1));
+            out = compress(encoding, raw);
+            out.write(buffer, 0, buffered);
+            uncompressed = buffered;
+            buffer = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+                uncompressed++;
+            } else {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                if (buffered + len <= minSize) {
+                    if (buffered + len > buffer.length) {
+                        buffer = Arrays.copyOf(buffer, Math.min(minSize, Math.max(buffer.length * 2, buffered + len)));
+                    }
+                    System.arraycopy(b, off, buffer, buffered, len);
+                    buffered += len;
+                    return;
+                }
+                commitCompressed();
+            }
+            out.write(b, off, len);
+            uncompressed += len;
+        }
+
+        /**
+         * Flushing before minSize bytes have been written is deferred, so that a small response can still be sent
+         * uncompressed.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (out == null) {
+                sink.header("Vary", "Accept-Encoding");
+                try (OutputStream body = sink.begin(buffered)) {
+                    body.write(buffer, 0, buffered);
+                }
+                Metrics.recordUncompressed();
+                return;
+            }
+            out.close();
+            Metrics.recordCompression(encoding, uncompressed, raw.count);
+        }
+    }
+}
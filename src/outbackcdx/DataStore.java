@@ -6,9 +6,15 @@ import org.rocksdb.Options;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -22,9 +28,52 @@ public class DataStore implements Closeable {
     private final long scanCap;
     private final int maxOpenSstFiles;
     private final UrlCanonicalizer canonicalizer;
+    /**
+     * Whether to collect RocksDB tickers and histograms for the metrics endpoint. Costs a little on every operation.
+     */
+    private final boolean collectStatistics;
+    private final Long replicationSizeLimit;
+    private final File primaryDataDir;
+    private final long catchUpIntervalMillis;
+    private ScheduledExecutorService catchUpExecutor;
+
+    /**
+     * Less common settings, fixed once the DataStore is constructed.
+     */
+    public static class Settings {
+        /**
+         * Whether to collect RocksDB tickers and histograms for the metrics endpoint. Costs a little on every
+         * operation.
+         */
+        public boolean collectStatistics = true;
+
+        /**
+         * If not null, replication history is also kept until it exceeds this many megabytes. Useful on secondaries
+         * that relay the change feed to further secondaries, where disk is budgeted by size rather than time.
+         */
+        public Long replicationSizeLimit;
+
+        /**
+         * If not null, this is a read replica: collections are opened from this directory, belonging to another
+         * OutbackCDX process on the same host, as RocksDB secondary instances. Our own data directory only holds
+         * their info logs. Each is caught up with the primary every {@link #catchUpIntervalMillis}.
+         */
+        public File primaryDataDir;
+
+        public long catchUpIntervalMillis = 1000;
+    }
 
     public DataStore(File dataDir, int maxOpenSstFiles, Long replicationWindow, long scanCap, UrlCanonicalizer canonicalizer) {
+        this(dataDir, maxOpenSstFiles, replicationWindow, scanCap, canonicalizer, new Settings());
+    }
+
+    public DataStore(File dataDir, int maxOpenSstFiles, Long replicationWindow, long scanCap, UrlCanonicalizer canonicalizer,
+                     Settings settings) {
         this.dataDir = dataDir;
+        this.collectStatistics = settings.collectStatistics;
+        this.replicationSizeLimit = settings.replicationSizeLimit;
+        this.primaryDataDir = settings.primaryDataDir;
+        this.catchUpIntervalMillis = settings.catchUpIntervalMillis;
         this.replicationWindow = replicationWindow;
         this.scanCap = scanCap;
         this.maxOpenSstFiles = maxOpenSstFiles;
@@ -54,7 +103,10 @@ public class DataStore implements Closeable {
         if (index != null) {
             return index;
         }
-        File path = new File(dataDir, collection);
+        if (isReadReplica()) {
+            createAllowed = false;
+        }
+        File path = new File(isReadReplica() ? primaryDataDir : dataDir, collection);
         if (!createAllowed && !path.isDirectory()) {
             return null;
         }
@@ -92,8 +144,16 @@ public class DataStore implements Closeable {
             if (replicationWindow != null) {
                 dbOptions.setWalTtlSeconds(replicationWindow);
             }
+            if (replicationSizeLimit != null) {
+                dbOptions.setWalSizeLimitMB(replicationSizeLimit);
+            }
 
             dbOptions.setMaxOpenFiles(maxOpenSstFiles);
+            Statistics statistics = null;
+            if (collectStatistics) {
+                statistics = new Statistics();
+                dbOptions.setStatistics(statistics);
+            }
 
             ColumnFamilyOptions cfOptions = new ColumnFamilyOptions();
             configureColumnFamily(cfOptions);
@@ -112,10 +172,20 @@ public class DataStore implements Closeable {
                         new ColumnFamilyDescriptor("alias".getBytes(UTF_8), cfOptions));
             }
 
-            createColumnFamiliesIfNotExists(options, dbOptions, path.toString(), cfDescriptors);
-
             List<ColumnFamilyHandle> cfHandles = new ArrayList<>(cfDescriptors.size());
-            RocksDB db = RocksDB.open(dbOptions, path.toString(), cfDescriptors, cfHandles);
+            RocksDB db;
+            if (isReadReplica()) {
+                // the primary deletes SST files as it compacts, so a secondary has to keep every file it uses open
+                dbOptions.setMaxOpenFiles(-1);
+                File secondaryPath = new File(dataDir, collection);
+                if (!secondaryPath.isDirectory() && !secondaryPath.mkdirs()) {
+                    throw new IOException("Unable to create " + secondaryPath);
+                }
+                db = RocksDB.openAsSecondary(dbOptions, path.toString(), secondaryPath.toString(), cfDescriptors, cfHandles);
+            } else {
+                createColumnFamiliesIfNotExists(options, dbOptions, path.toString(), cfDescriptors);
+                db = RocksDB.open(dbOptions, path.toString(), cfDescriptors, cfHandles);
+            }
 
             AccessControl accessControl = null;
             if (FeatureFlags.experimentalAccessControl()) {
@@ -123,7 +193,12 @@ public class DataStore implements Closeable {
             }
 
             index = new Index(collection, db, cfHandles.get(0), cfHandles.get(1), accessControl, scanCap, canonicalizer);
+            index.statistics = statistics;
             indexes.put(collection, index);
+            if (isReadReplica()) {
+                index.catchUpWithPrimary();
+                scheduleCatchUp();
+            }
             return index;
         } catch (RocksDBException e) {
             throw new IOException(e);
@@ -190,20 +265,93 @@ public class DataStore implements Closeable {
         }
     }
 
-    private static boolean isValidCollectionName(String collection) {
+    /**
+     * Working space for bootstrapping secondaries from checkpoints of this collection. Inside the data directory so
+     * checkpoints can hard link SST files and a downloaded one can be moved into place, but hidden from
+     * {@link #listCollections()}.
+     */
+    Path bootstrapDir(String collection) {
+        if (!isValidCollectionName(collection)) {
+            throw new IllegalArgumentException("Invalid collection name");
+        }
+        return dataDir.toPath().resolve(".bootstrap").resolve(collection);
+    }
+
+    boolean exists(String collection) {
+        return indexes.containsKey(collection) || new File(dataDir, collection).isDirectory();
+    }
+
+    /**
+     * Moves a downloaded database into place as the given collection and opens it.
+     */
+    synchronized Index install(String collection, Path db) throws IOException {
+        if (exists(collection)) {
+            throw new IllegalStateException("Collection " + collection + " already exists");
+        }
+        Files.move(db, dataDir.toPath().resolve(collection), StandardCopyOption.ATOMIC_MOVE);
+        return getIndex(collection, false);
+    }
+
+    boolean isReadReplica() {
+        return primaryDataDir != null;
+    }
+
+    /**
+     * Starts the background task that keeps a read replica's open collections up to date with the primary.
+     */
+    private void scheduleCatchUp() {
+        if (catchUpExecutor != null) {
+            return;
+        }
+        catchUpExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "CatchUpWithPrimary(" + primaryDataDir + ")");
+            thread.setDaemon(true);
+            return thread;
+        });
+        catchUpExecutor.scheduleWithFixedDelay(() -> {
+            for (Index index : indexes.values()) {
+                try {
+                    index.catchUpWithPrimary();
+                } catch (RocksDBException | RuntimeException e) {
+                    System.err.println(new Date() + " unable to catch up with primary for " + index.name + ": " + e);
+                }
+            }
+        }, catchUpIntervalMillis, catchUpIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static boolean isValidCollectionName(String collection) {
         return collection.matches("^" + COLLECTION_PATTERN + "$");
     }
 
     public synchronized void close() {
+        if (catchUpExecutor != null) {
+            catchUpExecutor.shutdownNow();
+            try {
+                catchUpExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catchUpExecutor = null;
+        }
         for (Index index : indexes.values()) {
             index.db.close();
+            if (index.statistics != null) {
+                index.statistics.close();
+            }
         }
         indexes.clear();
     }
 
+    /**
+     * The indexes that are currently open.
+     */
+    public Collection<Index> openIndexes() {
+        return indexes.values();
+    }
+
     public List<String> listCollections() {
         List<String> collections = new ArrayList<>();
-        for (File f : dataDir.listFiles()) {
+        for (File f : (isReadReplica() ? primaryDataDir : dataDir).listFiles()) {
             if (f.isDirectory() && isValidCollectionName(f.getName())) {
                 collections.add(f.getName());
             }
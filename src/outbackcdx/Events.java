@@ -0,0 +1,146 @@
+package outbackcdx;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for index work, so queries, ingest, replication and maintenance show up in recordings
+ * as something other than JNI time. The per-request events are disabled unless a recording turns them on (see
+ * outbackcdx.jfc) and cost next to nothing when they are.
+ */
+class Events {
+    private Events() {
+    }
+
+    @Name("outbackcdx.Query")
+    @Label("Query")
+    @Category({"OutbackCDX", "Query"})
+    @Description("Execution of a cdx API query, from planning until its iterator was closed")
+    @StackTrace(false)
+    @Enabled(false)
+    @Threshold("10 ms")
+    static class Query extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("URL Key")
+        String urlkey;
+        @Label("Match Type")
+        String matchType;
+        @Label("Sort")
+        String sort;
+        @Label("Records Scanned")
+        long scanned;
+        @Label("Records Returned")
+        long returned;
+        @Label("Terminated")
+        @Description("Why the query's budget cut it short, if it did")
+        String terminated;
+    }
+
+    @Name("outbackcdx.Scan")
+    @Label("Index Scan")
+    @Category({"OutbackCDX", "Query"})
+    @Description("One RocksDB iterator scan over a key range")
+    @StackTrace(false)
+    @Enabled(false)
+    @Threshold("10 ms")
+    static class Scan extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Column Family")
+        String columnFamily;
+        @Label("Reverse")
+        boolean reverse;
+        @Label("Records")
+        long records;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("outbackcdx.BatchCommit")
+    @Label("Batch Commit")
+    @Category({"OutbackCDX", "Ingest"})
+    @Description("A write batch committed to an index")
+    @Enabled(false)
+    @Threshold("10 ms")
+    static class BatchCommit extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Operations")
+        long operations;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("outbackcdx.Replication")
+    @Label("Replication Poll")
+    @Category({"OutbackCDX", "Replication"})
+    @Description("One poll of a primary's change feed by a secondary")
+    @StackTrace(false)
+    static class Replication extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Primary URL")
+        String url;
+        @Label("Write Batches")
+        long batches;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("First Sequence Number")
+        long firstSequenceNumber;
+        @Label("Last Sequence Number")
+        long lastSequenceNumber;
+    }
+
+    @Name("outbackcdx.ChangeFeed")
+    @Label("Change Feed Response")
+    @Category({"OutbackCDX", "Replication"})
+    @Description("Streaming a change feed response to a secondary")
+    @StackTrace(false)
+    @Enabled(false)
+    static class ChangeFeed extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Write Batches")
+        long batches;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("First Sequence Number")
+        long firstSequenceNumber;
+        @Label("Last Sequence Number")
+        long lastSequenceNumber;
+    }
+
+    @Name("outbackcdx.Compaction")
+    @Label("Manual Compaction")
+    @Category({"OutbackCDX", "Maintenance"})
+    @Description("A full compaction requested via /<collection>/compact")
+    @StackTrace(false)
+    static class Compaction extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("outbackcdx.Upgrade")
+    @Label("Index Upgrade")
+    @Category({"OutbackCDX", "Maintenance"})
+    @Description("Rewriting an index's records to the current index version")
+    @StackTrace(false)
+    static class Upgrade extends Event {
+        @Label("Collection")
+        String collection;
+        @Label("Target Version")
+        int targetVersion;
+        @Label("Records Seen")
+        long recordsSeen;
+        @Label("Records Changed")
+        long recordsChanged;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+}
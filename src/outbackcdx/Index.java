@@ -8,6 +8,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 
 import org.rocksdb.*;
@@ -23,8 +25,20 @@ public class Index {
     final AccessControl accessControl;
     final long scanCap;
     final UrlCanonicalizer canonicalizer;
+    /**
+     * RocksDB tickers and histograms for the metrics endpoint, or null if not collected.
+     */
+    Statistics statistics;
     private Thread upgradeThread;
     private Thread compactThread;
+    static final int MAX_TERMINATION_CLIENTS = 1000;
+    private final Map<ScanBudget.Reason, Map<String, LongAdder>> terminatedQueries = new ConcurrentHashMap<>();
+    private final Object commitMonitor = new Object();
+    /**
+     * For a read replica, when it last caught up with the primary and how long that took, or -1 if it hasn't yet.
+     */
+    volatile long caughtUpAt = -1;
+    volatile long catchUpMillis = -1;
 
     public Index(String name, RocksDB db, ColumnFamilyHandle defaultCF, ColumnFamilyHandle aliasCF, AccessControl accessControl) {
         this(name, db, defaultCF, aliasCF, accessControl, Long.MAX_VALUE, new UrlCanonicalizer());
@@ -53,18 +67,84 @@ public class Index {
         return db.getLatestSequenceNumber();
     }
 
+    /**
+     * Waits until the latest sequence number is past the given one. Batches committed through
+     * {@link #commitBatch(WriteBatch)} wake waiters straight away; other writes are only noticed when the wait times
+     * out.
+     *
+     * @return true if the sequence number moved on, false if the timeout expired first
+     */
+    boolean awaitCommit(long sequenceNumber, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        synchronized (commitMonitor) {
+            while (db.getLatestSequenceNumber() <= sequenceNumber) {
+                long remaining = (deadline - System.nanoTime()) / 1000000;
+                if (remaining <= 0) {
+                    return false;
+                }
+                commitMonitor.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Brings a read replica opened with {@link RocksDB#openAsSecondary} up to date with the primary's writes,
+     * refreshing the in-memory access rules if any of them changed.
+     */
+    void catchUpWithPrimary() throws RocksDBException {
+        long start = System.currentTimeMillis();
+        long before = db.getLatestSequenceNumber();
+        db.tryCatchUpWithPrimary();
+        if (db.getLatestSequenceNumber() != before) {
+            if (accessControl != null) {
+                refreshAccessControl(before);
+            }
+            synchronized (commitMonitor) {
+                commitMonitor.notifyAll();
+            }
+        }
+        catchUpMillis = System.currentTimeMillis() - start;
+        caughtUpAt = start;
+    }
+
+    /**
+     * Reloads the access rules and policies written since the given sequence number, or all of them if the
+     * primary's log no longer goes back that far.
+     */
+    private void refreshAccessControl(long sequenceNumber) throws RocksDBException {
+        try (TransactionLogIterator logReader = db.getUpdatesSince(sequenceNumber + 1)) {
+            for (; logReader.isValid(); logReader.next()) {
+                try (WriteBatch batch = logReader.getBatch().writeBatch()) {
+                    accessControl.applyReplicated(batch.data());
+                }
+            }
+            logReader.status();
+        } catch (RocksDBException e) {
+            accessControl.reloadAll();
+        }
+    }
+
     /**
      * Returns all captures that match the given prefix.
      */
     public CloseableIterator<Capture> prefixQuery(String surtPrefix, Predicate<Capture> filter) {
-        return filteredCaptures(Capture.encodeKeyV0(surtPrefix, 0), record -> record.urlkey.startsWith(surtPrefix), filter, false);
+        return prefixQuery(surtPrefix, filter, newBudget());
+    }
+
+    CloseableIterator<Capture> prefixQuery(String surtPrefix, Predicate<Capture> filter, ScanBudget budget) {
+        return filteredCaptures(Capture.encodeKeyV0(surtPrefix, 0), record -> record.urlkey.startsWith(surtPrefix), filter, false, budget);
     }
 
     public CloseableIterator<Capture> prefixQueryAP(String surtPrefix, String accessPoint) {
+        return prefixQueryAP(surtPrefix, accessPoint, newBudget());
+    }
+
+    CloseableIterator<Capture> prefixQueryAP(String surtPrefix, String accessPoint, ScanBudget budget) {
         if (accessPoint != null && accessControl != null) {
-            return prefixQuery(surtPrefix, accessControl.filter(accessPoint, new Date()));
+            return prefixQuery(surtPrefix, accessControl.filter(accessPoint, new Date()), budget);
         } else {
-            return prefixQuery(surtPrefix, null);
+            return prefixQuery(surtPrefix, null, budget);
         }
     }
 
@@ -72,7 +152,11 @@ public class Index {
      * Returns all captures with keys in the given range.
      */
     public CloseableIterator<Capture> rangeQuery(String startSurt, String endSurt, Predicate<Capture> filter) {
-        return filteredCaptures(Capture.encodeKeyV0(startSurt, 0), record -> record.urlkey.compareTo(endSurt) < 0, filter, false);
+        return rangeQuery(startSurt, endSurt, filter, newBudget());
+    }
+
+    CloseableIterator<Capture> rangeQuery(String startSurt, String endSurt, Predicate<Capture> filter, ScanBudget budget) {
+        return filteredCaptures(Capture.encodeKeyV0(startSurt, 0), record -> record.urlkey.compareTo(endSurt) < 0, filter, false, budget);
     }
 
     /**
@@ -83,20 +167,28 @@ public class Index {
     }
 
     public CloseableIterator<Capture> query(String surt, long from, long to, Predicate<Capture> filter) {
+        return query(surt, from, to, filter, newBudget());
+    }
+
+    CloseableIterator<Capture> query(String surt, long from, long to, Predicate<Capture> filter, ScanBudget budget) {
         String urlkey = resolveAlias(surt);
         byte[] key = Capture.encodeKeyV0(urlkey, from);
-        return filteredCaptures(key, record -> record.urlkey.equals(urlkey) && record.timestamp <= to, filter, false);
+        return filteredCaptures(key, record -> record.urlkey.equals(urlkey) && record.timestamp <= to, filter, false, budget);
     }
 
     /**
      * Returns all captures for the given url.
      */
     public CloseableIterator<Capture> queryAP(String surt, String accessPoint) {
+        return queryAP(surt, accessPoint, newBudget());
+    }
+
+    CloseableIterator<Capture> queryAP(String surt, String accessPoint, ScanBudget budget) {
+        Predicate<Capture> filter = null;
         if (accessPoint != null && accessControl != null) {
-            return query(surt, accessControl.filter(accessPoint, new Date()));
-        } else {
-            return query(surt, null);
+            filter = accessControl.filter(accessPoint, new Date());
         }
+        return query(surt, Query.MIN_TIMESTAMP, Query.MAX_TIMESTAMP, filter, budget);
     }
 
     /**
@@ -107,54 +199,81 @@ public class Index {
     }
 
     public CloseableIterator<Capture> reverseQuery(String surt, long from, long to, Predicate<Capture> filter) {
+        return reverseQuery(surt, from, to, filter, newBudget());
+    }
+
+    CloseableIterator<Capture> reverseQuery(String surt, long from, long to, Predicate<Capture> filter, ScanBudget budget) {
         String urlkey = resolveAlias(surt);
         byte[] key = Capture.encodeKeyV0(urlkey, to);
-        return filteredCaptures(key, record -> record.urlkey.equals(urlkey) && record.timestamp >= from, filter, true);
+        return filteredCaptures(key, record -> record.urlkey.equals(urlkey) && record.timestamp >= from, filter, true, budget);
     }
 
     /**
      * Returns all captures for the given url ordered by distance from the given timestamp.
      */
     public CloseableIterator<Capture> closestQuery(String surt, long targetTimestamp, Predicate<Capture> filter) {
+        return closestQuery(surt, targetTimestamp, filter, newBudget());
+    }
+
+    CloseableIterator<Capture> closestQuery(String surt, long targetTimestamp, Predicate<Capture> filter, ScanBudget budget) {
         String urlkey = resolveAlias(surt);
         byte[] key = Capture.encodeKeyV0(urlkey, targetTimestamp);
         Predicate<Capture> scope = record -> record.urlkey.equals(urlkey);
         return new ClosestTimestampIterator(targetTimestamp,
-                filteredCaptures(key, scope, filter, false),
-                filteredCaptures(key, scope, filter, true));
+                filteredCaptures(key, scope, filter, false, budget),
+                filteredCaptures(key, scope, filter, true, budget));
     }
 
     public CloseableIterator<Capture> execute(Query query) {
+        ScanBudget budget = query.budget != null ? query.budget : newBudget();
+        QueryProfile profile = query.profile;
         Predicate<Capture> filter = query.predicate;
+        if (profile != null) {
+            filter = profile.counting("filter", filter);
+        }
         if (query.accessPoint != null && accessControl != null) {
-            filter = filter.and(accessControl.filter(query.accessPoint, new Date()));
+            Predicate<Capture> accessFilter = accessControl.filter(query.accessPoint, new Date());
+            filter = filter.and(profile == null ? accessFilter : profile.counting("accessControl", accessFilter));
         }
         if (query.omitSelfRedirects) {
-            filter = filter.and(record -> !record.isSelfRedirect(canonicalizer));
+            Predicate<Capture> selfRedirectFilter = record -> !record.isSelfRedirect(canonicalizer);
+            filter = filter.and(profile == null ? selfRedirectFilter : profile.counting("selfRedirect", selfRedirectFilter));
+        }
+        if (profile != null && query.matchType == Query.MatchType.EXACT) {
+            profile.aliasHops = aliasHops(query.urlkey);
+        }
+
+        Events.Query event = new Events.Query();
+        if (!event.isEnabled()) {
+            return plan(query, filter, budget);
         }
+        event.begin();
+        return new QueryEventIterator(plan(query, filter, budget), event, query, budget);
+    }
 
+    private CloseableIterator<Capture> plan(Query query, Predicate<Capture> filter, ScanBudget budget) {
         switch (query.matchType) {
             case EXACT:
                 switch (query.sort) {
                     case DEFAULT:
-                        return query(query.urlkey, query.from, query.to, filter);
+                        return query(query.urlkey, query.from, query.to, filter, budget);
                     case CLOSEST:
-                        return closestQuery(query.urlkey, Long.parseLong(query.closest), filter);
+                        return closestQuery(query.urlkey, Long.parseLong(query.closest), filter, budget);
                     case REVERSE:
-                        return reverseQuery(query.urlkey, query.from, query.to, filter);
+                        return reverseQuery(query.urlkey, query.from, query.to, filter, budget);
                 }
             case PREFIX:
                 if (query.url != null && query.url.endsWith("/") && !query.urlkey.endsWith("/")) {
                     query.urlkey += "/";
                 }
-                return prefixQuery(query.urlkey, filter);
+                return prefixQuery(query.urlkey, filter, budget);
             case HOST:
-                return prefixQuery(hostFromSurt(query.urlkey) + ")/", filter);
+                return prefixQuery(hostFromSurt(query.urlkey) + ")/", filter, budget);
             case DOMAIN:
                 String host = hostFromSurt(query.urlkey);
-                return rangeQuery(host, host + "-", filter);
+                return rangeQuery(host, host + "-", filter, budget);
             case RANGE:
-                return rangeQuery(query.urlkey, "~", filter);
+                return rangeQuery(query.urlkey, "~", filter, budget);
             default:
                 throw new IllegalArgumentException("unknown matchType: " + query.matchType);
         }
@@ -195,11 +314,16 @@ public class Index {
     void compact() {
         System.out.println("Compacting index '" + name + "'");
         long startTime = System.currentTimeMillis();
+        Events.Compaction event = new Events.Compaction();
+        event.begin();
+        event.collection = name;
         try {
             db.compactRange(defaultCF);
+            event.succeeded = true;
         } catch (RocksDBException e) {
             e.printStackTrace();
         }
+        event.commit();
         System.out.println("Compaction complete (" + name + ") in " +
                 Duration.ofMillis(System.currentTimeMillis() - startTime));
     }
@@ -228,6 +352,10 @@ public class Index {
         int targetVersion = FeatureFlags.indexVersion();
 
         System.out.println("Upgrading index '" + name + "' (~" + estimatedTotal + " records) to index version " + targetVersion);
+        Events.Upgrade event = new Events.Upgrade();
+        event.begin();
+        event.collection = name;
+        event.targetVersion = targetVersion;
 
         try (ReadOptions readOptions = new ReadOptions().setTailing(true);
                 WriteOptions writeOptions = new WriteOptions();
@@ -280,10 +408,15 @@ public class Index {
             Duration duration = Duration.ofMillis(System.currentTimeMillis() - startTime);
             System.out.println("Upgrade complete (" + name + "): " + recordsSeen + " records"
                     + " (" + recordsChanged + " changed) in " + duration);
+            event.succeeded = true;
         } catch (RocksDBException e) {
             System.err.println("Upgrade failed (" + name + ") at urlkey: " + lastSeenUrlKey);
             e.printStackTrace();
             throw new RuntimeException(e);
+        } finally {
+            event.recordsSeen = recordsSeen;
+            event.recordsChanged = recordsChanged;
+            event.commit();
         }
     }
 
@@ -362,14 +495,14 @@ public class Index {
      * Perform a query without first resolving aliases.
      */
     private CloseableIterator<Capture> rawQuery(String key, Predicate<Capture> filter, boolean reverse) {
-        return filteredCaptures(Capture.encodeKeyV0(key, 0), record -> record.urlkey.equals(key), filter, reverse);
+        return filteredCaptures(Capture.encodeKeyV0(key, 0), record -> record.urlkey.equals(key), filter, reverse, newBudget());
     }
 
     /**
      * Returns all captures starting from the given key.
      */
     CloseableIterator<Capture> capturesAfter(String start) {
-        return filteredCaptures(Capture.encodeKeyV0(start, 0), record -> true, null, false);
+        return filteredCaptures(Capture.encodeKeyV0(start, 0), record -> true, null, false, newBudget());
     }
 
     public String resolveAlias(String surt) {
@@ -380,6 +513,21 @@ public class Index {
         return surt;
     }
 
+    /**
+     * The number of aliases followed to resolve the given SURT.
+     */
+    int aliasHops(String surt) {
+        Set<String> seen = new HashSet<>();
+        int hops = 0;
+        for (int i = 0; i < 32 && seen.add(surt); i++) {
+            String resolved = resolveAliasOnce(surt);
+            if (resolved.equals(surt)) break;
+            surt = resolved;
+            hops++;
+        }
+        return hops;
+    }
+
     public String resolveAliasOnce(String surt) {
         try {
             byte[] resolved = db.get(aliasCF, surt.getBytes(StandardCharsets.US_ASCII));
@@ -393,8 +541,8 @@ public class Index {
         }
     }
 
-    private CloseableIterator<Capture> filteredCaptures(byte[] key, Predicate<Capture> scope, Predicate<Capture> filter, boolean reverse) {
-        CloseableIterator<Capture> captures = new Records<>(db, defaultCF, key, Capture::new, scope, reverse, scanCap);
+    private CloseableIterator<Capture> filteredCaptures(byte[] key, Predicate<Capture> scope, Predicate<Capture> filter, boolean reverse, ScanBudget budget) {
+        CloseableIterator<Capture> captures = new Records<>(db, defaultCF, key, Capture::new, scope, reverse, budget);
         if (filter != null) {
             captures = new FilteringIterator<>(captures, filter);
         }
@@ -403,7 +551,46 @@ public class Index {
 
     public Iterable<Alias> listAliases(String start) {
         byte[] key = start.getBytes(US_ASCII);
-        return () -> new Records<>(db, aliasCF, key, Alias::new, (alias) -> true, false, scanCap);
+        return () -> new Records<>(db, aliasCF, key, Alias::new, (alias) -> true, false, newBudget());
+    }
+
+    /**
+     * A budget limited only by the server-wide scan cap (-r).
+     */
+    ScanBudget newBudget() {
+        return new ScanBudget(scanCap);
+    }
+
+    /**
+     * Counts a query that was cut short by its budget, so we can tell which
+     * users are regularly hitting the limits. Unauthenticated clients are
+     * counted together and once MAX_TERMINATION_CLIENTS users are tracked any
+     * further ones are counted as "other", so the counts stay bounded.
+     */
+    void recordTermination(ScanBudget.Reason reason, String username) {
+        String client = username == null || username.equals("anonymous") ? "anonymous" : username;
+        Map<String, LongAdder> byClient = terminatedQueries.computeIfAbsent(reason, r -> new ConcurrentHashMap<>());
+        LongAdder count = byClient.get(client);
+        if (count == null) {
+            if (byClient.size() >= MAX_TERMINATION_CLIENTS) {
+                client = "other";
+            }
+            count = byClient.computeIfAbsent(client, c -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Counts of queries cut short by their budget, by reason and user.
+     */
+    Map<String, Map<String, Long>> terminatedQueries() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        terminatedQueries.forEach((reason, byClient) -> {
+            Map<String, Long> counts = new TreeMap<>();
+            byClient.forEach((client, count) -> counts.put(client, count.sum()));
+            result.put(reason.toString(), counts);
+        });
+        return result;
     }
 
     public long estimatedRecordCount() {
@@ -419,20 +606,29 @@ public class Index {
     }
 
     /**
-     * Iterates capture records in RocksDb, starting from queryUrl and continuing until scope returns false.
+     * Iterates capture records in RocksDb, starting from queryUrl and continuing until scope returns false or the
+     * budget is exhausted.
      */
-    private static class Records<T> implements CloseableIterator<T> {
+    private class Records<T> implements CloseableIterator<T> {
         private final RocksIterator it;
         private final Predicate<T> scope;
         private final RecordConstructor<T> constructor;
         private T record = null;
-        private long cap;
-        private long count = 0;
+        private final ScanBudget budget;
         private final boolean reverse;
         private boolean exhausted = false;
         private boolean closed;
-
-        public Records(RocksDB db, ColumnFamilyHandle columnFamilyHandle, byte[] startKey, RecordConstructor<T> constructor, Predicate<T> scope, boolean reverse, long cap) {
+        private Events.Scan scanEvent;
+
+        public Records(RocksDB db, ColumnFamilyHandle columnFamilyHandle, byte[] startKey, RecordConstructor<T> constructor, Predicate<T> scope, boolean reverse, ScanBudget budget) {
+            Events.Scan event = new Events.Scan();
+            if (event.isEnabled()) {
+                event.begin();
+                event.collection = name;
+                event.columnFamily = columnFamilyHandle == aliasCF ? "alias" : "default";
+                event.reverse = reverse;
+                scanEvent = event;
+            }
             final RocksIterator it = db.newIterator(columnFamilyHandle);
             it.seek(startKey);
             if (reverse) {
@@ -446,7 +642,7 @@ public class Index {
             this.scope = scope;
             this.it = it;
             this.reverse = reverse;
-            this.cap = cap;
+            this.budget = budget;
         }
 
         public boolean hasNext() {
@@ -454,18 +650,32 @@ public class Index {
             if (exhausted) {
                 return false;
             }
-            if (record == null && it.isValid()) {
-                record = constructor.construct(it.key(), it.value());
+            if (record == null && it.isValid() && budget.tryScan()) {
+                byte[] key = it.key();
+                byte[] value = it.value();
+                record = constructor.construct(key, value);
+                if (scanEvent != null) {
+                    scanEvent.records++;
+                    scanEvent.bytes += key.length + value.length;
+                }
             }
-            if (record == null || !scope.test(record) || count >= cap) {
+            if (record == null || !scope.test(record)) {
                 record = null;
                 exhausted = true;
                 it.close();
+                commitScanEvent();
                 return false;
             }
             return true;
         }
 
+        private void commitScanEvent() {
+            if (scanEvent != null) {
+                scanEvent.commit();
+                scanEvent = null;
+            }
+        }
+
         public T next() {
             if (!hasNext()) {
                 throw new NoSuchElementException();
@@ -477,7 +687,6 @@ public class Index {
             } else {
                 it.next();
             }
-            count += 1;
             return record;
         }
 
@@ -485,6 +694,54 @@ public class Index {
         public void close() {
             if (!closed && !exhausted) it.close();
             closed = true;
+            commitScanEvent();
+        }
+    }
+
+    /**
+     * Counts the captures a query returns and commits its flight recorder event when the query is closed.
+     */
+    private class QueryEventIterator implements CloseableIterator<Capture> {
+        private final CloseableIterator<Capture> iterator;
+        private final Events.Query event;
+        private final Query query;
+        private final ScanBudget budget;
+        private boolean committed;
+
+        QueryEventIterator(CloseableIterator<Capture> iterator, Events.Query event, Query query, ScanBudget budget) {
+            this.iterator = iterator;
+            this.event = event;
+            this.query = query;
+            this.budget = budget;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Capture next() {
+            Capture capture = iterator.next();
+            event.returned++;
+            return capture;
+        }
+
+        @Override
+        public void close() {
+            iterator.close();
+            if (committed) return;
+            committed = true;
+            event.end();
+            if (event.shouldCommit()) {
+                event.collection = name;
+                event.urlkey = query.urlkey;
+                event.matchType = query.matchType.name().toLowerCase();
+                event.sort = query.sort.name().toLowerCase();
+                event.scanned = budget.scanned();
+                event.terminated = budget.exhausted() == null ? null : budget.exhausted().toString();
+                event.commit();
+            }
         }
     }
 
@@ -537,10 +794,21 @@ public class Index {
     }
 
     public void commitBatch(WriteBatch writeBatch) throws RocksDBException {
+        Events.BatchCommit event = new Events.BatchCommit();
+        event.begin();
         try (WriteOptions options = new WriteOptions()) {
             options.setSync(true);
             db.write(options, writeBatch);
         }
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
+        if (event.shouldCommit()) {
+            event.collection = name;
+            event.operations = writeBatch.count();
+            event.bytes = writeBatch.getDataSize();
+            event.commit();
+        }
     }
 
     public class Batch implements AutoCloseable {
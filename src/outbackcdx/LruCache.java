@@ -0,0 +1,73 @@
+package outbackcdx;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe cache that evicts approximately the least recently used entries once it holds more than a fixed
+ * number.
+ *
+ * Lookups don't take a lock: entries live in a ConcurrentHashMap and a hit just marks the entry as referenced.
+ * Eviction uses the CLOCK algorithm, sweeping a hand around the map and removing the first entry that hasn't been
+ * referenced since the hand last passed it. Only eviction is serialized, and only when a put takes the cache over
+ * capacity.
+ */
+class LruCache<K, V> {
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final int capacity;
+    private Iterator<Map.Entry<K, Entry<V>>> hand; // guarded by this
+
+    private static class Entry<V> {
+        final V value;
+        volatile boolean referenced;
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    LruCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    void put(K key, V value) {
+        map.put(key, new Entry<>(value));
+        if (map.size() > capacity) {
+            evict();
+        }
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    private synchronized void evict() {
+        while (map.size() > capacity) {
+            if (hand == null || !hand.hasNext()) {
+                hand = map.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<K, Entry<V>> candidate = hand.next();
+            Entry<V> entry = candidate.getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                map.remove(candidate.getKey(), entry);
+            }
+        }
+    }
+}
@@ -19,9 +19,8 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class Main {
     public static void usage() {
@@ -30,29 +29,51 @@ public class Main {
         System.err.println("  -b bindaddr           Bind to a particular IP address");
         System.err.println("  -c, --context-path url-prefix");
         System.err.println("                        Set a URL prefix for the application to be mounted under");
+        System.err.println("  --compression-min-size bytes");
+        System.err.println("                        Only compress responses at least this large (default " + Compression.DEFAULT_MIN_SIZE + ")");
+        System.err.println("  --compression-route pattern on|off");
+        System.err.println("                        Enable or disable response compression for a route, e.g. '/<collection>/changes'");
         System.err.println("  -d datadir            Directory to store index data under");
         System.err.println("  --hmac-field name algorithm message-template value-template key expiry-secs");
         System.err.println("                        Defines a computed HMAC field (useful for storage authentication)");
         System.err.println("  -i                    Inherit the server socket via STDIN (for use with systemd, inetd etc)");
         System.err.println("  -j jwks-url perm-path Use JSON Web Tokens for authorization");
         System.err.println("  -k url realm clientid Use a Keycloak server for authorization");
+        System.err.println("  --lane name concurrency queue-timeout-secs");
+        System.err.println("                        Limit concurrent requests in a lane (lookup, scan, ingest, admin, follow). Requests");
+        System.err.println("                        that wait longer than the timeout get 503. A concurrency of 0 means unlimited.");
+        System.err.println("                        The follow lane holds followed change feeds and defaults to a quarter of the");
+        System.err.println("                        web threads, refusing any more straight away so their secondaries poll instead.");
         System.err.println("  -m max-open-files     Limit the number of open .sst files to control memory usage");
         System.err.println("                        (default " + maxOpenSstFilesHeuristic() + " based on system RAM and ulimit -n)");
+        System.err.println("  --max-concurrent-requests N");
+        System.err.println("                        With --virtual-threads, cap on requests running at once (default " + WebExecutor.DEFAULT_MAX_CONCURRENT + ")");
         System.err.println("  --max-num-results N   Max number of records to scan to calculate numresults statistic in the XML protocol (default 10000)");
+        System.err.println("  --no-compression      Never compress responses (gzip, or zstd with zstd-jni on the classpath, is negotiated via Accept-Encoding)");
+        System.err.println("  --no-rocksdb-statistics");
+        System.err.println("                        Don't collect RocksDB statistics for /metrics, saving their per-operation overhead");
         System.err.println("  --omit-self-redirects Omit self redirects from query results by default");
         System.err.println("  -p port               Local port to listen on");
+        System.err.println("  --query-limit key count timeout-secs");
+        System.err.println("                        Override the scan cap and timeout for an endpoint (cdx, xml), a user");
+        System.err.println("                        (user:NAME) or a role (role:NAME). A timeout of 0 means no deadline.");
+        System.err.println("  --query-timeout secs  Deadline for a single query. Clients may request a shorter one with ?timeout=secs");
         System.err.println("  -r count              Cap on number of rocksdb records to scan to serve a single request");
         System.err.println("  --service-worker FILE Sets a JavaScript file to use as the replay service worker");
+        System.err.println("  --slow-query-log secs Log queries slower than this with their execution profile");
         System.err.println("  -t count              Number of web server threads");
         System.err.println("  --warc-base-url URL   Enables replay of WARC records by reading WARC files with this URL prefix");
         System.err.println("  -x                    Output CDX14 by default (instead of CDX11)");
         System.err.println("  -v                    Verbose logging");
+        System.err.println("  --virtual-threads     Run each request on a virtual thread instead of a fixed pool (Java 21+)");
         System.err.println("  -y file               Custom fuzzy match canonicalization YAML configuration file");
         System.err.println();
-        System.err.println("Primary mode (runs as a replication target for downstream Secondaries)");
+        System.err.println("Primary mode (runs as a replication target for downstream Secondaries; also applies to secondaries");
+        System.err.println("that relay changes to further secondaries)");
         System.err.println("  --replication-window interval      interval, in seconds, to delete replication history from disk.");
         System.err.println("                                     0 disables automatic deletion. History files can be deleted manually by");
         System.err.println("                                     POSTing a replication sequenceNumber to /<collection>/truncate_replication");
+        System.err.println("  --replication-size-limit MB        Keep replication history until it exceeds this size on disk");
         System.err.println("  --checkpoint-dir dir               Base directory for hot checkpoints created via");
         System.err.println("                                     POST /<collection>/checkpoint?name=<name>. Co-locating on the");
         System.err.println("                                     same filesystem as the data dir is recommended: SST files are");
@@ -60,9 +81,21 @@ public class Main {
         System.err.println();
         System.err.println("Secondary mode (runs read-only; polls upstream server on 'collection-url' for changes)");
         System.err.println("  --primary collection-url           URL of collection on upstream primary to poll for changes");
+        System.err.println("  --mirror primary-url               Replicate every collection on the upstream primary at this base URL,");
+        System.err.println("                                     including ones created later, over a shared pool of threads");
+        System.err.println("  --replication-threads count        Threads shared by the collections replicated with --mirror. Default: 4");
         System.err.println("  --update-interval poll-interval    Polling frequency for upstream changes, in seconds. Default: 10");
         System.err.println("  --accept-writes                    Allow writes to this node, even though running as a secondary");
         System.err.println("  --batch-size                       Approximate max size (in bytes) per replication batch");
+        System.err.println("  --no-follow                        Poll every update interval instead of holding the primary's change");
+        System.err.println("                                     feed open to receive batches as they're committed");
+        System.err.println("  --no-bootstrap                     Replay a new collection's whole history rather than downloading a");
+        System.err.println("                                     checkpoint of it from the primary");
+        System.err.println();
+        System.err.println("Read replica mode (serves queries from another OutbackCDX process's data directory on this host)");
+        System.err.println("  --read-replica-of datadir          Open the collections in datadir read-only as RocksDB secondary");
+        System.err.println("                                     instances, keeping only their logs under -d");
+        System.err.println("  --catch-up-interval secs           How often to catch up with the primary's writes. Default: 1");
         System.err.println();
         System.err.println("Enable experimental index versions. DANGER: Upgrading a version 3 index to version 4 is not yet supported and " +
                 "updating or deleting existing version 3 records will silently fail.");
@@ -84,14 +117,27 @@ public class Main {
         Authorizer authorizer = new NullAuthorizer();
         int pollingInterval = 10;
         List<String> collectionUrls = new ArrayList<>();
+        List<String> mirrorUrls = new ArrayList<>();
+        int replicationThreads = ReplicationScheduler.DEFAULT_THREADS;
+        File primaryDataDir = null;
+        long catchUpIntervalMillis = 1000;
         Long replicationWindow = null;
+        Long replicationSizeLimit = null;
+        boolean rocksdbStatistics = true;
         Path checkpointDir = null;
         long scanCap = Long.MAX_VALUE;
         long batchSize = 10*1024*1024;
+        boolean followChanges = true;
+        boolean bootstrapCollections = true;
         String fuzzyYaml = null;
         long maxNumResults = 10000;
         Map<String,ComputedField> computedFields = new HashMap<>();
         QueryConfig queryConfig = new QueryConfig();
+        Compression compression = new Compression();
+        boolean virtualThreads = false;
+        int maxConcurrentRequests = WebExecutor.DEFAULT_MAX_CONCURRENT;
+        Map<AdmissionControl.Lane, AdmissionControl.LaneConfig> lanes = AdmissionControl.defaults();
+        boolean followLaneSet = false;
         String warcBaseUrl = null;
         String serviceWorker = null;
 
@@ -116,6 +162,18 @@ public class Main {
                         throw new IllegalArgumentException("context path (-c) must start with /");
                     }
                     break;
+                case "--compression-min-size":
+                    compression.minSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--compression-route":
+                    compression.routes.put(args[++i], args[++i].equals("on"));
+                    break;
+                case "--no-compression":
+                    compression.enabled = false;
+                    break;
+                case "--no-rocksdb-statistics":
+                    rocksdbStatistics = false;
+                    break;
                 case "-d":
                     dataPath = new File(args[++i]);
                     break;
@@ -146,12 +204,33 @@ public class Main {
                 case "-m":
                     maxOpenSstFiles = Integer.parseInt(args[++i]);
                     break;
+                case "--lane":
+                    AdmissionControl.Lane lane = AdmissionControl.Lane.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    lanes.put(lane, new AdmissionControl.LaneConfig(Integer.parseInt(args[++i]),
+                            (long) (Double.parseDouble(args[++i]) * 1000)));
+                    if (lane == AdmissionControl.Lane.FOLLOW) {
+                        followLaneSet = true;
+                    }
+                    break;
+                case "--max-concurrent-requests":
+                    maxConcurrentRequests = Integer.parseInt(args[++i]);
+                    break;
                 case "--max-num-results":
                     maxNumResults = Long.parseLong(args[++i]);
                     break;
                 case "--omit-self-redirects":
                     queryConfig.omitSelfRedirects = true;
                     break;
+                case "--query-limit":
+                    queryConfig.limits.put(args[++i], new QueryConfig.Limits(Long.parseLong(args[++i]),
+                            (long) (Double.parseDouble(args[++i]) * 1000)));
+                    break;
+                case "--slow-query-log":
+                    queryConfig.slowQueryMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    break;
+                case "--query-timeout":
+                    queryConfig.timeoutMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    break;
                 case "-v":
                     verbose = true;
                     break;
@@ -165,6 +244,19 @@ public class Main {
                     collectionUrls.add(args[++i]);
                     FeatureFlags.setSecondaryMode(true);
                     break;
+                case "--mirror":
+                    mirrorUrls.add(args[++i]);
+                    FeatureFlags.setSecondaryMode(true);
+                    break;
+                case "--replication-threads":
+                    replicationThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--read-replica-of":
+                    primaryDataDir = new File(args[++i]);
+                    break;
+                case "--catch-up-interval":
+                    catchUpIntervalMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    break;
                 case "--accept-writes":
                     FeatureFlags.setAcceptWrites(true);
                     break;
@@ -174,12 +266,21 @@ public class Main {
                 case "--replication-window":
                     replicationWindow = Long.parseLong(args[++i]);
                     break;
+                case "--replication-size-limit":
+                    replicationSizeLimit = Long.parseLong(args[++i]);
+                    break;
                 case "--checkpoint-dir":
                     checkpointDir = Path.of(args[++i]);
                     break;
                 case "--batch-size":
                     batchSize = Long.parseLong(args[++i]);
                     break;
+                case "--no-follow":
+                    followChanges = false;
+                    break;
+                case "--no-bootstrap":
+                    bootstrapCollections = false;
+                    break;
                 case "--service-worker":
                     Path path = Path.of(args[++i]);
                     try {
@@ -192,6 +293,9 @@ public class Main {
                 case "--warc-base-url":
                     warcBaseUrl = args[++i];
                     break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
                 case "-x":
                     FeatureFlags.setCdx14(true);
                     break;
@@ -204,16 +308,44 @@ public class Main {
             }
         }
 
+        if (virtualThreads && !WebExecutor.virtualThreadsSupported()) {
+            System.err.println("--virtual-threads requires Java 21 or later (running " + System.getProperty("java.version") + ")");
+            System.exit(1);
+        }
+        if (!followLaneSet) {
+            lanes.put(AdmissionControl.Lane.FOLLOW, AdmissionControl.followLane(virtualThreads ? maxConcurrentRequests : webThreads));
+        }
+
         try {
             UrlCanonicalizer canonicalizer = new UrlCanonicalizer(fuzzyYaml);
             Replay replay = null;
             if (warcBaseUrl != null) {
                 replay = new Replay(warcBaseUrl);
             }
-            try (DataStore dataStore = new DataStore(dataPath, maxOpenSstFiles, replicationWindow, scanCap, canonicalizer)) {
+            DataStore.Settings dataStoreSettings = new DataStore.Settings();
+            dataStoreSettings.collectStatistics = rocksdbStatistics;
+            dataStoreSettings.replicationSizeLimit = replicationSizeLimit;
+            dataStoreSettings.primaryDataDir = primaryDataDir;
+            dataStoreSettings.catchUpIntervalMillis = catchUpIntervalMillis;
+            try (DataStore dataStore = new DataStore(dataPath, maxOpenSstFiles, replicationWindow, scanCap, canonicalizer, dataStoreSettings)) {
                 Webapp controller = new Webapp(dataStore, verbose, dashboardConfig, canonicalizer, computedFields, maxNumResults, queryConfig, replay, serviceWorker, checkpointDir);
+                controller.admissionControl = new AdmissionControl(lanes);
+                for (String collectionUrl: collectionUrls) {
+                    ChangePollingThread cpt = new ChangePollingThread(collectionUrl, pollingInterval, batchSize, dataStore);
+                    cpt.follow = followChanges;
+                    cpt.bootstrap = bootstrapCollections;
+                    cpt.setDaemon(true);
+                    cpt.start();
+                }
+                for (String mirrorUrl : mirrorUrls) {
+                    ReplicationScheduler scheduler = new ReplicationScheduler(mirrorUrl, pollingInterval, batchSize, replicationThreads, dataStore);
+                    scheduler.bootstrap = bootstrapCollections;
+                    scheduler.setDaemon(true);
+                    scheduler.start();
+                }
                 if (undertow) {
-                    UWeb.UServer server = new UWeb.UServer(host, port, contextPath, controller, authorizer);
+                    WebExecutor executor = virtualThreads ? WebExecutor.virtual(maxConcurrentRequests) : null;
+                    UWeb.UServer server = new UWeb.UServer(host, port, contextPath, controller, authorizer, compression, executor);
                     server.start();
                     System.out.println("OutbackCDX http://" + (host == null ? "localhost" : host) + ":" + port);
                     synchronized (Main.class) {
@@ -222,14 +354,9 @@ public class Main {
                 } else {
                     System.setProperty("sun.net.httpserver.nodelay", "true");
                     HttpServer httpServer = HttpServer.create(new InetSocketAddress((host == null ? "localhost" : host), port), 0);
-                    httpServer.createContext(contextPath.isBlank() ? "/" : contextPath, new Web.SHandler(controller, authorizer));
-                    ExecutorService threadPool = Executors.newFixedThreadPool(webThreads);
+                    httpServer.createContext(contextPath.isBlank() ? "/" : contextPath, new Web.SHandler(controller, authorizer, compression));
+                    WebExecutor threadPool = virtualThreads ? WebExecutor.virtual(maxConcurrentRequests) : WebExecutor.fixed(webThreads);
                     httpServer.setExecutor(threadPool);
-                    for (String collectionUrl: collectionUrls) {
-                        ChangePollingThread cpt = new ChangePollingThread(collectionUrl, pollingInterval, batchSize, dataStore);
-                        cpt.setDaemon(true);
-                        cpt.start();
-                    }
                     try {
                         httpServer.start();
                         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -241,7 +368,7 @@ public class Main {
                             Main.class.wait();
                         }
                     } finally {
-                        threadPool.shutdown();
+                        threadPool.close();
                     }
                 }
             }
@@ -0,0 +1,694 @@
+package outbackcdx;
+
+import org.rocksdb.HistogramData;
+import org.rocksdb.HistogramType;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms exposed in Prometheus text format at /metrics.
+ *
+ * Recording is lock-free: every bucket is a LongAdder and the label lookups on the request path are nested maps keyed
+ * by the route pattern string, so recording a request doesn't allocate.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final long MS = 1_000_000;
+    private static final long[] LATENCY_BUCKETS = {MS, 2 * MS + MS / 2, 5 * MS, 10 * MS, 25 * MS, 50 * MS, 100 * MS,
+            250 * MS, 500 * MS, 1000 * MS, 2500 * MS, 5000 * MS, 10000 * MS, 30000 * MS, 60000 * MS};
+    private static final long[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216,
+            67108864, 268435456};
+    private static final long[] COUNT_BUCKETS = {0, 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000};
+
+    private static final TickerType[] TICKERS = {TickerType.BLOCK_CACHE_HIT, TickerType.BLOCK_CACHE_MISS,
+            TickerType.BLOCK_CACHE_BYTES_READ, TickerType.BYTES_READ, TickerType.BYTES_WRITTEN,
+            TickerType.ITER_BYTES_READ, TickerType.NUMBER_KEYS_READ, TickerType.NUMBER_KEYS_WRITTEN,
+            TickerType.STALL_MICROS};
+    private static final HistogramType[] HISTOGRAMS = {HistogramType.DB_GET, HistogramType.DB_SEEK,
+            HistogramType.DB_WRITE, HistogramType.COMPACTION_TIME};
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, QueryMetrics>> queries = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> ingested = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CompressionMetrics> compression = new ConcurrentHashMap<>();
+    private static final LongAdder uncompressed = new LongAdder();
+    private static final ConcurrentMap<String, ReplicationMetrics> replication = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, ReplicaMetrics>> replicas = new ConcurrentHashMap<>();
+    /**
+     * Replicas that haven't requested a collection's change feed for this long are forgotten.
+     */
+    private static final long REPLICA_EXPIRY_MILLIS = 24 * 60 * 60 * 1000;
+    /**
+     * Most secondaries tracked per collection. Anonymous clients are told apart by address, so without a limit
+     * requests to the change feed from many addresses would each add a label.
+     */
+    static final int MAX_REPLICAS_PER_COLLECTION = 64;
+
+    /**
+     * A fixed-bucket histogram. Buckets are counted separately and only made cumulative when rendered.
+     */
+    static class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @param scale multiplier converting recorded values to the exposed unit (e.g. 1e-9 for nanos to seconds)
+         */
+        void write(StringBuilder out, String name, String labels, double scale) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(number(bounds[i] * scale))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[bounds.length].sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(number(sum.sum() * scale)).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static class RouteMetrics {
+        final LongAdder[] statusClasses = new LongAdder[6];
+        final Histogram latency = new Histogram(LATENCY_BUCKETS);
+        final Histogram bytes = new Histogram(SIZE_BUCKETS);
+
+        RouteMetrics() {
+            for (int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static class QueryMetrics {
+        final Histogram scanned = new Histogram(COUNT_BUCKETS);
+        final Histogram returned = new Histogram(COUNT_BUCKETS);
+    }
+
+    private static class CompressionMetrics {
+        final LongAdder responses = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+    }
+
+    /**
+     * An exponentially weighted moving average of a per-second rate, decaying with a one minute time constant.
+     */
+    static class Rate {
+        private static final double TIME_CONSTANT_NANOS = 60e9;
+        private double rate;
+        private long updatedAt = System.nanoTime();
+
+        synchronized void add(double amount) {
+            decay(System.nanoTime());
+            rate += amount * 1e9 / TIME_CONSTANT_NANOS;
+        }
+
+        synchronized double perSecond() {
+            decay(System.nanoTime());
+            return rate;
+        }
+
+        private void decay(long now) {
+            rate *= Math.exp(-(now - updatedAt) / TIME_CONSTANT_NANOS);
+            updatedAt = now;
+        }
+    }
+
+    /**
+     * Replication state of a collection on a secondary. Sequence numbers are the primary's.
+     */
+    private static class ReplicationMetrics {
+        final LongAdder batches = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder polls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Histogram fetchLatency = new Histogram(LATENCY_BUCKETS);
+        final Histogram applyLatency = new Histogram(LATENCY_BUCKETS);
+        final Rate batchRate = new Rate();
+        final Rate byteRate = new Rate();
+        final Rate sequenceRate = new Rate();
+        volatile long caughtUpAt = System.currentTimeMillis();
+        volatile long appliedAt = -1;
+        /**
+         * The last sequence number applied locally.
+         */
+        volatile long sequenceNumber = -1;
+        /**
+         * The primary's latest sequence number, as last heard from it.
+         */
+        volatile long primarySequenceNumber = -1;
+        volatile int failures;
+
+        /**
+         * Seconds until we've applied everything the primary has, at the recent rate of progress, or -1 if we're not
+         * making any.
+         */
+        double catchUpSeconds() {
+            long behind = primarySequenceNumber - sequenceNumber;
+            if (behind <= 0 || sequenceNumber < 0) {
+                return 0;
+            }
+            double rate = sequenceRate.perSecond();
+            return rate > 0 ? behind / rate : -1;
+        }
+    }
+
+    /**
+     * A secondary reading a collection's change feed, as seen by the primary.
+     */
+    static class ReplicaMetrics {
+        volatile long requestedSequenceNumber;
+        /**
+         * The last sequence number a followed feed has sent, or -1 if it hasn't sent anything yet.
+         */
+        volatile long sentSequenceNumber = -1;
+        volatile long requestedAt;
+        volatile long seenAt;
+        volatile boolean following;
+
+        /**
+         * Records that a followed feed has sent everything up to sequenceNumber.
+         */
+        void sent(long sequenceNumber) {
+            sentSequenceNumber = sequenceNumber;
+            seenAt = System.currentTimeMillis();
+        }
+
+        long position() {
+            return Math.max(requestedSequenceNumber, sentSequenceNumber);
+        }
+    }
+
+    /**
+     * Records a finished request against the route pattern the router matched it to.
+     *
+     * @param route the matched route pattern, or null if no route matched (or the request was rejected before routing)
+     * @param status the response status, or -1 if none was sent
+     * @param bytes bytes written for the response body, as sent on the wire
+     */
+    static void recordRequest(String method, String route, int status, long startNanos, long bytes) {
+        RouteMetrics metrics = routes.computeIfAbsent(route == null ? "none" : route, r -> new ConcurrentHashMap<>())
+                .computeIfAbsent(methodLabel(method), m -> new RouteMetrics());
+        int statusClass = status / 100;
+        metrics.statusClasses[statusClass > 0 && statusClass < 6 ? statusClass : 0].increment();
+        metrics.latency.observe(System.nanoTime() - startNanos);
+        metrics.bytes.observe(bytes);
+    }
+
+    /**
+     * The method comes straight from the client, so anything nonstandard is counted as "other" to keep the number of
+     * series bounded.
+     */
+    private static String methodLabel(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "POST":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+            case "PATCH":
+                return method;
+            default:
+                return "other";
+        }
+    }
+
+    /**
+     * Records how many records a query scanned to produce the ones it returned.
+     */
+    static void recordQuery(String endpoint, String type, long scanned, long returned) {
+        QueryMetrics metrics = queries.computeIfAbsent(endpoint, e -> new ConcurrentHashMap<>())
+                .computeIfAbsent(type, t -> new QueryMetrics());
+        metrics.scanned.observe(scanned);
+        metrics.returned.observe(returned);
+    }
+
+    static void recordIngest(String collection, long records) {
+        ingested.computeIfAbsent(collection, c -> new LongAdder()).add(records);
+    }
+
+    /**
+     * Records a response compressed with the given encoding.
+     *
+     * @param bytesIn the response body before compression
+     * @param bytesOut the compressed body as sent
+     */
+    static void recordCompression(String encoding, long bytesIn, long bytesOut) {
+        CompressionMetrics metrics = compression.computeIfAbsent(encoding, e -> new CompressionMetrics());
+        metrics.responses.increment();
+        metrics.bytesIn.add(bytesIn);
+        metrics.bytesOut.add(bytesOut);
+    }
+
+    /**
+     * Records a response that accepted compression but was sent as is because it was below the minimum size.
+     */
+    static void recordUncompressed() {
+        uncompressed.increment();
+    }
+
+    private static ReplicationMetrics replication(String collection) {
+        return replication.computeIfAbsent(collection, c -> new ReplicationMetrics());
+    }
+
+    /**
+     * Records the outcome of one poll of the primary's change feed, or of a heartbeat on a followed one.
+     *
+     * @param primarySequenceNumber the primary's latest sequence number when it sent the response, or -1 if unknown
+     * @param caughtUp true if the primary had nothing more to send and everything it sent has been applied
+     */
+    static void recordReplication(String collection, long primarySequenceNumber, boolean caughtUp) {
+        ReplicationMetrics metrics = replication(collection);
+        metrics.polls.increment();
+        recordPrimarySequence(collection, primarySequenceNumber);
+        if (caughtUp) {
+            metrics.caughtUpAt = System.currentTimeMillis();
+            if (primarySequenceNumber > metrics.sequenceNumber) {
+                metrics.sequenceNumber = primarySequenceNumber;
+            }
+        }
+    }
+
+    /**
+     * Records the primary's latest sequence number for a collection, unless we've already heard of a later one.
+     */
+    static void recordPrimarySequence(String collection, long sequenceNumber) {
+        ReplicationMetrics metrics = replication(collection);
+        if (sequenceNumber > metrics.primarySequenceNumber) {
+            metrics.primarySequenceNumber = sequenceNumber;
+        }
+    }
+
+    /**
+     * Records how long the primary took to start responding to a change feed request.
+     */
+    static void recordReplicationFetch(String collection, long nanos) {
+        replication(collection).fetchLatency.observe(nanos);
+    }
+
+    /**
+     * Records a write of replicated batches to the local index.
+     *
+     * @param sequenceNumber the last of the primary's sequence numbers the write covers
+     */
+    static void recordReplicationApply(String collection, long sequenceNumber, int batches, long bytes, long nanos) {
+        ReplicationMetrics metrics = replication(collection);
+        metrics.applyLatency.observe(nanos);
+        metrics.batches.add(batches);
+        metrics.bytes.add(bytes);
+        metrics.batchRate.add(batches);
+        metrics.byteRate.add(bytes);
+        long previous = metrics.sequenceNumber;
+        if (sequenceNumber > previous) {
+            if (previous >= 0) {
+                metrics.sequenceRate.add(sequenceNumber - previous);
+            }
+            metrics.sequenceNumber = sequenceNumber;
+        }
+        // the primary has at least what it sent us, even if we haven't heard its latest yet
+        recordPrimarySequence(collection, sequenceNumber);
+        metrics.appliedAt = System.currentTimeMillis();
+    }
+
+    static void recordReplicationError(String collection) {
+        replication(collection).errors.increment();
+    }
+
+    /**
+     * Records the number of consecutive failed polls, zero once one succeeds.
+     */
+    static void recordReplicationFailures(String collection, int failures) {
+        replication(collection).failures = failures;
+    }
+
+    /**
+     * Records a secondary's request for a collection's change feed on the primary.
+     *
+     * @return the secondary's entry, for a followed feed to update as it sends
+     */
+    static ReplicaMetrics recordChangeFeedRequest(String collection, String client, long since, boolean follow) {
+        ConcurrentMap<String, ReplicaMetrics> byClient = replicas.computeIfAbsent(collection, c -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        ReplicaMetrics metrics = byClient.get(client);
+        if (metrics == null) {
+            if (byClient.size() >= MAX_REPLICAS_PER_COLLECTION) {
+                makeRoom(byClient, now);
+            }
+            metrics = byClient.computeIfAbsent(client, c -> new ReplicaMetrics());
+        }
+        metrics.requestedSequenceNumber = since;
+        metrics.sentSequenceNumber = -1;
+        metrics.requestedAt = now;
+        metrics.seenAt = now;
+        metrics.following = follow;
+        return metrics;
+    }
+
+    /**
+     * Forgets the secondaries not seen for {@link #REPLICA_EXPIRY_MILLIS}, or if there are none, the one seen longest
+     * ago.
+     */
+    private static synchronized void makeRoom(Map<String, ReplicaMetrics> byClient, long now) {
+        byClient.values().removeIf(m -> now - m.seenAt > REPLICA_EXPIRY_MILLIS);
+        while (byClient.size() >= MAX_REPLICAS_PER_COLLECTION) {
+            Map.Entry<String, ReplicaMetrics> oldest = null;
+            for (Map.Entry<String, ReplicaMetrics> entry : byClient.entrySet()) {
+                if (oldest == null || entry.getValue().seenAt < oldest.getValue().seenAt) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            byClient.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Replication state as JSON-friendly maps: what this node is replicating from its primaries, and the secondaries
+     * replicating from it.
+     */
+    static Map<String, Object> replicationStatus(DataStore dataStore) {
+        long now = System.currentTimeMillis();
+        Map<String, Object> secondary = new TreeMap<>();
+        new TreeMap<>(replication).forEach((collection, m) -> {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("primarySequenceNumber", m.primarySequenceNumber);
+            status.put("appliedSequenceNumber", m.sequenceNumber);
+            status.put("behind", m.sequenceNumber < 0 ? null : Math.max(0, m.primarySequenceNumber - m.sequenceNumber));
+            status.put("lagMillis", now - m.caughtUpAt);
+            status.put("millisSinceApply", m.appliedAt < 0 ? null : now - m.appliedAt);
+            status.put("batchesPerSecond", m.batchRate.perSecond());
+            status.put("bytesPerSecond", m.byteRate.perSecond());
+            status.put("meanFetchMillis", mean(m.fetchLatency) / MS);
+            status.put("meanApplyMillis", mean(m.applyLatency) / MS);
+            status.put("polls", m.polls.sum());
+            status.put("errors", m.errors.sum());
+            status.put("consecutiveFailures", m.failures);
+            double catchUp = m.catchUpSeconds();
+            status.put("estimatedCatchUpSeconds", catchUp < 0 ? null : catchUp);
+            secondary.put(collection, status);
+        });
+
+        Map<String, Object> primary = new TreeMap<>();
+        Map<String, Long> sequences = latestSequences(dataStore);
+        forEachReplica(now, (collection, client, m) -> {
+            Map<String, Object> status = new LinkedHashMap<>();
+            long latest = sequences.getOrDefault(collection, -1L);
+            status.put("requestedSequenceNumber", m.requestedSequenceNumber);
+            status.put("sentSequenceNumber", m.sentSequenceNumber < 0 ? null : m.sentSequenceNumber);
+            status.put("behind", latest < 0 ? null : Math.max(0, latest - m.position()));
+            status.put("following", m.following);
+            status.put("millisSinceRequest", now - m.requestedAt);
+            status.put("millisSinceSeen", now - m.seenAt);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> clients = (Map<String, Object>) primary.computeIfAbsent(collection, c -> new TreeMap<>());
+            clients.put(client, status);
+        });
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("replicating", secondary);
+        status.put("replicas", primary);
+        return status;
+    }
+
+    /**
+     * The latest sequence number of each open index.
+     */
+    private static Map<String, Long> latestSequences(DataStore dataStore) {
+        Map<String, Long> sequences = new TreeMap<>();
+        if (dataStore != null) {
+            for (Index index : dataStore.openIndexes()) {
+                sequences.put(index.name, index.getLatestSequenceNumber());
+            }
+        }
+        return sequences;
+    }
+
+    private static double mean(Histogram histogram) {
+        long count = histogram.count();
+        return count == 0 ? 0 : (double) histogram.sum.sum() / count;
+    }
+
+    /**
+     * Renders every metric, including RocksDB statistics for each open index, in Prometheus text format.
+     */
+    static String render(DataStore dataStore) {
+        StringBuilder out = new StringBuilder(16384);
+
+        header(out, "outbackcdx_http_requests_total", "counter", "HTTP requests by route pattern and status class");
+        forEachRoute((labels, metrics) -> {
+            for (int i = 0; i < metrics.statusClasses.length; i++) {
+                long count = metrics.statusClasses[i].sum();
+                if (count > 0) {
+                    out.append("outbackcdx_http_requests_total{").append(labels).append(",status=\"")
+                            .append(i == 0 ? "none" : i + "xx").append("\"} ").append(count).append('\n');
+                }
+            }
+        });
+        header(out, "outbackcdx_http_request_duration_seconds", "histogram", "Time from receiving a request until its response was fully written");
+        forEachRoute((labels, metrics) -> metrics.latency.write(out, "outbackcdx_http_request_duration_seconds", labels, 1e-9));
+        header(out, "outbackcdx_http_response_bytes", "histogram", "Response body bytes written, after compression");
+        forEachRoute((labels, metrics) -> metrics.bytes.write(out, "outbackcdx_http_response_bytes", labels, 1));
+
+        header(out, "outbackcdx_query_records_scanned", "histogram", "Index records scanned per query");
+        forEachQuery((labels, metrics) -> metrics.scanned.write(out, "outbackcdx_query_records_scanned", labels, 1));
+        header(out, "outbackcdx_query_records_returned", "histogram", "Records returned per query");
+        forEachQuery((labels, metrics) -> metrics.returned.write(out, "outbackcdx_query_records_returned", labels, 1));
+
+        header(out, "outbackcdx_ingested_records_total", "counter", "Records added via POST");
+        new TreeMap<>(ingested).forEach((collection, count) ->
+                out.append("outbackcdx_ingested_records_total{collection=\"").append(escape(collection)).append("\"} ")
+                        .append(count.sum()).append('\n'));
+
+        writeCompression(out);
+        writeReplication(out);
+        writeReplicas(out, dataStore);
+        if (dataStore != null) {
+            writeIndexes(out, dataStore);
+        }
+        return out.toString();
+    }
+
+    private static void writeCompression(StringBuilder out) {
+        Map<String, CompressionMetrics> sorted = new TreeMap<>(compression);
+        header(out, "outbackcdx_compressed_responses_total", "counter", "Responses compressed, by encoding");
+        sorted.forEach((encoding, m) -> encodingCounter(out, "outbackcdx_compressed_responses_total", encoding, m.responses.sum()));
+        header(out, "outbackcdx_compression_bytes_in_total", "counter", "Response body bytes before compression, by encoding");
+        sorted.forEach((encoding, m) -> encodingCounter(out, "outbackcdx_compression_bytes_in_total", encoding, m.bytesIn.sum()));
+        header(out, "outbackcdx_compression_bytes_out_total", "counter", "Response body bytes after compression, by encoding");
+        sorted.forEach((encoding, m) -> encodingCounter(out, "outbackcdx_compression_bytes_out_total", encoding, m.bytesOut.sum()));
+        header(out, "outbackcdx_compression_below_min_size_total", "counter", "Responses that accepted compression but were too small to compress");
+        out.append("outbackcdx_compression_below_min_size_total ").append(uncompressed.sum()).append('\n');
+    }
+
+    private static void encodingCounter(StringBuilder out, String name, String encoding, long value) {
+        out.append(name).append("{encoding=\"").append(escape(encoding)).append("\"} ").append(value).append('\n');
+    }
+
+    private static void writeReplication(StringBuilder out) {
+        Map<String, ReplicationMetrics> sorted = new TreeMap<>(replication);
+        long now = System.currentTimeMillis();
+        header(out, "outbackcdx_replication_lag_seconds", "gauge", "Seconds since this secondary last caught up with its primary");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_lag_seconds", collection, (now - m.caughtUpAt) / 1000.0));
+        header(out, "outbackcdx_replication_sequence_number", "gauge", "Primary sequence number most recently applied");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_sequence_number", collection, m.sequenceNumber));
+        header(out, "outbackcdx_replication_primary_sequence_number", "gauge", "Latest sequence number reported by the primary");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_primary_sequence_number", collection, m.primarySequenceNumber));
+        header(out, "outbackcdx_replication_seconds_since_apply", "gauge", "Seconds since replicated batches were last applied");
+        sorted.forEach((collection, m) -> {
+            if (m.appliedAt >= 0) {
+                gauge(out, "outbackcdx_replication_seconds_since_apply", collection, (now - m.appliedAt) / 1000.0);
+            }
+        });
+        header(out, "outbackcdx_replication_catch_up_seconds", "gauge", "Estimated seconds to apply everything the primary has, at the recent rate");
+        sorted.forEach((collection, m) -> {
+            double seconds = m.catchUpSeconds();
+            if (seconds >= 0) {
+                gauge(out, "outbackcdx_replication_catch_up_seconds", collection, seconds);
+            }
+        });
+        header(out, "outbackcdx_replication_consecutive_failures", "gauge", "Polls of the primary's change feed that have failed in a row");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_consecutive_failures", collection, m.failures));
+        header(out, "outbackcdx_replication_polls_total", "counter", "Polls of the primary's change feed");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_polls_total", collection, m.polls.sum()));
+        header(out, "outbackcdx_replication_errors_total", "counter", "Polls of the primary's change feed that failed");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_errors_total", collection, m.errors.sum()));
+        header(out, "outbackcdx_replication_batches_total", "counter", "Write batches applied from the primary");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_batches_total", collection, m.batches.sum()));
+        header(out, "outbackcdx_replication_bytes_total", "counter", "Bytes of write batches applied from the primary");
+        sorted.forEach((collection, m) -> gauge(out, "outbackcdx_replication_bytes_total", collection, m.bytes.sum()));
+        header(out, "outbackcdx_replication_fetch_duration_seconds", "histogram", "Time from requesting the primary's change feed until it began responding");
+        sorted.forEach((collection, m) -> m.fetchLatency.write(out, "outbackcdx_replication_fetch_duration_seconds",
+                "collection=\"" + escape(collection) + "\"", 1e-9));
+        header(out, "outbackcdx_replication_apply_duration_seconds", "histogram", "Time to write a group of replicated batches locally");
+        sorted.forEach((collection, m) -> m.applyLatency.write(out, "outbackcdx_replication_apply_duration_seconds",
+                "collection=\"" + escape(collection) + "\"", 1e-9));
+    }
+
+    private static void writeReplicas(StringBuilder out, DataStore dataStore) {
+        long now = System.currentTimeMillis();
+        StringBuilder behind = new StringBuilder();
+        StringBuilder requested = new StringBuilder();
+        StringBuilder seen = new StringBuilder();
+        Map<String, Long> sequences = latestSequences(dataStore);
+        forEachReplica(now, (collection, client, m) -> {
+            String labels = "{collection=\"" + escape(collection) + "\",client=\"" + escape(client) + "\"} ";
+            requested.append("outbackcdx_replica_sequence_number").append(labels).append(m.position()).append('\n');
+            seen.append("outbackcdx_replica_seconds_since_seen").append(labels).append(number((now - m.seenAt) / 1000.0)).append('\n');
+            Long latest = sequences.get(collection);
+            if (latest != null) {
+                behind.append("outbackcdx_replica_behind").append(labels)
+                        .append(Math.max(0, latest - m.position())).append('\n');
+            }
+        });
+        header(out, "outbackcdx_replica_sequence_number", "gauge", "Sequence number each secondary last requested from our change feed, or was last sent");
+        out.append(requested);
+        header(out, "outbackcdx_replica_behind", "gauge", "Sequence numbers each secondary is behind our latest");
+        out.append(behind);
+        header(out, "outbackcdx_replica_seconds_since_seen", "gauge", "Seconds since each secondary last requested or was sent our changes");
+        out.append(seen);
+    }
+
+    private interface ReplicaVisitor {
+        void visit(String collection, String client, ReplicaMetrics metrics);
+    }
+
+    /**
+     * Visits the secondaries of each collection in order, forgetting any not seen for {@link #REPLICA_EXPIRY_MILLIS}.
+     */
+    private static void forEachReplica(long now, ReplicaVisitor visitor) {
+        new TreeMap<>(replicas).forEach((collection, byClient) -> {
+            byClient.values().removeIf(m -> now - m.seenAt > REPLICA_EXPIRY_MILLIS);
+            new TreeMap<>(byClient).forEach((client, m) -> visitor.visit(collection, client, m));
+        });
+    }
+
+    private static void writeIndexes(StringBuilder out, DataStore dataStore) {
+        Map<String, Index> indexes = new TreeMap<>();
+        for (Index index : dataStore.openIndexes()) {
+            indexes.put(index.name, index);
+        }
+
+        header(out, "outbackcdx_index_sequence_number", "gauge", "Latest RocksDB sequence number");
+        indexes.forEach((name, index) -> gauge(out, "outbackcdx_index_sequence_number", name, index.getLatestSequenceNumber()));
+        header(out, "outbackcdx_index_estimated_records", "gauge", "Estimated number of records in the index");
+        indexes.forEach((name, index) -> gauge(out, "outbackcdx_index_estimated_records", name, index.estimatedRecordCount()));
+        if (dataStore.isReadReplica()) {
+            long now = System.currentTimeMillis();
+            header(out, "outbackcdx_read_replica_lag_seconds", "gauge", "Time since a read replica last caught up with its primary");
+            indexes.forEach((name, index) -> {
+                if (index.caughtUpAt >= 0) {
+                    gauge(out, "outbackcdx_read_replica_lag_seconds", name, (now - index.caughtUpAt) / 1000.0);
+                }
+            });
+        }
+        header(out, "outbackcdx_rocksdb_pending_compaction_bytes", "gauge", "Estimated bytes compaction needs to rewrite");
+        indexes.forEach((name, index) -> {
+            try {
+                gauge(out, "outbackcdx_rocksdb_pending_compaction_bytes", name,
+                        index.db.getLongProperty("rocksdb.estimate-pending-compaction-bytes"));
+            } catch (RocksDBException e) {
+                // property unavailable, leave it out
+            }
+        });
+
+        for (TickerType ticker : TICKERS) {
+            String name = "outbackcdx_rocksdb_" + ticker.name().toLowerCase(Locale.ROOT) + "_total";
+            header(out, name, "counter", "RocksDB ticker " + ticker.name());
+            indexes.forEach((collection, index) -> {
+                if (index.statistics != null) {
+                    gauge(out, name, collection, index.statistics.getTickerCount(ticker));
+                }
+            });
+        }
+        for (HistogramType histogram : HISTOGRAMS) {
+            String name = "outbackcdx_rocksdb_" + histogram.name().toLowerCase(Locale.ROOT) + "_micros";
+            header(out, name, "summary", "RocksDB histogram " + histogram.name());
+            indexes.forEach((collection, index) -> {
+                Statistics statistics = index.statistics;
+                if (statistics == null) return;
+                HistogramData data = statistics.getHistogramData(histogram);
+                String labels = "collection=\"" + escape(collection) + "\"";
+                out.append(name).append('{').append(labels).append(",quantile=\"0.5\"} ").append(number(data.getMedian())).append('\n');
+                out.append(name).append('{').append(labels).append(",quantile=\"0.95\"} ").append(number(data.getPercentile95())).append('\n');
+                out.append(name).append('{').append(labels).append(",quantile=\"0.99\"} ").append(number(data.getPercentile99())).append('\n');
+                out.append(name).append("_sum{").append(labels).append("} ").append(data.getSum()).append('\n');
+                out.append(name).append("_count{").append(labels).append("} ").append(data.getCount()).append('\n');
+            });
+        }
+    }
+
+    private interface Visitor<T> {
+        void visit(String labels, T metrics);
+    }
+
+    private static void forEachRoute(Visitor<RouteMetrics> visitor) {
+        new TreeMap<>(routes).forEach((route, byMethod) -> new TreeMap<>(byMethod).forEach((method, metrics) ->
+                visitor.visit("method=\"" + method + "\",route=\"" + escape(route) + "\"", metrics)));
+    }
+
+    private static void forEachQuery(Visitor<QueryMetrics> visitor) {
+        new TreeMap<>(queries).forEach((endpoint, byType) -> new TreeMap<>(byType).forEach((type, metrics) ->
+                visitor.visit("endpoint=\"" + endpoint + "\",type=\"" + escape(type) + "\"", metrics)));
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String collection, double value) {
+        out.append(name).append("{collection=\"").append(escape(collection)).append("\"} ").append(number(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
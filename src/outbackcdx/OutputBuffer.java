@@ -0,0 +1,167 @@
+package outbackcdx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A reusable byte buffer in front of a response stream. The text output formats write into it directly, encoding
+ * strings as UTF-8 (with a fast path for ASCII) and formatting numbers without allocating, so a large response is
+ * handed to the server in a few big chunks rather than one small write per field.
+ *
+ * Not thread-safe.
+ */
+class OutputBuffer extends OutputStream {
+    static final int DEFAULT_SIZE = 64 * 1024;
+    private static final int MIN_SIZE = 32; // room for any long
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(UTF_8);
+    private static final byte[] LONG_MIN = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+
+    OutputBuffer(OutputStream out) {
+        this(out, DEFAULT_SIZE);
+    }
+
+    OutputBuffer(OutputStream out, int size) {
+        this.out = out;
+        this.buf = new byte[Math.max(size, MIN_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buf.length - pos) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    /**
+     * Writes a string as UTF-8.
+     */
+    void write(String s) throws IOException {
+        int len = s.length();
+        int i = 0;
+        while (i < len) {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            int end = Math.min(len, i + buf.length - pos);
+            for (; i < end; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    write(s.substring(i).getBytes(UTF_8));
+                    return;
+                }
+                buf[pos++] = (byte) c;
+            }
+        }
+    }
+
+    /**
+     * Writes a number in decimal.
+     */
+    void write(long n) throws IOException {
+        if (n == Long.MIN_VALUE) {
+            write(LONG_MIN);
+            return;
+        }
+        if (buf.length - pos < 20) {
+            flushBuffer();
+        }
+        if (n < 0) {
+            buf[pos++] = '-';
+            n = -n;
+        }
+        int digits = 1;
+        for (long x = n; x >= 10; x /= 10) {
+            digits++;
+        }
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        pos = end;
+    }
+
+    /**
+     * Writes a string as a quoted JSON string, escaping the same characters Jackson does by default.
+     */
+    void writeJsonString(String s) throws IOException {
+        write('"');
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            if (i > start) {
+                write(s.substring(start, i));
+            }
+            start = i + 1;
+            write('\\');
+            switch (c) {
+                case '"': write('"'); break;
+                case '\\': write('\\'); break;
+                case '\b': write('b'); break;
+                case '\t': write('t'); break;
+                case '\n': write('n'); break;
+                case '\f': write('f'); break;
+                case '\r': write('r'); break;
+                default:
+                    write('u');
+                    write('0');
+                    write('0');
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xf]);
+            }
+        }
+        if (start == 0) {
+            write(s);
+        } else if (start < len) {
+            write(s.substring(start));
+        }
+        write('"');
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -27,6 +27,11 @@ public class Query {
     boolean allFields;
     boolean outputJson;
     long limit;
+    ScanBudget budget;
+    /**
+     * Collects a per-query execution profile, or null when not profiling.
+     */
+    QueryProfile profile;
     Predicate<Capture> predicate;
     long from = MIN_TIMESTAMP;
     long to = MAX_TIMESTAMP;
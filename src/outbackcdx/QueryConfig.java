@@ -1,5 +1,82 @@
 package outbackcdx;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class QueryConfig {
     public boolean omitSelfRedirects = false;
+
+    /**
+     * Default deadline for a single query in milliseconds, or 0 for none.
+     */
+    public long timeoutMillis = 0;
+
+    /**
+     * Queries taking at least this long are logged with their execution profile, or 0 to disable the slow query log.
+     */
+    public long slowQueryMillis = 0;
+
+    /**
+     * Scan cap and timeout overrides keyed by endpoint ("cdx", "xml"), user ("user:NAME") or role ("role:NAME").
+     */
+    public final Map<String, Limits> limits = new HashMap<>();
+
+    public static class Limits {
+        public final long scanCap;
+        public final long timeoutMillis;
+
+        public Limits(long scanCap, long timeoutMillis) {
+            this.scanCap = scanCap;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * Builds the scan budget for a request to the given endpoint. A user override takes precedence over a role
+     * override, which takes precedence over an endpoint override. If several of the user's roles have overrides the
+     * most generous one applies. Clients can ask for a shorter deadline with the timeout parameter (in seconds) but
+     * not a longer one.
+     *
+     * @throws Web.ResponseException with a 400 response if the timeout parameter isn't a number
+     */
+    ScanBudget budgetFor(String endpoint, Web.Request request, long defaultScanCap) throws Web.ResponseException {
+        long scanCap = defaultScanCap;
+        long timeout = timeoutMillis;
+
+        Limits override = request.username() == null ? null : limits.get("user:" + request.username());
+        if (override == null) {
+            for (String role : request.roles()) {
+                Limits candidate = limits.get("role:" + role);
+                if (candidate != null && (override == null || candidate.scanCap > override.scanCap)) {
+                    override = candidate;
+                }
+            }
+        }
+        if (override == null) {
+            override = limits.get(endpoint);
+        }
+        if (override != null) {
+            scanCap = override.scanCap;
+            timeout = override.timeoutMillis;
+        }
+
+        String timeoutParam = request.param("timeout");
+        if (timeoutParam != null) {
+            double seconds;
+            try {
+                seconds = Double.parseDouble(timeoutParam);
+            } catch (NumberFormatException e) {
+                seconds = Double.NaN;
+            }
+            if (!(seconds > 0) || Double.isInfinite(seconds)) {
+                throw new Web.ResponseException(Web.badRequest("timeout must be a positive number of seconds"));
+            }
+            long requested = Math.max(1, (long) Math.min(seconds * 1000, ScanBudget.MAX_TIMEOUT_MILLIS));
+            if (timeout == 0 || requested < timeout) {
+                timeout = requested;
+            }
+        }
+
+        return new ScanBudget(scanCap, timeout, request::clientDisconnected);
+    }
 }
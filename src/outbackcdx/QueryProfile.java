@@ -0,0 +1,149 @@
+package outbackcdx;
+
+import org.rocksdb.PerfContext;
+import org.rocksdb.PerfLevel;
+import org.rocksdb.RocksDB;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Where the time and work in a single query went: what it scanned, what each filter threw away, how long until the
+ * first byte and RocksDB's per-thread perf counters. Collected when the slow query log is on or the client asks for
+ * ?explain=1, and serialized to JSON for both.
+ *
+ * RocksDB's PerfContext is thread-local, so the counters are only meaningful when the query runs start to finish on
+ * one platform thread.
+ */
+class QueryProfile {
+    public String collection;
+    public String client;
+    public Map<String, String> params = new TreeMap<>();
+    public String urlkey;
+    public String matchType;
+    public String sort;
+    public long scanned;
+    public long returned;
+    public String terminated;
+    /**
+     * Records rejected by each stage of filtering, in the order they're applied.
+     */
+    public Map<String, Long> filtered = new LinkedHashMap<>();
+    public int aliasHops;
+    public double firstByteMillis = -1;
+    public double totalMillis;
+    public long bytesSent;
+    public Map<String, Long> rocksdb = new LinkedHashMap<>();
+
+    private final long start = System.nanoTime();
+    private RocksDB db;
+    private PerfLevel previousPerfLevel;
+
+    QueryProfile(String collection, Web.Request request) {
+        this.collection = collection;
+        this.client = request.client();
+        request.params().forEach((name, value) -> {
+            if (!name.equals("collection") && !name.equals("explain")) {
+                params.put(name, value);
+            }
+        });
+    }
+
+    /**
+     * Wraps a filter so the records it rejects are counted under the given name.
+     */
+    Predicate<Capture> counting(String name, Predicate<Capture> predicate) {
+        filtered.putIfAbsent(name, 0L);
+        return capture -> {
+            if (predicate.test(capture)) {
+                return true;
+            }
+            filtered.merge(name, 1L, Long::sum);
+            return false;
+        };
+    }
+
+    /**
+     * Starts counting RocksDB perf events on the current thread.
+     */
+    void startPerfContext(RocksDB db) {
+        this.db = db;
+        previousPerfLevel = db.getPerfLevel();
+        db.setPerfLevel(PerfLevel.ENABLE_COUNT);
+        db.getPerfContext().reset();
+    }
+
+    /**
+     * Counts the bytes written through the returned stream and notes when the first one went out.
+     */
+    OutputStream measure(OutputStream out) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                firstByte();
+                out.write(b);
+                bytesSent++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                firstByte();
+                out.write(b, off, len);
+                bytesSent += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    private void firstByte() {
+        if (firstByteMillis < 0) {
+            firstByteMillis = millisSince(start);
+        }
+    }
+
+    /**
+     * Records the final counts and stops the perf context.
+     */
+    void finish(Query query, long returned) {
+        this.urlkey = query.urlkey;
+        this.matchType = query.matchType.name().toLowerCase();
+        this.sort = query.sort.name().toLowerCase();
+        this.returned = returned;
+        if (query.budget != null) {
+            scanned = query.budget.scanned();
+            terminated = query.budget.exhausted() == null ? null : query.budget.exhausted().toString();
+        }
+        if (db != null) {
+            PerfContext perf = db.getPerfContext();
+            rocksdb.put("blockReadCount", perf.getBlockReadCount());
+            rocksdb.put("blockReadBytes", perf.getBlockReadByte());
+            rocksdb.put("blockCacheHitCount", perf.getBlockCacheHitCount());
+            rocksdb.put("seekChildSeekCount", perf.getSeekChildSeekCount());
+            rocksdb.put("seekOnMemtableCount", perf.getSeekOnMemtableCount());
+            rocksdb.put("internalKeySkippedCount", perf.getInternalKeySkippedCount());
+            rocksdb.put("internalDeleteSkippedCount", perf.getInternalDeleteSkippedCount());
+            rocksdb.put("iterReadBytes", perf.getIterReadBytes());
+            db.setPerfLevel(previousPerfLevel == PerfLevel.UNINITIALIZED ? PerfLevel.DISABLE : previousPerfLevel);
+            db = null;
+        }
+        totalMillis = millisSince(start);
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,208 @@
+package outbackcdx;
+
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The apply stage of a secondary's replication pipeline. The fetch stage queues write batches as they arrive from the
+ * primary and carries on downloading while this thread writes them.
+ *
+ * Whatever has queued up by the time the previous write finishes is coalesced into a single synced write, together
+ * with the sequence number of its last batch, so a backlog of small batches costs one fsync per group rather than one
+ * each. The queue is bounded by size, so a slow disk holds back the download rather than filling the heap.
+ *
+ * The thread exits after {@link #IDLE_MILLIS} with nothing to do and is started again by the next batch, so mirroring
+ * thousands of mostly idle collections doesn't keep thousands of threads around.
+ */
+class ReplicationApplier {
+    static final long MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+    static final long MAX_COALESCED_BYTES = 8 * 1024 * 1024;
+    static final long IDLE_MILLIS = 60 * 1000;
+    private static final int HEADER_SIZE = 12; // 8-byte sequence number and 4-byte count
+
+    interface Committer {
+        void commit(long sequenceNumber, byte[] writeBatch) throws RocksDBException;
+    }
+
+    interface Listener {
+        /**
+         * Called after each successful write.
+         *
+         * @param sequenceNumber the last sequence number covered by the write
+         */
+        void applied(long sequenceNumber, int batches, long bytes, long nanos);
+    }
+
+    private final String name;
+    private final Committer committer;
+    private final Listener listener;
+    private Thread thread;
+    private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean applying;
+    private Exception failure;
+
+    ReplicationApplier(String name, Committer committer) {
+        this(name, committer, null);
+    }
+
+    ReplicationApplier(String name, Committer committer, Listener listener) {
+        this.name = name;
+        this.committer = committer;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a batch, waiting if the queue is full.
+     *
+     * @throws IOException if an earlier batch failed to apply
+     */
+    synchronized void put(long sequenceNumber, byte[] writeBatch) throws IOException, InterruptedException {
+        if (writeBatch.length < HEADER_SIZE) {
+            throw new IOException("truncated write batch " + sequenceNumber);
+        }
+        while (failure == null && queuedBytes >= MAX_QUEUED_BYTES) {
+            wait();
+        }
+        checkFailure();
+        queue.add(new Batch(sequenceNumber, writeBatch));
+        queuedBytes += writeBatch.length;
+        if (thread == null) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until everything queued has been written.
+     *
+     * @throws IOException if a batch failed to apply
+     */
+    synchronized void await() throws IOException, InterruptedException {
+        while (failure == null && (applying || !queue.isEmpty())) {
+            wait();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Discards anything still queued and forgets any failure, once the write in progress has finished.
+     */
+    synchronized void reset() throws InterruptedException {
+        queue.clear();
+        queuedBytes = 0;
+        while (applying) {
+            wait();
+        }
+        failure = null;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("applying replicated batches failed", failure);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Batch> group = new ArrayList<>();
+            synchronized (this) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    while (queue.isEmpty() || failure != null) {
+                        long remaining = idleSince + IDLE_MILLIS - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            thread = null;
+                            return;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    thread = null;
+                    return;
+                }
+                long bytes = 0;
+                while (!queue.isEmpty() && (group.isEmpty() || bytes + queue.peek().data.length <= MAX_COALESCED_BYTES)) {
+                    Batch batch = queue.poll();
+                    bytes += batch.data.length;
+                    group.add(batch);
+                }
+                queuedBytes -= bytes;
+                applying = true;
+                notifyAll();
+            }
+            Exception error = null;
+            Batch last = group.get(group.size() - 1);
+            long start = System.nanoTime();
+            try {
+                byte[] merged = merge(group);
+                committer.commit(last.sequenceNumber, merged);
+                if (listener != null) {
+                    listener.applied(last.sequenceNumber + Math.max(count(last.data), 1) - 1, group.size(),
+                            merged.length, System.nanoTime() - start);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+            synchronized (this) {
+                applying = false;
+                if (error != null) {
+                    failure = error;
+                    queue.clear();
+                    queuedBytes = 0;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Concatenates write batches into one, the same way RocksDB appends them: the records of each after the first
+     * header, with the counts summed.
+     */
+    static byte[] merge(List<Batch> batches) {
+        if (batches.size() == 1) {
+            return batches.get(0).data;
+        }
+        int length = HEADER_SIZE;
+        int count = 0;
+        for (Batch batch : batches) {
+            length += batch.data.length - HEADER_SIZE;
+            count += count(batch.data);
+        }
+        byte[] merged = new byte[length];
+        System.arraycopy(batches.get(0).data, 0, merged, 0, 8);
+        ByteBuffer.wrap(merged, 8, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(count);
+        int position = HEADER_SIZE;
+        for (Batch batch : batches) {
+            System.arraycopy(batch.data, HEADER_SIZE, merged, position, batch.data.length - HEADER_SIZE);
+            position += batch.data.length - HEADER_SIZE;
+        }
+        return merged;
+    }
+
+    /**
+     * The number of records in a write batch, each of which takes a sequence number.
+     */
+    private static int count(byte[] writeBatch) {
+        return ByteBuffer.wrap(writeBatch, 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    static class Batch {
+        final long sequenceNumber;
+        final byte[] data;
+
+        Batch(long sequenceNumber, byte[] data) {
+            this.sequenceNumber = sequenceNumber;
+            this.data = data;
+        }
+    }
+}
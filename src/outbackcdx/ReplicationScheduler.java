@@ -0,0 +1,204 @@
+package outbackcdx;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static outbackcdx.Json.JSON_MAPPER;
+
+/**
+ * Mirrors every collection on a primary using a fixed pool of worker threads, rather than a ChangePollingThread
+ * (and a poll loop) per collection.
+ *
+ * Each polling interval it fetches the primary's /api/sequences, picking up any collection it hasn't seen before, and
+ * queues those whose sequence number has moved since we last caught up with them. A worker replicates one window of
+ * a queued collection and puts it back on the end of the queue if the primary has more, so collections with a backlog
+ * share the workers fairly while idle ones cost nothing but their line in the listing. Primaries without
+ * /api/sequences are handled by listing /api/collections and polling every collection each interval.
+ */
+class ReplicationScheduler extends Thread {
+    static final int DEFAULT_THREADS = 4;
+
+    private final String primaryUrl;
+    private final DataStore dataStore;
+    private final int pollingInterval;
+    private final long batchSize;
+    private final ExecutorService workers;
+    private final Map<String, ChangePollingThread> pollers = new ConcurrentHashMap<>();
+    /**
+     * The primary's sequence number for each collection as of the last time we caught up with it.
+     */
+    private final Map<String, Long> caughtUpAt = new ConcurrentHashMap<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private boolean sequencesSupported = true;
+    boolean bootstrap = true;
+    volatile boolean shuttingDown = false;
+
+    ReplicationScheduler(String primaryUrl, int pollingInterval, long batchSize, int threads, DataStore dataStore) {
+        super("ReplicationScheduler(" + primaryUrl + ")");
+        this.primaryUrl = primaryUrl.replaceFirst("/$", "");
+        this.pollingInterval = pollingInterval;
+        this.batchSize = batchSize;
+        this.dataStore = dataStore;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, getName() + " worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shuttingDown = true;
+                for (ChangePollingThread poller : pollers.values()) {
+                    poller.shuttingDown = true;
+                }
+                try {
+                    ReplicationScheduler.this.join(60000);
+                } catch (InterruptedException e) {
+                    // ok
+                }
+            }
+        });
+    }
+
+    public void run() {
+        while (!shuttingDown) {
+            long startTime = System.currentTimeMillis();
+            try {
+                for (Map.Entry<String, Long> entry : fetchSequences().entrySet()) {
+                    String collection = entry.getKey();
+                    long sequenceNumber = entry.getValue();
+                    Metrics.recordPrimarySequence(collection, sequenceNumber);
+                    if (sequenceNumber < 0 || !Objects.equals(caughtUpAt.get(collection), sequenceNumber)) {
+                        schedule(collection, sequenceNumber);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(new Date() + " " + getName() + ": unable to list collections on " + primaryUrl + ": " + e);
+            }
+
+            long sleepTime = (pollingInterval * 1000L) - (System.currentTimeMillis() - startTime);
+            if (sleepTime > 0 && !shuttingDown) {
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    System.out.println(new Date() + " " + getName() + ": Received interruption at " + System.currentTimeMillis());
+                    break;
+                }
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // ok
+        }
+        for (ChangePollingThread poller : pollers.values()) {
+            poller.awaitApplied();
+        }
+        System.err.println(new Date() + " " + getName() + ": finished gracefully");
+    }
+
+    /**
+     * The primary's latest sequence number for each of its collections, or -1 for each if it can only list them.
+     */
+    private Map<String, Long> fetchSequences() throws IOException {
+        if (sequencesSupported) {
+            Map<String, Long> sequences = get("/api/sequences", new TypeReference<Map<String, Long>>() {});
+            if (sequences != null) {
+                return sequences;
+            }
+            System.out.println(new Date() + " " + getName() + ": primary doesn't report sequence numbers, polling every collection");
+            sequencesSupported = false;
+        }
+        List<String> collections = get("/api/collections", new TypeReference<List<String>>() {});
+        if (collections == null) {
+            throw new IOException("primary has no /api/collections");
+        }
+        Map<String, Long> sequences = new LinkedHashMap<>();
+        for (String collection : collections) {
+            sequences.put(collection, -1L);
+        }
+        return sequences;
+    }
+
+    /**
+     * Fetches and parses a JSON document from the primary, or returns null if it's not found.
+     */
+    private <T> T get(String path, TypeReference<T> type) throws IOException {
+        HttpGet request = new HttpGet(primaryUrl + path);
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(10 * 1000)
+                .setSocketTimeout(60 * 1000)
+                .setConnectionRequestTimeout(5 * 1000).build());
+        try (CloseableHttpResponse response = ChangePollingThread.HTTP_CLIENT.execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 404) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            } else if (status != 200) {
+                throw new IOException("Received '" + response.getStatusLine() + "' response from " + request.getURI());
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                return JSON_MAPPER.readValue(in, type);
+            }
+        }
+    }
+
+    private void schedule(String collection, long sequenceNumber) {
+        if (!DataStore.isValidCollectionName(collection)) {
+            return;
+        }
+        if (queued.add(collection)) {
+            workers.execute(() -> replicate(collection, sequenceNumber));
+        }
+    }
+
+    /**
+     * Replicates one window of a collection, requeuing it if the primary has more.
+     */
+    private void replicate(String collection, long sequenceNumber) {
+        boolean more = false;
+        try {
+            ChangePollingThread poller = pollers.get(collection);
+            if (poller == null) {
+                poller = new ChangePollingThread(primaryUrl + "/" + collection, pollingInterval, batchSize, dataStore);
+                // a followed feed would hold a worker for as long as it stays open
+                poller.follow = false;
+                poller.bootstrap = bootstrap;
+                pollers.put(collection, poller);
+            }
+            more = poller.poll();
+            if (!more && poller.failures == 0) {
+                caughtUpAt.put(collection, sequenceNumber);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Metrics.recordReplicationError(collection);
+            System.err.println(new Date() + " " + getName() + ": unable to replicate " + collection);
+            e.printStackTrace();
+        } finally {
+            queued.remove(collection);
+        }
+        if (more && !shuttingDown) {
+            schedule(collection, sequenceNumber);
+        }
+    }
+}
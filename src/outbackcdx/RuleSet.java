@@ -0,0 +1,232 @@
+package outbackcdx;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TreeSet;
+
+/**
+ * The access rules that may apply to a SSURT, ordered least specific first, compiled for matching against 14-digit
+ * capture timestamps without converting them to dates.
+ *
+ * Capture date ranges are turned into exclusive timestamp bounds up front. When enough rules have capture ranges the
+ * timeline is also cut at every range bound and each piece lists the rules whose range covers it, so a lookup
+ * binary searches for the capture's piece and never looks at rules whose range excludes it.
+ *
+ * Conditions on the access time are worked out once per query by {@link #at(Date)}: accessed ranges become a flag
+ * per rule and embargo periods become a capture timestamp cut-off.
+ */
+class RuleSet {
+    static final RuleSet EMPTY = new RuleSet(new AccessRule[0]);
+    private static final int INDEX_MIN_RANGES = 8;
+    private static final int INDEX_MAX_ENTRIES = 1 << 16;
+    /**
+     * Embargo cut-offs are only exact outside this margin either side of the access time minus the period, because
+     * month lengths and daylight saving make adding a period to a local time uneven. Captures inside it are checked
+     * with the full calendar calculation.
+     */
+    private static final long PERIOD_MARGIN_SECONDS = 8 * 24 * 60 * 60;
+
+    final AccessRule[] rules;
+    /**
+     * True if no rule depends on the access time, so decisions only vary by capture time and access point.
+     */
+    final boolean timeInvariant;
+    /**
+     * Sorted UTC days (like 20190128) on which some rule's capture date range starts or ends.
+     */
+    final long[] boundaryDays;
+    private final long[] capturedAfter;
+    private final long[] capturedBefore;
+    /**
+     * Sorted distinct capture range bounds, or null if the rules aren't indexed. Timestamp t falls in piece 2k+1 if
+     * it equals bounds[k], otherwise in piece 2k where k is its insertion point.
+     */
+    private final long[] bounds;
+    /**
+     * For each piece, the indexes of the rules whose capture range covers it, most specific first.
+     */
+    private final int[][] pieces;
+    private final Evaluator timeInvariantEvaluator;
+
+    RuleSet(AccessRule[] rules) {
+        this.rules = rules;
+        capturedAfter = new long[rules.length];
+        capturedBefore = new long[rules.length];
+        boolean timeInvariant = true;
+        int ranges = 0;
+        TreeSet<Long> days = new TreeSet<>();
+        TreeSet<Long> bounds = new TreeSet<>();
+        for (int i = 0; i < rules.length; i++) {
+            AccessRule rule = rules[i];
+            if (rule.accessed != null || hasPeriod(rule)) {
+                timeInvariant = false;
+            }
+            capturedAfter[i] = Long.MIN_VALUE;
+            capturedBefore[i] = Long.MAX_VALUE;
+            if (rule.captured != null) {
+                if (rule.captured.start != null) {
+                    days.add(AccessControl.utcDay(rule.captured.start));
+                    capturedAfter[i] = timestamp(Math.floorDiv(rule.captured.start.getTime(), 1000));
+                    bounds.add(capturedAfter[i]);
+                }
+                if (rule.captured.end != null) {
+                    days.add(AccessControl.utcDay(rule.captured.end));
+                    capturedBefore[i] = timestamp(Math.floorDiv(rule.captured.end.getTime() + 999, 1000));
+                    bounds.add(capturedBefore[i]);
+                }
+                ranges++;
+            }
+        }
+        this.timeInvariant = timeInvariant;
+        this.boundaryDays = days.stream().mapToLong(Long::longValue).toArray();
+
+        if (ranges >= INDEX_MIN_RANGES && (2L * bounds.size() + 1) * rules.length <= INDEX_MAX_ENTRIES) {
+            this.bounds = bounds.stream().mapToLong(Long::longValue).toArray();
+            this.pieces = buildPieces(this.bounds);
+        } else {
+            this.bounds = null;
+            this.pieces = null;
+        }
+        this.timeInvariantEvaluator = timeInvariant ? new Evaluator(null, null, null, null) : null;
+    }
+
+    private int[][] buildPieces(long[] bounds) {
+        int[][] pieces = new int[bounds.length * 2 + 1][];
+        int[] scratch = new int[rules.length];
+        for (int piece = 0; piece < pieces.length; piece++) {
+            int k = piece / 2;
+            int n = 0;
+            for (int i = rules.length - 1; i >= 0; i--) {
+                boolean covers;
+                if (piece % 2 == 1) {
+                    covers = capturedAfter[i] < bounds[k] && bounds[k] < capturedBefore[i];
+                } else {
+                    long low = k == 0 ? Long.MIN_VALUE : bounds[k - 1];
+                    long high = k == bounds.length ? Long.MAX_VALUE : bounds[k];
+                    covers = capturedAfter[i] <= low && capturedBefore[i] >= high;
+                }
+                if (covers) {
+                    scratch[n++] = i;
+                }
+            }
+            pieces[piece] = Arrays.copyOf(scratch, n);
+        }
+        return pieces;
+    }
+
+    private static boolean hasPeriod(AccessRule rule) {
+        return rule.period != null && !rule.period.isZero();
+    }
+
+    /**
+     * True if every capture on the given day gets the same decision.
+     */
+    boolean isStableOn(long day) {
+        return Arrays.binarySearch(boundaryDays, day) < 0;
+    }
+
+    /**
+     * Binds the access time, working out each rule's access time conditions once.
+     */
+    Evaluator at(Date accessTime) {
+        if (timeInvariantEvaluator != null) {
+            return timeInvariantEvaluator;
+        }
+        boolean[] accessible = new boolean[rules.length];
+        long[] recentFrom = new long[rules.length];
+        long[] staleBefore = new long[rules.length];
+        LocalDateTime localAccessTime = LocalDateTime.ofInstant(accessTime.toInstant(), ZoneId.systemDefault());
+        for (int i = 0; i < rules.length; i++) {
+            AccessRule rule = rules[i];
+            accessible[i] = rule.accessed == null || rule.accessed.contains(accessTime);
+            recentFrom[i] = Long.MIN_VALUE;
+            staleBefore[i] = Long.MIN_VALUE;
+            if (hasPeriod(rule)) {
+                try {
+                    long cutoff = localAccessTime.minus(rule.period).atZone(ZoneId.systemDefault()).toEpochSecond();
+                    recentFrom[i] = timestamp(cutoff + PERIOD_MARGIN_SECONDS);
+                    staleBefore[i] = timestamp(cutoff - PERIOD_MARGIN_SECONDS);
+                } catch (DateTimeException | ArithmeticException e) {
+                    // period beyond the supported range, leave every capture to the full calculation
+                    recentFrom[i] = Long.MAX_VALUE;
+                }
+            }
+        }
+        return new Evaluator(accessTime, accessible, recentFrom, staleBefore);
+    }
+
+    /**
+     * Converts seconds since the epoch to a 14-digit UTC timestamp, saturating outside years 0 to 9999.
+     */
+    static long timestamp(long epochSecond) {
+        if (epochSecond < -62167219200L) { // 0000-01-01T00:00:00Z
+            return Long.MIN_VALUE;
+        } else if (epochSecond >= 253402300800L) { // 10000-01-01T00:00:00Z
+            return Long.MAX_VALUE;
+        }
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        return time.getYear() * 10000000000L + time.getMonthValue() * 100000000L + time.getDayOfMonth() * 1000000L
+                + time.getHour() * 10000L + time.getMinute() * 100L + time.getSecond();
+    }
+
+    /**
+     * A rule set bound to an access time.
+     */
+    class Evaluator {
+        private final Date accessTime;
+        private final boolean[] accessible;
+        private final long[] recentFrom;
+        private final long[] staleBefore;
+
+        private Evaluator(Date accessTime, boolean[] accessible, long[] recentFrom, long[] staleBefore) {
+            this.accessTime = accessTime;
+            this.accessible = accessible;
+            this.recentFrom = recentFrom;
+            this.staleBefore = staleBefore;
+        }
+
+        RuleSet ruleSet() {
+            return RuleSet.this;
+        }
+
+        /**
+         * Returns the most specific rule applicable to a capture at the given timestamp, or null.
+         */
+        AccessRule match(long captureTimestamp) {
+            if (bounds == null) {
+                for (int i = rules.length - 1; i >= 0; i--) {
+                    if (capturedAfter[i] < captureTimestamp && captureTimestamp < capturedBefore[i]
+                            && applies(i, captureTimestamp)) {
+                        return rules[i];
+                    }
+                }
+                return null;
+            }
+            int k = Arrays.binarySearch(bounds, captureTimestamp);
+            for (int i : pieces[k >= 0 ? 2 * k + 1 : 2 * (-k - 1)]) {
+                if (applies(i, captureTimestamp)) {
+                    return rules[i];
+                }
+            }
+            return null;
+        }
+
+        private boolean applies(int i, long captureTimestamp) {
+            if (accessible == null) {
+                return true;
+            } else if (!accessible[i]) {
+                return false;
+            } else if (captureTimestamp >= recentFrom[i]) {
+                return true;
+            } else if (captureTimestamp < staleBefore[i]) {
+                return false;
+            }
+            return rules[i].isWithinPeriod(Capture.parseTimestamp(captureTimestamp), accessTime);
+        }
+    }
+}
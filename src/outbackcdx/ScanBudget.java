@@ -0,0 +1,102 @@
+package outbackcdx;
+
+import java.util.Date;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Limits how much work a single request may do: a cap on the number of
+ * records scanned, a wall-clock deadline and a check for whether the client
+ * has gone away. One budget is shared by every iterator serving a request so
+ * that, for example, both directions of a closest query draw from it.
+ *
+ * Not thread-safe. A budget belongs to the thread serving the request.
+ */
+class ScanBudget {
+    /**
+     * How often (in records) to check the clock and the client connection.
+     */
+    private static final int CHECK_INTERVAL = 256;
+
+    /**
+     * Longest timeout honoured, so the deadline in nanoseconds can't overflow.
+     */
+    static final long MAX_TIMEOUT_MILLIS = Long.MAX_VALUE / 2_000_000;
+
+    enum Reason {
+        SCAN_CAP, TIMEOUT, CANCELLED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    final long scanCap;
+    private final long deadline;
+    private final BooleanSupplier cancelled;
+    private long scanned;
+    private Reason exhausted;
+
+    ScanBudget(long scanCap) {
+        this(scanCap, 0, null);
+    }
+
+    /**
+     * @param scanCap maximum number of records to scan
+     * @param timeoutMillis wall-clock time allowed from now, or 0 for no deadline
+     * @param cancelled returns true once the client has disconnected, may be null
+     */
+    ScanBudget(long scanCap, long timeoutMillis, BooleanSupplier cancelled) {
+        this.scanCap = scanCap;
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + Math.min(timeoutMillis, MAX_TIMEOUT_MILLIS) * 1_000_000 : 0;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Accounts for scanning one more record. Returns false if the budget is
+     * exhausted and the scan should stop.
+     */
+    boolean tryScan() {
+        if (exhausted != null) {
+            return false;
+        }
+        if (scanned >= scanCap) {
+            exhausted = Reason.SCAN_CAP;
+            return false;
+        }
+        if (scanned % CHECK_INTERVAL == 0) {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                exhausted = Reason.TIMEOUT;
+                return false;
+            }
+            if (cancelled != null && cancelled.getAsBoolean()) {
+                exhausted = Reason.CANCELLED;
+                return false;
+            }
+        }
+        scanned++;
+        return true;
+    }
+
+    long scanned() {
+        return scanned;
+    }
+
+    /**
+     * The reason the scan was cut short, or null if it ran to completion.
+     */
+    Reason exhausted() {
+        return exhausted;
+    }
+
+    /**
+     * If the scan was cut short, logs it and counts it against the user.
+     */
+    void report(Index index, Web.Request request) {
+        if (exhausted == null) return;
+        String client = request.client();
+        index.recordTermination(exhausted, request.username());
+        System.err.println(new Date() + " " + client + " " + request.method() + " " + request.url()
+                + " terminated (" + exhausted + ") after scanning " + scanned + " records");
+    }
+}
@@ -1,6 +1,7 @@
 package outbackcdx;
 
 import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.BlockingHandler;
 import io.undertow.util.Headers;
@@ -14,6 +15,8 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.Deque;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class UWeb {
 
@@ -22,40 +25,68 @@ public class UWeb {
         private final Authorizer authorizer;
         private final Web.Handler handler;
         private final String contextPath;
+        private final Compression compression;
 
         UServer(String host, int port, String contextPath, Web.Handler handler, Authorizer authorizer) {
+            this(host, port, contextPath, handler, authorizer, new Compression(), null);
+        }
+
+        /**
+         * @param executor runs requests, or null to use Undertow's worker pool
+         */
+        UServer(String host, int port, String contextPath, Web.Handler handler, Authorizer authorizer,
+                Compression compression, Executor executor) {
             this.handler = handler;
             this.authorizer = authorizer;
             this.contextPath = contextPath;
+            this.compression = compression;
+            HttpHandler httpHandler;
+            if (executor == null) {
+                httpHandler = new BlockingHandler(this::dispatch);
+            } else {
+                httpHandler = exchange -> {
+                    exchange.startBlocking();
+                    if (exchange.isInIoThread()) {
+                        exchange.dispatch(executor, this::dispatch);
+                    } else {
+                        dispatch(exchange);
+                    }
+                };
+            }
             undertow = Undertow.builder()
-                    .setHandler(new BlockingHandler(this::dispatch))
+                    .setHandler(httpHandler)
                     .addHttpListener(port, host)
                     .build();
         }
 
         private void dispatch(HttpServerExchange exchange) throws Exception {
+            long start = System.nanoTime();
             String authnHeader = exchange.getRequestHeaders().getFirst(Headers.AUTHORIZATION);
             if (authnHeader == null) {
                 authnHeader = "";
             }
+            URequest request = null;
             try {
                 Permit permit = authorizer.verify(authnHeader);
-                URequest request = new URequest(exchange, permit, contextPath);
+                request = new URequest(exchange, permit, contextPath, compression);
                 Web.Response response = handler.handle(request);
-                if (response != Web.Response.ALREADY_SENT) sendResponse(exchange, response);
+                if (response != Web.Response.ALREADY_SENT) sendResponse(exchange, request, response);
             } catch (Web.ResponseException e) {
-                sendResponse(exchange, e.response);
+                sendResponse(exchange, request, e.response);
             } catch (AuthException e) {
-                sendResponse(exchange, new Web.Response(Web.Status.UNAUTHORIZED, "text/plain", e.getMessage() + "\n"));
+                sendResponse(exchange, null, new Web.Response(Web.Status.UNAUTHORIZED, "text/plain", e.getMessage() + "\n"));
             } catch (Exception e) {
                 StringWriter sw = new StringWriter();
                 e.printStackTrace(new PrintWriter(sw));
                 e.printStackTrace();
-                sendResponse(exchange, new Web.Response(Web.Status.INTERNAL_ERROR, "text/plain", sw.toString()));
+                sendResponse(exchange, null, new Web.Response(Web.Status.INTERNAL_ERROR, "text/plain", sw.toString()));
+            } finally {
+                Metrics.recordRequest(exchange.getRequestMethod().toString(), request == null ? null : request.route(),
+                        exchange.getStatusCode(), start, exchange.getResponseBytesSent());
             }
         }
 
-        private void sendResponse(HttpServerExchange exchange, Web.Response response) throws IOException {
+        private void sendResponse(HttpServerExchange exchange, URequest request, Web.Response response) throws IOException {
             Web.IStreamer streamer = response.getBodyWriter();
             try {
                 exchange.setStatusCode(response.getStatus());
@@ -65,6 +96,11 @@ public class UWeb {
                     }
                 });
                 OutputStream outputStream = exchange.getOutputStream();
+                String encoding = request == null ? null : compression.negotiate(request, response.getBodyLength(),
+                        exchange.getResponseHeaders().contains(Headers.CONTENT_ENCODING));
+                if (encoding != null) {
+                    outputStream = compression.stream(encoding, new USink(exchange));
+                }
                 if (streamer != null) {
                     streamer.stream(outputStream);
                 }
@@ -93,17 +129,41 @@ public class UWeb {
         }
     }
 
+    private static class USink implements Compression.Sink {
+        private final HttpServerExchange exchange;
+
+        USink(HttpServerExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            exchange.getResponseHeaders().add(HttpString.tryFromString(name), value);
+        }
+
+        @Override
+        public OutputStream begin(long length) {
+            if (length >= 0) {
+                exchange.setResponseContentLength(length);
+            }
+            return exchange.getOutputStream();
+        }
+    }
+
     static class URequest implements Web.Request {
         private final HttpServerExchange exchange;
         private final MultiMap<String,String> params;
         private final Permit permit;
         private final String url;
         private final String contextPath;
+        private final Compression compression;
+        private String route;
 
-        public URequest(HttpServerExchange exchange, Permit permit, String contextPath) {
+        public URequest(HttpServerExchange exchange, Permit permit, String contextPath, Compression compression) {
             this.exchange = exchange;
             this.permit = permit;
             this.contextPath = contextPath;
+            this.compression = compression;
             params = new MultiMap<>();
             for (Map.Entry<String, Deque<String>> pair : exchange.getQueryParameters().entrySet()) {
                 for (String value: pair.getValue()) {
@@ -153,11 +213,36 @@ public class UWeb {
             return permit.username;
         }
 
+        @Override
+        public Set<String> roles() {
+            return permit.roles;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return exchange.getSourceAddress().getAddress().getHostAddress();
+        }
+
+        @Override
+        public boolean clientDisconnected() {
+            return !exchange.getConnection().isOpen();
+        }
+
         @Override
         public String url() {
             return url;
         }
 
+        @Override
+        public String route() {
+            return route;
+        }
+
+        @Override
+        public void setRoute(String route) {
+            this.route = route;
+        }
+
         @Override
         public OutputStream streamResponse(int status, MultiMap<String, String> headers) {
             if (headers != null) {
@@ -165,6 +250,10 @@ public class UWeb {
                         exchange.getResponseHeaders().add(HttpString.tryFromString(name), value));
             }
             exchange.setStatusCode(status);
+            String encoding = compression.negotiate(this, 0, exchange.getResponseHeaders().contains(Headers.CONTENT_ENCODING));
+            if (encoding != null) {
+                return compression.stream(encoding, new USink(exchange));
+            }
             return exchange.getOutputStream();
         }
     }
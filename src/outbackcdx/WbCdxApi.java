@@ -1,12 +1,13 @@
 package outbackcdx;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
 
 import java.io.*;
 import java.util.*;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toList;
 import static outbackcdx.Json.JSON_MAPPER;
 import static outbackcdx.Web.Status.OK;
 
@@ -30,8 +31,14 @@ public class WbCdxApi {
         this.queryConfig = queryConfig;
     }
 
-    public Web.Response queryIndex(Web.Request request, Index index) throws IOException {
+    public Web.Response queryIndex(Web.Request request, Index index) throws IOException, Web.ResponseException {
         Query query = new Query(request.params(), filterPlugins, queryConfig);
+        query.budget = queryConfig.budgetFor("cdx", request, index.scanCap);
+        boolean explain = "1".equals(request.param("explain")) || "true".equals(request.param("explain"));
+        if (explain || queryConfig.slowQueryMillis > 0) {
+            query.profile = new QueryProfile(request.param("collection"), request);
+            query.profile.startPerfContext(index.db);
+        }
 
         FormatFactory format;
         String contentType;
@@ -48,20 +55,25 @@ public class WbCdxApi {
                 format = CdxjFormat::new;
                 contentType = "text/x-cdxj";
                 break;
+            case "cbor":
+                format = CborFormat::new;
+                contentType = "application/cbor";
+                break;
+            case "batch":
+                format = RecordBatchFormat::new;
+                contentType = RecordBatchFormat.CONTENT_TYPE;
+                break;
             default:
                 format = TextFormat::new;
                 contentType = "text/plain";
                 break;
         }
 
+        long row = 0;
         try (CloseableIterator<Capture> captures = query.execute(index);
-             OutputStream outputStream = request.streamResponse(OK,
-                     MultiMap.of("Content-Type", contentType,
-                             "Access-Control-Allow-Origin", "*",
-                             "outbackcdx-urlkey", query.urlkey));
-             Writer out = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8))) {
+             OutputStream outputStream = openOutput(request, query, contentType, explain);
+             OutputBuffer out = new OutputBuffer(outputStream)) {
 
-            long row = 0;
             try (OutputFormat outf = format.construct(query, computedFields, out)) {
                 while (captures.hasNext()) {
                     Capture capture = captures.next();
@@ -76,24 +88,93 @@ public class WbCdxApi {
                 e.printStackTrace();
                 out.write("warning: output may be incomplete, error occurred processing captures\n");
             }
+        } finally {
+            query.budget.report(index, request);
+            Metrics.recordQuery("cdx", query.matchType.name().toLowerCase(Locale.ROOT), query.budget.scanned(), row);
+            if (query.profile != null) {
+                query.profile.finish(query, row);
+                if (queryConfig.slowQueryMillis > 0 && query.profile.totalMillis >= queryConfig.slowQueryMillis) {
+                    System.err.println(new Date() + " slow query " + JSON_MAPPER.writeValueAsString(query.profile));
+                }
+            }
         }
 
+        if (explain) {
+            return Web.jsonResponse(query.profile);
+        }
         return Web.Response.ALREADY_SENT;
     }
 
+    /**
+     * Starts the response, or for ?explain=1 returns a stream that discards the results so only the profile is sent.
+     */
+    private static OutputStream openOutput(Web.Request request, Query query, String contentType, boolean explain) throws IOException {
+        OutputStream out;
+        if (explain) {
+            out = OutputStream.nullOutputStream();
+        } else {
+            out = request.streamResponse(OK, MultiMap.of("Content-Type", contentType,
+                    "Access-Control-Allow-Origin", "*",
+                    "outbackcdx-urlkey", query.urlkey));
+        }
+        return query.profile == null ? out : query.profile.measure(out);
+    }
+
     interface FormatFactory {
-        OutputFormat construct(Query query, Map<String, ComputedField> computedFields, Writer out) throws IOException;
+        OutputFormat construct(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException;
     }
 
+    /**
+     * Base class for the output formats. Writes bytes straight into an {@link OutputBuffer}. The standard capture
+     * fields are resolved to ids once per query so that writing a capture reads them directly without boxing;
+     * computed fields, range and extra CDXJ fields go through {@link #computeField(Capture, String)}.
+     */
     static abstract class OutputFormat implements Closeable {
+        static final int OTHER = 0, URLKEY = 1, ORIGINAL = 2, MIMETYPE = 3, DIGEST = 4, REDIRECT = 5,
+                ROBOTFLAGS = 6, FILENAME = 7, ORIGINAL_FILENAME = 8,
+                TIMESTAMP = 9, STATUS = 10, LENGTH = 11, OFFSET = 12, ORIGINAL_LENGTH = 13, ORIGINAL_OFFSET = 14;
+        private static final int FIRST_NUMBER = TIMESTAMP;
+        private static final Map<String, Integer> FIELD_IDS = new HashMap<>();
+        static {
+            FIELD_IDS.put("urlkey", URLKEY);
+            FIELD_IDS.put("url", ORIGINAL);
+            FIELD_IDS.put("original", ORIGINAL);
+            FIELD_IDS.put("mime", MIMETYPE);
+            FIELD_IDS.put("mimetype", MIMETYPE);
+            FIELD_IDS.put("digest", DIGEST);
+            FIELD_IDS.put("redirect", REDIRECT);
+            FIELD_IDS.put("redirecturl", REDIRECT);
+            FIELD_IDS.put("robotflags", ROBOTFLAGS);
+            FIELD_IDS.put("filename", FILENAME);
+            FIELD_IDS.put("originalFilename", ORIGINAL_FILENAME);
+            FIELD_IDS.put("timestamp", TIMESTAMP);
+            FIELD_IDS.put("status", STATUS);
+            FIELD_IDS.put("statuscode", STATUS);
+            FIELD_IDS.put("length", LENGTH);
+            FIELD_IDS.put("offset", OFFSET);
+            FIELD_IDS.put("originalLength", ORIGINAL_LENGTH);
+            FIELD_IDS.put("originalOffset", ORIGINAL_OFFSET);
+        }
+
+        /**
+         * Returned by {@link #numberField(Capture, int)} for a field that has no value.
+         */
+        static final long ABSENT = Long.MIN_VALUE;
+
         protected final Query query;
-        protected final Writer writer;
+        protected final OutputBuffer out;
         protected final Map<String, ComputedField> computedFields;
+        protected final int[] fieldIds;
 
-        OutputFormat(Query query, Map<String, ComputedField> computedFields, Writer writer) {
+        OutputFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) {
             this.query = query;
-            this.writer = writer;
+            this.out = out;
             this.computedFields = computedFields;
+            this.fieldIds = new int[query.fields.length];
+            for (int i = 0; i < fieldIds.length; i++) {
+                String field = query.fields[i];
+                fieldIds[i] = computedFields.containsKey(field) ? OTHER : FIELD_IDS.getOrDefault(field, OTHER);
+            }
         }
 
         protected Object computeField(Capture capture, String field) {
@@ -104,34 +185,97 @@ public class WbCdxApi {
             return capture.get(field);
         }
 
+        static boolean isNumber(int id) {
+            return id >= FIRST_NUMBER;
+        }
+
+        static String stringField(Capture capture, int id) {
+            switch (id) {
+                case URLKEY: return capture.urlkey;
+                case ORIGINAL: return capture.original;
+                case MIMETYPE: return capture.mimetype;
+                case DIGEST: return capture.digest;
+                case REDIRECT: return capture.redirecturl;
+                case ROBOTFLAGS: return capture.robotflags;
+                case FILENAME: return capture.file;
+                case ORIGINAL_FILENAME: return capture.originalFile;
+                default: throw new IllegalArgumentException("not a string field: " + id);
+            }
+        }
+
+        static long numberField(Capture capture, int id) {
+            switch (id) {
+                case TIMESTAMP: return capture.timestamp;
+                case STATUS: return capture.status;
+                case LENGTH: return capture.length == -1 ? ABSENT : capture.length;
+                case OFFSET: return capture.compressedoffset;
+                case ORIGINAL_LENGTH: return capture.originalLength == -1 ? ABSENT : capture.originalLength;
+                case ORIGINAL_OFFSET: return capture.originalCompressedoffset == -1 ? ABSENT : capture.originalCompressedoffset;
+                default: throw new IllegalArgumentException("not a number field: " + id);
+            }
+        }
+
+        static JsonGenerator createGenerator(OutputBuffer out) throws IOException {
+            JsonGenerator generator = JSON_MAPPER.createGenerator(out, JsonEncoding.UTF8);
+            generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            return generator;
+        }
+
         public abstract void writeCapture(Capture capture) throws IOException;
-        public void close() throws IOException {}
+
+        public void close() throws IOException {
+            out.flush();
+        }
     }
 
     static class JsonDictFormat extends OutputFormat {
         private final JsonGenerator jsonGenerator;
+        private final SerializedString[] names;
 
-        JsonDictFormat(Query query, Map<String, ComputedField> computedFields, Writer writer) throws IOException {
-            super(query, computedFields, writer);
-            this.jsonGenerator = JSON_MAPPER.createGenerator(writer);
+        JsonDictFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException {
+            super(query, computedFields, out);
+            this.jsonGenerator = createGenerator(out);
+            this.names = new SerializedString[query.fields.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = new SerializedString(query.fields[i]);
+            }
             jsonGenerator.writeStartArray();
         }
 
         @Override
         public void writeCapture(Capture capture) throws IOException {
             jsonGenerator.writeStartObject();
-            for (String field : Arrays.asList(query.fields)) {
-                Object value = computeField(capture, field);
-                if (value == null || "-".equals(value)) {
-                    // omit it
-                } else if (value instanceof Long) {
-                    jsonGenerator.writeNumberField(field, (long)value);
-                } else if (value instanceof Integer) {
-                    jsonGenerator.writeNumberField(field, (int)value);
-                } else if (value instanceof String) {
-                    jsonGenerator.writeStringField(field, (String)value);
+            for (int i = 0; i < fieldIds.length; i++) {
+                int id = fieldIds[i];
+                if (id == OTHER) {
+                    String field = query.fields[i];
+                    Object value = computeField(capture, field);
+                    if (value == null || "-".equals(value)) {
+                        // omit it
+                    } else if (value instanceof Long) {
+                        jsonGenerator.writeFieldName(names[i]);
+                        jsonGenerator.writeNumber((long) value);
+                    } else if (value instanceof Integer) {
+                        jsonGenerator.writeFieldName(names[i]);
+                        jsonGenerator.writeNumber((int) value);
+                    } else if (value instanceof String) {
+                        jsonGenerator.writeFieldName(names[i]);
+                        jsonGenerator.writeString((String) value);
+                    } else {
+                        throw new UnsupportedOperationException("Don't know how to format: " + field + " (" + value.getClass() + ")");
+                    }
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    if (value != ABSENT) {
+                        jsonGenerator.writeFieldName(names[i]);
+                        jsonGenerator.writeNumber(value);
+                    }
                 } else {
-                    throw new UnsupportedOperationException("Don't know how to format: " + field + " (" + value.getClass() + ")");
+                    String value = stringField(capture, id);
+                    if (value != null && !value.equals("-")) {
+                        jsonGenerator.writeFieldName(names[i]);
+                        jsonGenerator.writeString(value);
+                    }
                 }
             }
             jsonGenerator.writeEndObject();
@@ -141,6 +285,7 @@ public class WbCdxApi {
         public void close() throws IOException {
             jsonGenerator.writeEndArray();
             jsonGenerator.close();
+            super.close();
         }
     }
 
@@ -151,9 +296,9 @@ public class WbCdxApi {
     static class JsonFormat extends OutputFormat {
         private final JsonGenerator jsonGenerator;
 
-        JsonFormat(Query query, Map<String, ComputedField> computedFields, Writer writer) throws IOException {
-            super(query, computedFields, writer);
-            this.jsonGenerator = JSON_MAPPER.createGenerator(writer);
+        JsonFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException {
+            super(query, computedFields, out);
+            this.jsonGenerator = createGenerator(out);
             jsonGenerator.writeStartArray();
             jsonGenerator.writeArray(query.fields, 0, query.fields.length);
         }
@@ -161,18 +306,31 @@ public class WbCdxApi {
         @Override
         public void writeCapture(Capture capture) throws IOException {
             jsonGenerator.writeStartArray();
-            for (String field : query.fields) {
-                Object value = computeField(capture, field);
-                if (value == null) {
-                    jsonGenerator.writeNull();
-                } else if (value instanceof Long) {
-                    jsonGenerator.writeNumber((long) value);
-                } else if (value instanceof Integer) {
-                    jsonGenerator.writeNumber((int) value);
-                } else if (value instanceof String) {
-                    jsonGenerator.writeString((String) value);
+            for (int i = 0; i < fieldIds.length; i++) {
+                int id = fieldIds[i];
+                if (id == OTHER) {
+                    String field = query.fields[i];
+                    Object value = computeField(capture, field);
+                    if (value == null) {
+                        jsonGenerator.writeNull();
+                    } else if (value instanceof Long) {
+                        jsonGenerator.writeNumber((long) value);
+                    } else if (value instanceof Integer) {
+                        jsonGenerator.writeNumber((int) value);
+                    } else if (value instanceof String) {
+                        jsonGenerator.writeString((String) value);
+                    } else {
+                        throw new UnsupportedOperationException("Don't know how to format: " + field + " (" + value.getClass() + ")");
+                    }
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    if (value == ABSENT) {
+                        jsonGenerator.writeNull();
+                    } else {
+                        jsonGenerator.writeNumber(value);
+                    }
                 } else {
-                    throw new UnsupportedOperationException("Don't know how to format: " + field + " (" + value.getClass() + ")");
+                    jsonGenerator.writeString(stringField(capture, id));
                 }
             }
             jsonGenerator.writeEndArray();
@@ -182,67 +340,383 @@ public class WbCdxApi {
         public void close() throws IOException {
             jsonGenerator.writeEndArray();
             jsonGenerator.close();
+            super.close();
         }
     }
 
     static class TextFormat extends OutputFormat {
-        TextFormat(Query query, Map<String, ComputedField> computedFields, Writer writer) {
-            super(query, computedFields, writer);
+        TextFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) {
+            super(query, computedFields, out);
         }
 
         @Override
         public void writeCapture(Capture capture) throws IOException {
+            for (int i = 0; i < fieldIds.length; i++) {
+                if (i > 0) {
+                    out.write(' ');
+                }
+                int id = fieldIds[i];
+                if (id == OTHER) {
+                    Object value = computeField(capture, query.fields[i]);
+                    out.write(value == null ? "-" : value.toString());
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    if (value == ABSENT) {
+                        out.write('-');
+                    } else {
+                        out.write(value);
+                    }
+                } else {
+                    String value = stringField(capture, id);
+                    out.write(value == null ? "-" : value);
+                }
+            }
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Formats captures as CDXJ. The JSON block is written by hand rather than with a generator per line, using
+     * strings for every value as pywb does.
+     */
+    static class CdxjFormat extends OutputFormat {
+        private final int[] jsonFields;
+        private final byte[][] names;
+
+        CdxjFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException {
+            super(query, computedFields, out);
+            List<Integer> indexes = new ArrayList<>();
             for (int i = 0; i < query.fields.length; i++) {
                 String field = query.fields[i];
-                Object value = computeField(capture, field);
-                writer.write(value == null ? "-" : value.toString());
-                if (i < query.fields.length - 1) {
-                    writer.write(' ');
+                if (!field.equals("urlkey") && !field.equals("timestamp")) {
+                    indexes.add(i);
                 }
             }
-            writer.write('\n');
+            jsonFields = indexes.stream().mapToInt(Integer::intValue).toArray();
+            names = new byte[query.fields.length][];
+            for (int i : jsonFields) {
+                names[i] = JSON_MAPPER.writeValueAsBytes(query.fields[i]);
+            }
+        }
+
+        @Override
+        public void writeCapture(Capture capture) throws IOException {
+            out.write(capture.urlkey);
+            out.write(' ');
+            out.write(capture.timestamp);
+            out.write(' ');
+            out.write('{');
+            boolean first = true;
+            for (int i : jsonFields) {
+                int id = fieldIds[i];
+                if (id == OTHER) {
+                    Object value = computeField(capture, query.fields[i]);
+                    if (value == null || "-".equals(value)) {
+                        continue;
+                    }
+                    first = writeName(names[i], first);
+                    if (value instanceof Long || value instanceof Integer) {
+                        out.write('"');
+                        out.write(((Number) value).longValue());
+                        out.write('"');
+                    } else if (value instanceof String) {
+                        out.writeJsonString((String) value);
+                    } else {
+                        out.write(JSON_MAPPER.writeValueAsBytes(value));
+                    }
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    if (value == ABSENT) {
+                        continue;
+                    }
+                    first = writeName(names[i], first);
+                    out.write('"');
+                    out.write(value);
+                    out.write('"');
+                } else {
+                    String value = stringField(capture, id);
+                    if (value == null || value.equals("-")) {
+                        continue;
+                    }
+                    first = writeName(names[i], first);
+                    out.writeJsonString(value);
+                }
+            }
+            if (query.allFields && capture.extra != null) {
+                for (Map.Entry<String, Object> entry : capture.extra.entrySet()) {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    out.writeJsonString(entry.getKey());
+                    out.write(':');
+                    out.write(JSON_MAPPER.writeValueAsBytes(entry.getValue()));
+                }
+            }
+            out.write('}');
+            out.write('\n');
+        }
+
+        private boolean writeName(byte[] name, boolean first) throws IOException {
+            if (!first) {
+                out.write(',');
+            }
+            out.write(name);
+            out.write(':');
+            return false;
         }
     }
 
-    static class CdxjFormat extends OutputFormat {
-        CdxjFormat(Query query, Map<String, ComputedField> computedFields, Writer writer) {
-            super(query, computedFields, writer);
+    /**
+     * Formats captures as a CBOR array of maps, like jsondict but with integers as integers and the digest as a raw
+     * byte string.
+     */
+    static class CborFormat extends OutputFormat {
+        private final JsonGenerator generator;
+        private final SerializedString[] names;
+
+        CborFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException {
+            super(query, computedFields, out);
+            this.generator = Json.CBOR_FACTORY.createGenerator(out);
+            generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            this.names = new SerializedString[query.fields.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = new SerializedString(query.fields[i]);
+            }
+            generator.writeStartArray();
         }
 
         @Override
         public void writeCapture(Capture capture) throws IOException {
-            writer.write(capture.urlkey);
-            writer.write(' ');
-            writer.write(String.valueOf(capture.timestamp));
-            writer.write(' ');
-            try (JsonGenerator generator = Json.JSON_MAPPER.createGenerator(writer)) {
-                generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
-                List<String> filteredFields = Arrays.stream(query.fields).filter(f -> !f.equals("urlkey") && !f.equals("timestamp")).collect(toList());
-                generator.writeStartObject();
-                for (String field : filteredFields) {
-                    Object value = computeField(capture, field);
+            generator.writeStartObject();
+            for (int i = 0; i < fieldIds.length; i++) {
+                int id = fieldIds[i];
+                if (id == OTHER) {
+                    Object value = computeField(capture, query.fields[i]);
                     if (value == null || "-".equals(value)) {
-                        // omit it
-                    } else if (value instanceof Long) {
-                        generator.writeStringField(field, value.toString()); // pywb uses strings for everything
+                        continue;
+                    }
+                    generator.writeFieldName(names[i]);
+                    if (value instanceof Long) {
+                        generator.writeNumber((long) value);
                     } else if (value instanceof Integer) {
-                        generator.writeStringField(field, value.toString()); // pywb uses strings for everything
+                        generator.writeNumber((int) value);
                     } else if (value instanceof String) {
-                        generator.writeStringField(field, (String) value);
+                        generator.writeString((String) value);
+                    } else {
+                        Json.CBOR_MAPPER.writeValue(generator, value);
+                    }
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    if (value != ABSENT) {
+                        generator.writeFieldName(names[i]);
+                        generator.writeNumber(value);
+                    }
+                } else {
+                    String value = stringField(capture, id);
+                    if (value == null || value.equals("-")) {
+                        continue;
+                    }
+                    generator.writeFieldName(names[i]);
+                    if (id == DIGEST) {
+                        generator.writeBinary(Capture.base32Decode(value));
+                    } else {
+                        generator.writeString(value);
+                    }
+                }
+            }
+            generator.writeEndObject();
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.writeEndArray();
+            generator.close();
+            super.close();
+        }
+    }
+
+    /**
+     * A length-prefixed columnar format for bulk consumers. Captures are grouped into batches and each batch stores
+     * its values column by column, so a reader can skip whole batches or decode only the columns it needs.
+     *
+     * <pre>
+     * stream  := "CDXB" version:u8 header batch* end
+     * header  := fieldCount:varint (nameLength:varint name:utf8 type:u8)*
+     * batch   := byteLength:u32 recordCount:varint column*
+     * end     := 0:u32
+     * </pre>
+     *
+     * Column types:
+     * <ul>
+     *     <li>{@link #INTEGER}: zigzag varint of the difference from the previous value in the batch (the first is
+     *     relative to 0). Absent values are {@code Long.MIN_VALUE}.</li>
+     *     <li>{@link #STRING}: varint (length + 1) followed by UTF-8. Zero means absent.</li>
+     *     <li>{@link #BYTES}: as STRING but raw bytes. Used for the digest, which is absent when unknown ("-").</li>
+     * </ul>
+     *
+     * Varints are encoded as in {@link VarInt} and u32 is big-endian.
+     */
+    static class RecordBatchFormat extends OutputFormat {
+        static final String CONTENT_TYPE = "application/x-outbackcdx-batch";
+        static final byte[] MAGIC = {'C', 'D', 'X', 'B'};
+        static final int VERSION = 1;
+        static final int INTEGER = 1, STRING = 2, BYTES = 3;
+        static final int MAX_RECORDS = 1024;
+        static final int MAX_BYTES = 1024 * 1024;
+
+        private final Column[] columns;
+        private final long[] previous;
+        private int records;
+
+        RecordBatchFormat(Query query, Map<String, ComputedField> computedFields, OutputBuffer out) throws IOException {
+            super(query, computedFields, out);
+            columns = new Column[fieldIds.length];
+            previous = new long[fieldIds.length];
+            Column header = new Column();
+            header.putVarint(fieldIds.length);
+            for (int i = 0; i < fieldIds.length; i++) {
+                columns[i] = new Column();
+                byte[] name = query.fields[i].getBytes(UTF_8);
+                header.putVarint(name.length);
+                header.putRaw(name);
+                header.putByte(typeOf(fieldIds[i]));
+            }
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(header.data, 0, header.size);
+        }
+
+        private static int typeOf(int id) {
+            if (id == DIGEST) return BYTES;
+            if (id != OTHER && isNumber(id)) return INTEGER;
+            return STRING;
+        }
+
+        @Override
+        public void writeCapture(Capture capture) throws IOException {
+            for (int i = 0; i < fieldIds.length; i++) {
+                int id = fieldIds[i];
+                Column column = columns[i];
+                if (id == OTHER) {
+                    Object value = computeField(capture, query.fields[i]);
+                    column.putString(value == null ? null : value.toString());
+                } else if (isNumber(id)) {
+                    long value = numberField(capture, id);
+                    long delta = value - previous[i];
+                    column.putVarint((delta << 1) ^ (delta >> 63));
+                    previous[i] = value;
+                } else {
+                    String value = stringField(capture, id);
+                    if (id == DIGEST) {
+                        column.putBytes(value == null || value.equals("-") ? null : Capture.base32Decode(value));
                     } else {
-                        generator.writeFieldName(field);
-                        Json.JSON_MAPPER.writeValue(generator, value);
+                        column.putString(value);
                     }
                 }
-                if (query.allFields && capture.extra != null) {
-                    for (Map.Entry<String, Object> entry : capture.extra.entrySet()) {
-                        generator.writeFieldName(entry.getKey());
-                        Json.JSON_MAPPER.writeValue(generator, entry.getValue());
+            }
+            records++;
+            if (records >= MAX_RECORDS || bufferedBytes() >= MAX_BYTES) {
+                flushBatch();
+            }
+        }
+
+        private long bufferedBytes() {
+            long total = 0;
+            for (Column column : columns) {
+                total += column.size;
+            }
+            return total;
+        }
+
+        private void flushBatch() throws IOException {
+            if (records == 0) return;
+            Column count = new Column();
+            count.putVarint(records);
+            writeInt(count.size + bufferedBytes());
+            out.write(count.data, 0, count.size);
+            for (Column column : columns) {
+                out.write(column.data, 0, column.size);
+                column.size = 0;
+            }
+            Arrays.fill(previous, 0);
+            records = 0;
+        }
+
+        private void writeInt(long value) throws IOException {
+            out.write((int) (value >>> 24));
+            out.write((int) (value >>> 16));
+            out.write((int) (value >>> 8));
+            out.write((int) value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBatch();
+            writeInt(0);
+            super.close();
+        }
+
+        /**
+         * A growable byte array holding one column of the current batch.
+         */
+        private static class Column {
+            byte[] data = new byte[256];
+            int size;
+
+            private void ensure(int extra) {
+                if (size + extra > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+                }
+            }
+
+            void putByte(int b) {
+                ensure(1);
+                data[size++] = (byte) b;
+            }
+
+            void putVarint(long x) {
+                ensure(10);
+                while (Long.compareUnsigned(x, 127) > 0) {
+                    data[size++] = (byte) (x & 127 | 128);
+                    x >>>= 7;
+                }
+                data[size++] = (byte) (x & 127);
+            }
+
+            void putBytes(byte[] bytes) {
+                if (bytes == null) {
+                    putVarint(0);
+                    return;
+                }
+                putVarint(bytes.length + 1L);
+                putRaw(bytes);
+            }
+
+            void putRaw(byte[] bytes) {
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, data, size, bytes.length);
+                size += bytes.length;
+            }
+
+            void putString(String s) {
+                if (s == null) {
+                    putVarint(0);
+                    return;
+                }
+                int len = s.length();
+                for (int i = 0; i < len; i++) {
+                    if (s.charAt(i) >= 0x80) {
+                        putBytes(s.getBytes(UTF_8));
+                        return;
                     }
                 }
-                generator.writeEndObject();
+                putVarint(len + 1L);
+                ensure(len);
+                for (int i = 0; i < len; i++) {
+                    data[size++] = (byte) s.charAt(i);
+                }
             }
-            writer.write('\n');
         }
     }
 }
@@ -35,7 +35,7 @@ class Web {
         public static final int OK = 200, CREATED = 201,
                 TEMPORARY_REDIRECT = 307,
                 BAD_REQUEST = 400, UNAUTHORIZED = 401, FORBIDDEN = 403, NOT_FOUND = 404,
-                INTERNAL_ERROR = 500;
+                INTERNAL_ERROR = 500, SERVICE_UNAVAILABLE = 503;
     }
 
     interface IStreamer {
@@ -46,7 +46,7 @@ class Web {
         private int status;
         private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         private final long bodyLength;
-        private final IStreamer bodyWriter;
+        private IStreamer bodyWriter;
 
         public static final Response ALREADY_SENT = new Response(-1, null, "");
 
@@ -91,25 +91,46 @@ class Web {
         public IStreamer getBodyWriter() {
             return bodyWriter;
         }
+
+        void setBodyWriter(IStreamer bodyWriter) {
+            this.bodyWriter = bodyWriter;
+        }
+
+        /**
+         * The body length if known up front, otherwise 0.
+         */
+        public long getBodyLength() {
+            return bodyLength;
+        }
     }
 
     static class SHandler implements HttpHandler {
         private final Handler handler;
         private final Authorizer authorizer;
+        private final Compression compression;
 
         SHandler(Handler handler, Authorizer authorizer) {
+            this(handler, authorizer, new Compression());
+        }
+
+        SHandler(Handler handler, Authorizer authorizer, Compression compression) {
             this.handler = handler;
             this.authorizer = authorizer;
+            this.compression = compression;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(null, counter);
+            SRequest request = null;
             try {
                 Response response;
                 try {
                     String authnHeader = exchange.getRequestHeaders().getFirst("authorization");
                     Permit permit = authorizer.verify(authnHeader);
-                    SRequest request = new SRequest(exchange, permit);
+                    request = new SRequest(exchange, permit, compression);
                     response = handler.handle(request);
                 } catch (Web.ResponseException e) {
                     response = e.response;
@@ -123,8 +144,16 @@ class Web {
                 if (response != Response.ALREADY_SENT) {
                     try {
                         exchange.getResponseHeaders().putAll(response.headers);
-                        exchange.sendResponseHeaders(response.status, response.bodyLength);
-                        response.bodyWriter.stream(exchange.getResponseBody());
+                        String encoding = request == null ? null : compression.negotiate(request, response.bodyLength,
+                                exchange.getResponseHeaders().containsKey("Content-Encoding"));
+                        if (encoding == null) {
+                            exchange.sendResponseHeaders(response.status, response.bodyLength);
+                            response.bodyWriter.stream(exchange.getResponseBody());
+                        } else {
+                            try (OutputStream out = compression.stream(encoding, new SSink(exchange, response.status))) {
+                                response.bodyWriter.stream(out);
+                            }
+                        }
                     } finally {
                         // Close streamers that own native resources (e.g. the
                         // change feed iterator) after stream() returns, so a
@@ -137,18 +166,44 @@ class Web {
                 }
             } finally {
                 exchange.close();
+                Metrics.recordRequest(exchange.getRequestMethod(), request == null ? null : request.route(),
+                        exchange.getResponseCode(), start, counter.count);
             }
         }
     }
 
+    private static class SSink implements Compression.Sink {
+        private final HttpExchange exchange;
+        private final int status;
+
+        SSink(HttpExchange exchange, int status) {
+            this.exchange = exchange;
+            this.status = status;
+        }
+
+        @Override
+        public void header(String name, String value) {
+            exchange.getResponseHeaders().add(name, value);
+        }
+
+        @Override
+        public OutputStream begin(long length) throws IOException {
+            exchange.sendResponseHeaders(status, length > 0 ? length : 0);
+            return exchange.getResponseBody();
+        }
+    }
+
     static class SRequest implements Request {
         private final HttpExchange exchange;
         private final Permit permit;
+        private final Compression compression;
         private final MultiMap<String, String> params = new MultiMap<>();
+        private String route;
 
-        SRequest(HttpExchange exchange, Permit permit) {
+        SRequest(HttpExchange exchange, Permit permit, Compression compression) {
             this.exchange = exchange;
             this.permit = permit;
+            this.compression = compression;
             parseQueryString(exchange.getRequestURI().getRawQuery());
         }
 
@@ -204,14 +259,38 @@ class Web {
             return permit.username;
         }
 
+        @Override
+        public Set<String> roles() {
+            return permit.roles;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return exchange.getRemoteAddress().getAddress().getHostAddress();
+        }
+
         @Override
         public String url() {
             return exchange.getRequestURI().toString();
         }
 
+        @Override
+        public String route() {
+            return route;
+        }
+
+        @Override
+        public void setRoute(String route) {
+            this.route = route;
+        }
+
         @Override
         public OutputStream streamResponse(int status, MultiMap<String, String> headers) throws IOException {
             if (headers != null) headers.forEach(exchange.getResponseHeaders()::add);
+            String encoding = compression.negotiate(this, 0, exchange.getResponseHeaders().containsKey("Content-Encoding"));
+            if (encoding != null) {
+                return compression.stream(encoding, new SSink(exchange, status));
+            }
             exchange.sendResponseHeaders(status, 0);
             return exchange.getResponseBody();
         }
@@ -401,6 +480,7 @@ class Web {
             if (!match.matches()) {
                 return null;
             }
+            request.setRoute(pattern);
 
             if (permission != null && !request.hasPermission(permission)) {
                 return Web.forbidden(permission.name().toLowerCase());
@@ -446,6 +526,51 @@ class Web {
 
         String username();
 
+        /**
+         * All roles granted to the user, including those that aren't permissions.
+         */
+        default Set<String> roles() {
+            return Collections.emptySet();
+        }
+
+        /**
+         * The address of the client, if known.
+         */
+        default String remoteAddress() {
+            return null;
+        }
+
+        /**
+         * Identifies the client for logging: the username if authenticated, otherwise the remote address.
+         */
+        default String client() {
+            String username = username();
+            if (username != null && !username.equals("anonymous")) {
+                return username;
+            }
+            String address = remoteAddress();
+            return address == null ? "anonymous" : address;
+        }
+
+        /**
+         * True if the client is known to have gone away. Lets long scans stop early rather than only noticing
+         * when they next write. Not every server can detect this so false doesn't guarantee a live connection.
+         */
+        default boolean clientDisconnected() {
+            return false;
+        }
+
+        /**
+         * The pattern of the route that matched this request (e.g. "/&lt;collection&gt;/changes"), or null if it
+         * hasn't been routed.
+         */
+        default String route() {
+            return null;
+        }
+
+        default void setRoute(String route) {
+        }
+
         default String param(String name) {
             return params().get(name);
         }
@@ -0,0 +1,98 @@
+package outbackcdx;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs web requests either on a fixed pool of platform threads (the default) or, on Java 21+, on a virtual thread
+ * per request. With virtual threads a slow client or a slow remote WARC read only parks its own thread instead of
+ * holding one of a handful of workers, so the number of requests in flight is capped by a semaphore instead, to bound
+ * open RocksDB iterators and other native resources.
+ */
+class WebExecutor implements Executor, Closeable {
+    static final int DEFAULT_MAX_CONCURRENT = 256;
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+
+    /**
+     * @param maxConcurrent cap on requests running at once, or 0 to rely on the delegate's own limit
+     */
+    WebExecutor(ExecutorService delegate, int maxConcurrent) {
+        this.delegate = delegate;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    }
+
+    static WebExecutor fixed(int threads) {
+        return new WebExecutor(Executors.newFixedThreadPool(threads), 0);
+    }
+
+    static WebExecutor virtual(int maxConcurrent) {
+        return new WebExecutor(newVirtualThreadPerTaskExecutor(), maxConcurrent);
+    }
+
+    /**
+     * Looked up reflectively so we still build and run on Java 11.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later (running "
+                    + System.getProperty("java.version") + ")");
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+        }
+    }
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (permits == null) {
+            delegate.execute(task);
+            return;
+        }
+        delegate.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Number of requests currently holding a permit, or -1 if there's no semaphore.
+     */
+    int active() {
+        return permits == null ? -1 : maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Number of requests waiting for a permit.
+     */
+    int waiting() {
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    @Override
+    public void close() {
+        delegate.shutdown();
+    }
+}
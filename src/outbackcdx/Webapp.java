@@ -11,10 +11,15 @@ import outbackcdx.auth.Permission;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,8 +46,27 @@ class Webapp implements Web.Handler {
     private final Replay replay;
     private final String serviceWorker;
     private final Path checkpointDir;
+    private final QueryConfig queryConfig;
+    private final AtomicLong bootstrapCounter = new AtomicLong();
+
+    /**
+     * Per-lane concurrency limits, or null to admit every request immediately.
+     */
+    AdmissionControl admissionControl;
 
     private static final Pattern SAFE_CHECKPOINT_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=([0-9]+)-");
+    private static final long BOOTSTRAP_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    /**
+     * Most bootstrap checkpoints that may exist at once across all collections, as each one pins SST files on disk.
+     */
+    static final int MAX_BOOTSTRAP_CHECKPOINTS = 4;
+    private static final int BOOTSTRAP_RETRY_SECS = 60;
+    /**
+     * Change feed response header carrying the latest sequence number when the feed was opened, so secondaries can
+     * tell how far behind they are.
+     */
+    static final String SEQUENCE_HEADER = "OutbackCDX-Sequence";
 
     private static ServiceLoader<FilterPlugin> fpLoader = ServiceLoader.load(FilterPlugin.class);
 
@@ -77,6 +101,7 @@ class Webapp implements Web.Handler {
         this.computedFields = computedFields;
         this.maxNumResults = maxNumResults;
         this.replay = replay;
+        this.queryConfig = queryConfig;
 
         this.filterPlugins = new ArrayList<FilterPlugin>();
         if (FeatureFlags.filterPlugins()) {
@@ -108,20 +133,27 @@ class Webapp implements Web.Handler {
         router.on(GET, "/lib/pikaday/" + version("org.webjars.npm", "pikaday") + "/pikaday.css", serve("/META-INF/resources/webjars/pikaday/" + version("org.webjars.npm", "pikaday") + "/css/pikaday.css"));
         router.on(GET, "/lib/redoc/" + version("org.webjars.bower", "redoc") + "/redoc.min.js", serve("/META-INF/resources/webjars/redoc/" + version("org.webjars.bower", "redoc") + "/dist/redoc.min.js"));
         router.on(GET, "/api/collections", request1 -> listCollections(request1));
+        router.on(GET, "/api/sequences", request -> listSequences(request));
         router.on(GET, "/config.json", req1 -> configJson(req1));
+        router.on(GET, "/metrics", request -> metrics(request));
+        router.on(GET, "/api/replication", request -> jsonResponse(Metrics.replicationStatus(dataStore)));
         router.on(GET, "/<collection>", request -> query(request));
-        router.on(POST, "/<collection>", request -> post(request), Permission.INDEX_EDIT);
-        router.on(POST, "/<collection>/delete", request -> delete(request), Permission.INDEX_EDIT);
+        router.on(POST, "/<collection>", writable(request -> post(request)), Permission.INDEX_EDIT);
+        router.on(POST, "/<collection>/delete", writable(request -> delete(request)), Permission.INDEX_EDIT);
         router.on(GET, "/<collection>/stats", req2 -> stats(req2));
         router.on(GET, "/<collection>/cube", request -> cube(request));
         router.on(GET, "/<collection>/captures", request -> captures(request));
         router.on(GET, "/<collection>/aliases", request -> aliases(request));
         router.on(GET, "/<collection>/changes", request -> changeFeed(request));
         router.on(GET, "/<collection>/sequence", request -> sequence(request));
-        router.on(POST, "/<collection>/truncate_replication", request -> flushWal(request));
-        router.on(POST, "/<collection>/compact", request -> compact(request), Permission.INDEX_EDIT);
-        router.on(POST, "/<collection>/checkpoint", request -> checkpoint(request), Permission.INDEX_EDIT);
-        router.on(POST, "/<collection>/upgrade", request -> upgrade(request), Permission.INDEX_EDIT);
+        router.on(POST, "/<collection>/truncate_replication", writable(request -> flushWal(request)));
+        router.on(POST, "/<collection>/compact", writable(request -> compact(request)), Permission.INDEX_EDIT);
+        router.on(POST, "/<collection>/checkpoint", writable(request -> checkpoint(request)), Permission.INDEX_EDIT);
+        router.on(POST, "/<collection>/bootstrap", writable(request -> createBootstrap(request)), Permission.INDEX_EDIT);
+        router.on(GET, "/<collection>/bootstrap/<id>", request -> bootstrapManifest(request));
+        router.on(DELETE, "/<collection>/bootstrap/<id>", request -> deleteBootstrap(request), Permission.INDEX_EDIT);
+        router.on(GET, "/<collection>/bootstrap/<id>/<file>", request -> bootstrapFile(request));
+        router.on(POST, "/<collection>/upgrade", writable(request -> upgrade(request)), Permission.INDEX_EDIT);
         router.on(GET, "/<collection>/<date:[0-9]+><modifier:id_|>/<url:.*>", this::replay);
 
         if (FeatureFlags.experimentalAccessControl()) {
@@ -129,16 +161,28 @@ class Webapp implements Web.Handler {
             router.on(GET, "/<collection>/ap/<accesspoint>/check", request1 -> checkAccess(request1));
             router.on(POST, "/<collection>/ap/<accesspoint>/check", request -> checkAccessBulk(request));
             router.on(GET, "/<collection>/access/rules", request -> listAccessRules(request));
-            router.on(POST, "/<collection>/access/rules", request -> postAccessRules(request), Permission.RULES_EDIT);
+            router.on(POST, "/<collection>/access/rules", writable(request -> postAccessRules(request)), Permission.RULES_EDIT);
             router.on(GET, "/<collection>/access/rules/new", request1 -> getNewAccessRule(request1), Permission.RULES_EDIT);
             router.on(GET, "/<collection>/access/rules/<ruleId>", req -> getAccessRule(req));
-            router.on(DELETE, "/<collection>/access/rules/<ruleId>", req1 -> deleteAccessRule(req1), Permission.RULES_EDIT);
+            router.on(DELETE, "/<collection>/access/rules/<ruleId>", writable(req1 -> deleteAccessRule(req1)), Permission.RULES_EDIT);
             router.on(GET, "/<collection>/access/policies", req1 -> listAccessPolicies(req1));
-            router.on(POST, "/<collection>/access/policies", request -> postAccessPolicy(request), Permission.POLICIES_EDIT);
+            router.on(POST, "/<collection>/access/policies", writable(request -> postAccessPolicy(request)), Permission.POLICIES_EDIT);
             router.on(GET, "/<collection>/access/policies/<policyId>", req -> getAccessPolicy(req));
         }
     }
 
+    /**
+     * Refuses writes on a read replica, whose collections are RocksDB secondary instances that can't be written to.
+     */
+    private Web.Handler writable(Web.Handler handler) {
+        return request -> {
+            if (dataStore.isReadReplica()) {
+                return new Response(FORBIDDEN, "text/plain", "This node is a read replica of another process's data directory, and will not accept writes.\n");
+            }
+            return handler.handle(request);
+        };
+    }
+
     Response flushWal(Web.Request request) throws Web.ResponseException, IOException, RocksDBException{
         Index index = getIndex(request);
         index.flushWal();
@@ -193,14 +237,163 @@ class Webapp implements Web.Handler {
         return jsonResponse(body);
     }
 
+    /**
+     * Checkpoints a collection for a new secondary to download, see {@link Bootstrap}. Checkpoints over a day old are
+     * removed first, so abandoned ones don't pin obsolete SST files on disk. Refused with 503 while
+     * {@link #MAX_BOOTSTRAP_CHECKPOINTS} already exist.
+     */
+    Response createBootstrap(Web.Request request) throws IOException, Web.ResponseException {
+        Index index = getIndex(request);
+        Path dir = dataStore.bootstrapDir(index.name);
+        String id = "bs-" + System.currentTimeMillis() + "-" + bootstrapCounter.incrementAndGet();
+        synchronized (bootstrapCounter) {
+            if (liveBootstrapCheckpoints(dir.getParent()) >= MAX_BOOTSTRAP_CHECKPOINTS) {
+                Response response = new Response(SERVICE_UNAVAILABLE, "text/plain",
+                        "Too many bootstrap checkpoints exist already, try again later.\n");
+                response.addHeader("Retry-After", String.valueOf(BOOTSTRAP_RETRY_SECS));
+                return response;
+            }
+            // claims a slot before the checkpoint is taken, which can be slow
+            Files.createDirectories(dir.resolve(id));
+        }
+        try {
+            return jsonResponse(Bootstrap.create(index, id, dir.resolve(id)));
+        } catch (RocksDBException | IllegalArgumentException e) {
+            Bootstrap.delete(dir.resolve(id));
+            return new Response(INTERNAL_ERROR, "text/plain", "Checkpoint failed: " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Removes bootstrap checkpoints over a day old from every collection and counts those left.
+     */
+    private static int liveBootstrapCheckpoints(Path root) throws IOException {
+        int count = 0;
+        if (!Files.isDirectory(root)) {
+            return count;
+        }
+        try (DirectoryStream<Path> collections = Files.newDirectoryStream(root)) {
+            for (Path collection : collections) {
+                if (!Files.isDirectory(collection)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(collection)) {
+                    for (Path checkpoint : checkpoints) {
+                        if (System.currentTimeMillis() - Files.getLastModifiedTime(checkpoint).toMillis() > BOOTSTRAP_MAX_AGE_MILLIS) {
+                            Bootstrap.delete(checkpoint);
+                        } else {
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the directory of the bootstrap checkpoint named in the request, or null if there's no such checkpoint.
+     */
+    private Path bootstrapCheckpoint(Web.Request request) throws IOException, Web.ResponseException {
+        String id = request.param("id");
+        Path dir = dataStore.bootstrapDir(getIndex(request).name).resolve(id);
+        if (!SAFE_CHECKPOINT_NAME.matcher(id).matches() || id.startsWith(".") || !Files.isDirectory(dir)) {
+            return null;
+        }
+        return dir;
+    }
+
+    Response bootstrapManifest(Web.Request request) throws IOException, Web.ResponseException {
+        Path dir = bootstrapCheckpoint(request);
+        Bootstrap.Manifest manifest = dir == null ? null : Bootstrap.read(dir);
+        return manifest == null ? notFound() : jsonResponse(manifest);
+    }
+
+    Response deleteBootstrap(Web.Request request) throws IOException, Web.ResponseException {
+        Path dir = bootstrapCheckpoint(request);
+        if (dir == null) {
+            return notFound();
+        }
+        Bootstrap.delete(dir);
+        return new Response(OK, "text/plain", "Deleted\n");
+    }
+
+    /**
+     * Serves one file of a bootstrap checkpoint. Supports "Range: bytes=N-" so interrupted downloads can resume.
+     */
+    Response bootstrapFile(Web.Request request) throws IOException, Web.ResponseException {
+        String name = request.param("file");
+        Path dir = bootstrapCheckpoint(request);
+        if (dir == null || !SAFE_CHECKPOINT_NAME.matcher(name).matches() || name.startsWith(".")
+                || !Files.isRegularFile(dir.resolve("db").resolve(name))) {
+            return notFound();
+        }
+        Path path = dir.resolve("db").resolve(name);
+        long size = Files.size(path);
+        long start = 0;
+        String range = request.header("range");
+        if (range != null) {
+            Matcher m = BYTE_RANGE.matcher(range.trim());
+            if (m.matches()) {
+                start = Long.parseLong(m.group(1));
+                if (start >= size) {
+                    Response response = new Response(416, "text/plain", "Range not satisfiable\n");
+                    response.addHeader("Content-Range", "bytes */" + size);
+                    return response;
+                }
+            }
+        }
+        final long offset = start;
+        Response response = new Response(offset > 0 ? 206 : OK, "application/octet-stream", out -> {
+            try (FileChannel channel = FileChannel.open(path)) {
+                channel.position(offset);
+                Channels.newInputStream(channel).transferTo(out);
+            }
+        });
+        if (offset > 0) {
+            response.addHeader("Content-Range", "bytes " + offset + "-" + (size - 1) + "/" + size);
+        }
+        response.addHeader("Accept-Ranges", "bytes");
+        return response;
+    }
+
     Response listCollections(Web.Request request) throws JsonProcessingException {
         return jsonResponse(dataStore.listCollections());
     }
 
+    /**
+     * The latest sequence number of every collection, so a secondary mirroring all of them can tell which have
+     * changed with one request, see {@link ReplicationScheduler}.
+     */
+    Response listSequences(Web.Request request) throws IOException {
+        Map<String, Long> sequences = new LinkedHashMap<>();
+        for (String collection : dataStore.listCollections()) {
+            Index index = dataStore.getIndex(collection);
+            if (index != null) {
+                sequences.put(collection, index.getLatestSequenceNumber());
+            }
+        }
+        return jsonResponse(sequences);
+    }
+
+    Response metrics(Web.Request request) {
+        return new Response(OK, Metrics.CONTENT_TYPE, Metrics.render(dataStore));
+    }
+
     Response stats(Web.Request req) throws IOException, Web.ResponseException {
         Index index = getIndex(req);
         Map<String,Object> map = new HashMap<>();
         map.put("estimatedRecordCount", index.estimatedRecordCount());
+        map.put("terminatedQueries", index.terminatedQueries());
+        if (admissionControl != null) {
+            map.put("lanes", admissionControl.stats());
+        }
+        if (dataStore.isReadReplica()) {
+            Map<String,Object> catchUp = new HashMap<>();
+            catchUp.put("lagMillis", index.caughtUpAt < 0 ? null : System.currentTimeMillis() - index.caughtUpAt);
+            catchUp.put("lastDurationMillis", index.catchUpMillis);
+            map.put("catchUp", catchUp);
+        }
 
         for (String property : req.param("property", "").split(",")) {
             try {
@@ -397,6 +590,7 @@ class Webapp implements Web.Handler {
 
             batch.commit();
         }
+        Metrics.recordIngest(collection, added);
         System.out.println(new Date() + " " + request.method() + " " + request.url() + " Added " + added
                 + " records. latestSequenceNumber=" + index.getLatestSequenceNumber());
 
@@ -415,33 +609,48 @@ class Webapp implements Web.Handler {
         return new Response(OK, "text/plain", output);
     }
 
-    static class ChangeFeedJsonStream implements IStreamer, Closeable {
+    /**
+     * Streams write batches from the transaction log until roughly batchSize bytes have been written, always
+     * including at least one batch.
+     */
+    abstract static class ChangeFeedStream implements IStreamer, Closeable {
+        final String collection;
         final TransactionLogIterator logReader;
         final long batchSize;
         private boolean closed = false;
 
-        ChangeFeedJsonStream(TransactionLogIterator logReader, long batchSize) {
+        ChangeFeedStream(String collection, TransactionLogIterator logReader, long batchSize) {
+            this.collection = collection;
             this.logReader = logReader;
             this.batchSize = batchSize;
         }
 
+        abstract void writeStart(OutputStream output) throws IOException;
+
+        /**
+         * Writes one batch and returns the number of bytes it counts towards batchSize.
+         */
+        abstract long writeBatch(OutputStream output, long sequenceNumber, byte[] data, boolean first) throws IOException;
+
+        abstract void writeEnd(OutputStream output) throws IOException;
+
         @Override
         public void stream(OutputStream outputStream) throws IOException {
-            // build and stream json as bytes to avoid overhead of utf-16 String
+            Events.ChangeFeed event = new Events.ChangeFeed();
+            event.begin();
+            long size = 0L;
+            long initialSeqNo = -1;
+            long lastSeqNo = -1;
             try {
-                BufferedOutputStream output = new BufferedOutputStream(outputStream);
-                output.write("[\n".getBytes(UTF_8));
+                BufferedOutputStream output = new BufferedOutputStream(outputStream, 64 * 1024);
+                writeStart(output);
 
-                long size = 0L;
-                long initialSeqNo = -1;
-                while (true) {
+                // the iterator may have nothing to give, e.g. since is the latest sequence number and its log has
+                // already been flushed away
+                while (logReader.isValid()) {
                     BatchResult batch = logReader.getBatch();
                     long sequenceNumber = batch.sequenceNumber();
 
-                    output.write("{\"sequenceNumber\": \"".getBytes(UTF_8));
-                    output.write(Long.toString(sequenceNumber).getBytes(UTF_8));
-                    output.write("\", \"writeBatch\": \"".getBytes(UTF_8));
-                    byte[] b64Batch;
                     /*
                      * BatchResult.writeBatch() hands back a WriteBatch that owns
                      * its native handle; it is not freed by the iterator. Close
@@ -454,31 +663,37 @@ class Webapp implements Web.Handler {
                      * pressure. (Unlike logReader, which must NOT be closed here
                      * -- see the finally block below.)
                      */
+                    byte[] data;
                     try (WriteBatch writeBatch = batch.writeBatch()) {
-                        b64Batch = Base64.getEncoder().encode(writeBatch.data());
+                        data = writeBatch.data();
                     } catch (RocksDBException e) {
                         throw new IOException(e);
                     }
-                    output.write(b64Batch);
-                    output.write("\"}".getBytes(UTF_8));
+                    size += writeBatch(output, sequenceNumber, data, initialSeqNo < 0);
 
                     logReader.next();
-                    size += b64Batch.length;
+                    lastSeqNo = sequenceNumber;
+                    event.batches++;
 
                     if (initialSeqNo < 0) {
                         initialSeqNo = sequenceNumber;
                     }
 
-                    if (logReader.isValid() && (size < batchSize || sequenceNumber == initialSeqNo)) {
-                        output.write(",\n".getBytes(UTF_8));
-                    } else {
+                    if (size >= batchSize && sequenceNumber != initialSeqNo) {
                         break;
                     }
                 }
-                output.write("\n]\n".getBytes(UTF_8));
+                writeEnd(output);
                 output.flush();
             } finally {
                 close();
+                if (event.shouldCommit()) {
+                    event.collection = collection;
+                    event.bytes = size;
+                    event.firstSequenceNumber = initialSeqNo;
+                    event.lastSequenceNumber = lastSeqNo;
+                    event.commit();
+                }
             }
         }
 
@@ -500,6 +715,83 @@ class Webapp implements Web.Handler {
         }
     }
 
+    /**
+     * A JSON array of {"sequenceNumber": "N", "writeBatch": "base64"} objects. Built and streamed as bytes to avoid
+     * the overhead of utf-16 Strings.
+     */
+    static class ChangeFeedJsonStream extends ChangeFeedStream {
+        ChangeFeedJsonStream(String collection, TransactionLogIterator logReader, long batchSize) {
+            super(collection, logReader, batchSize);
+        }
+
+        @Override
+        void writeStart(OutputStream output) throws IOException {
+            output.write("[\n".getBytes(UTF_8));
+        }
+
+        @Override
+        long writeBatch(OutputStream output, long sequenceNumber, byte[] data, boolean first) throws IOException {
+            if (!first) {
+                output.write(",\n".getBytes(UTF_8));
+            }
+            output.write("{\"sequenceNumber\": \"".getBytes(UTF_8));
+            output.write(Long.toString(sequenceNumber).getBytes(UTF_8));
+            output.write("\", \"writeBatch\": \"".getBytes(UTF_8));
+            byte[] b64Batch = Base64.getEncoder().encode(data);
+            output.write(b64Batch);
+            output.write("\"}".getBytes(UTF_8));
+            return b64Batch.length;
+        }
+
+        @Override
+        void writeEnd(OutputStream output) throws IOException {
+            output.write("\n]\n".getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * The binary change feed: for each batch an 8-byte sequence number, a 4-byte length and the raw write batch,
+     * all big-endian, then a sequence number and length of -1 to mark the end. Followed feeds also send heartbeats,
+     * a length of -2 with the primary's latest sequence number. Compression is left to the usual Accept-Encoding
+     * negotiation.
+     */
+    static class ChangeFeedBinaryStream extends ChangeFeedStream {
+        static final String CONTENT_TYPE = "application/vnd.outbackcdx.changes";
+        static final int END = -1;
+        static final int HEARTBEAT = -2;
+
+        ChangeFeedBinaryStream(String collection, TransactionLogIterator logReader, long batchSize) {
+            super(collection, logReader, batchSize);
+        }
+
+        @Override
+        void writeStart(OutputStream output) {
+        }
+
+        @Override
+        long writeBatch(OutputStream output, long sequenceNumber, byte[] data, boolean first) throws IOException {
+            writeHeader(output, sequenceNumber, data.length);
+            output.write(data);
+            return data.length;
+        }
+
+        @Override
+        void writeEnd(OutputStream output) throws IOException {
+            writeHeader(output, -1, END);
+        }
+
+        static void writeHeader(OutputStream output, long sequenceNumber, int length) throws IOException {
+            byte[] header = new byte[12];
+            for (int i = 0; i < 8; i++) {
+                header[i] = (byte) (sequenceNumber >>> (56 - 8 * i));
+            }
+            for (int i = 0; i < 4; i++) {
+                header[8 + i] = (byte) (length >>> (24 - 8 * i));
+            }
+            output.write(header);
+        }
+    }
+
     Response changeFeed(Web.Request request) throws Web.ResponseException, IOException {
         String collection = request.param("collection");
         long since = Long.parseLong(request.param("since", "0"));
@@ -507,6 +799,21 @@ class Webapp implements Web.Handler {
         if (request.param("size") != null) {
             size = Long.parseLong(request.param("size"));
         }
+        String format = request.param("format");
+        String accept = request.header("accept");
+        boolean binary = format == null ? accept != null && accept.contains(ChangeFeedBinaryStream.CONTENT_TYPE)
+                : format.equals("binary");
+        if (format != null && !binary && !format.equals("json")) {
+            return badRequest("format must be json or binary\n");
+        }
+        boolean follow = "true".equals(request.param("follow"));
+        if (follow && format != null && !binary) {
+            return badRequest("follow requires the binary format\n");
+        }
+        long heartbeat = ChangeFeedFollower.DEFAULT_HEARTBEAT_MILLIS;
+        if (request.param("heartbeat") != null) {
+            heartbeat = Math.max(1, Long.parseLong(request.param("heartbeat"))) * 1000;
+        }
 
         final Index index = getIndex(request);
 
@@ -514,9 +821,20 @@ class Webapp implements Web.Handler {
             out.printf("%s Received request %s. Retrieving deltas for collection <%s> since sequenceNumber %s%n", new Date(), request, collection, since);
         }
 
+        Metrics.ReplicaMetrics replica = Metrics.recordChangeFeedRequest(collection, request.client(), since, follow);
+        long openedAt = index.getLatestSequenceNumber();
         TransactionLogIterator logReader;
         try {
             logReader = index.getUpdatesSince(since);
+            if (!logReader.isValid()) {
+                // nothing after since, unless the log holding it has gone, in which case status() says so
+                try {
+                    logReader.status();
+                } catch (RocksDBException e) {
+                    logReader.close();
+                    throw e;
+                }
+            }
         } catch (RocksDBException e) {
             System.err.println(new Date() + " " + request.method() + " " + request.url() + " - " + e);
             if (!"Requested sequence not yet written in the db".equals(e.getMessage())) {
@@ -536,9 +854,17 @@ class Webapp implements Web.Handler {
          * which is the segfault the previous comment warned about.
          */
         try {
-            ChangeFeedJsonStream streamer = new ChangeFeedJsonStream(logReader, size);
-            Response response = new Response(OK, "application/json", streamer);
+            Response response;
+            if (follow) {
+                response = new Response(OK, ChangeFeedBinaryStream.CONTENT_TYPE,
+                        new ChangeFeedFollower(index, logReader, since, openedAt, heartbeat, replica));
+            } else if (binary) {
+                response = new Response(OK, ChangeFeedBinaryStream.CONTENT_TYPE, new ChangeFeedBinaryStream(index.name, logReader, size));
+            } else {
+                response = new Response(OK, "application/json", new ChangeFeedJsonStream(index.name, logReader, size));
+            }
             response.addHeader("Access-Control-Allow-Origin", "*");
+            response.addHeader(SEQUENCE_HEADER, String.valueOf(openedAt));
             return response;
         } catch (RuntimeException | Error e) {
             logReader.close();
@@ -552,7 +878,8 @@ class Webapp implements Web.Handler {
         if (params.keySet().size() == 1 && params.containsKey("collection")) {
             return collectionDetails(index.db);
         } else if (params.containsKey("q")) {
-            return new XmlQuery(request, index, this.filterPlugins, canonicalizer, maxNumResults).streamResults();
+            ScanBudget budget = queryConfig.budgetFor("xml", request, index.scanCap);
+            return new XmlQuery(request, index, this.filterPlugins, canonicalizer, maxNumResults, budget).streamResults();
         } else {
             return wbCdxApi.queryIndex(request, index);
         }
@@ -732,25 +1059,25 @@ class Webapp implements Web.Handler {
         return jsonResponse(getIndex(request).accessControl.checkAccess(accesspoint, url, captureTime, accessTime));
     }
 
-    public static class AccessQuery {
-        public String url;
-        public String timestamp;
-    }
-
+    /**
+     * Checks a stream of {url, timestamp} queries, either a JSON array or newline-delimited objects, and streams back
+     * a decision for each in the same order. Responds with newline-delimited JSON if requested with output=ndjson or
+     * an Accept header of application/x-ndjson.
+     */
     Response checkAccessBulk(Web.Request request) throws IOException, ResponseException {
         String accesspoint = request.param("accesspoint");
         Index index = getIndex(request);
+        String accept = request.header("accept");
+        boolean ndjson = "ndjson".equals(request.param("output"))
+                || (accept != null && accept.contains("application/x-ndjson"));
 
-        AccessQuery[] queries = fromJson(request, AccessQuery[].class);
-        List<AccessDecision> responses = new ArrayList<>();
-
-        for (AccessQuery query: queries) {
-            Date captureTime = Date.from(LocalDateTime.parse(query.timestamp, Capture.arcTimeFormat).toInstant(ZoneOffset.UTC));
-            Date accessTime = new Date();
-            responses.add(index.accessControl.checkAccess(accesspoint, query.url, captureTime, accessTime));
+        BulkAccessCheck check;
+        try {
+            check = new BulkAccessCheck(index.accessControl, accesspoint, request.inputStream(), ndjson);
+        } catch (IllegalArgumentException | JsonProcessingException e) {
+            return badRequest(e.getMessage() + "\n");
         }
-
-        return jsonResponse(responses);
+        return new Response(OK, ndjson ? "application/x-ndjson" : "application/json", check);
     }
 
     private Response replay(Request request) throws ResponseException, IOException {
@@ -772,7 +1099,27 @@ class Webapp implements Web.Handler {
         if (!request.path().startsWith(request.contextPath() + "/")) {
             return redirect(request.contextPath() + "/");
         }
-        Response response = router.handle(request);
+        AdmissionControl.Ticket ticket = admissionControl == null ? null : admissionControl.admit(request);
+        if (ticket == null) {
+            return addCorsHeader(router.handle(request));
+        }
+        Response response;
+        try {
+            response = router.handle(request);
+        } catch (Throwable t) {
+            ticket.release();
+            throw t;
+        }
+        if (response == null || response == Response.ALREADY_SENT) {
+            ticket.release();
+        } else {
+            // the body may be streamed from an open iterator, so keep our place in the lane until the server closes it
+            response.setBodyWriter(ticket.holdUntilClosed(response.getBodyWriter()));
+        }
+        return addCorsHeader(response);
+    }
+
+    private static Response addCorsHeader(Response response) {
         if (response != null) {
             response.addHeader("Access-Control-Allow-Origin", "*");
         }
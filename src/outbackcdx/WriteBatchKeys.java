@@ -0,0 +1,149 @@
+package outbackcdx;
+
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the keys a serialized RocksDB WriteBatch writes to column families other than the default one.
+ *
+ * Replicated batches are mostly thousands of CDX records in the default column family. WriteBatch.iterate() would
+ * call back through JNI and copy every one of them, so instead the batch format is walked directly, skipping default
+ * column family records without copying. Batches containing a record type we don't know fall back to iterate().
+ */
+class WriteBatchKeys {
+    private static final int HEADER_SIZE = 12; // 8-byte sequence number and 4-byte count
+
+    // record types from RocksDB's dbformat.h
+    private static final int DELETION = 0x0;
+    private static final int VALUE = 0x1;
+    private static final int MERGE = 0x2;
+    private static final int LOG_DATA = 0x3;
+    private static final int CF_DELETION = 0x4;
+    private static final int CF_VALUE = 0x5;
+    private static final int CF_MERGE = 0x6;
+    private static final int SINGLE_DELETION = 0x7;
+    private static final int CF_SINGLE_DELETION = 0x8;
+    private static final int NOOP = 0xD;
+    private static final int CF_RANGE_DELETION = 0xE;
+    private static final int RANGE_DELETION = 0xF;
+
+    interface Consumer {
+        /**
+         * Called for each key written to a non-default column family. The key is null for a range deletion.
+         */
+        void accept(int columnFamilyId, byte[] key);
+    }
+
+    private WriteBatchKeys() {}
+
+    static void forEach(byte[] batch, Consumer consumer) throws RocksDBException {
+        try {
+            if (scan(batch, consumer)) {
+                return;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // malformed or unfamiliar, let RocksDB decide
+        }
+        iterate(batch, consumer);
+    }
+
+    /**
+     * Walks the batch twice: first to check every record type is known, so the consumer never sees a partial result,
+     * then to report the keys.
+     */
+    private static boolean scan(byte[] batch, Consumer consumer) {
+        return walk(batch, null) && walk(batch, consumer);
+    }
+
+    private static boolean walk(byte[] batch, Consumer consumer) {
+        ByteBuffer bb = ByteBuffer.wrap(batch);
+        bb.position(HEADER_SIZE);
+        while (bb.hasRemaining()) {
+            int type = bb.get();
+            switch (type) {
+                case DELETION:
+                case SINGLE_DELETION:
+                case LOG_DATA:
+                    skip(bb);
+                    break;
+                case VALUE:
+                case MERGE:
+                case RANGE_DELETION:
+                    skip(bb);
+                    skip(bb);
+                    break;
+                case NOOP:
+                    break;
+                case CF_DELETION:
+                case CF_SINGLE_DELETION: {
+                    int cf = (int) VarInt.decode(bb);
+                    byte[] key = bytes(bb);
+                    if (consumer != null) consumer.accept(cf, key);
+                    break;
+                }
+                case CF_VALUE:
+                case CF_MERGE: {
+                    int cf = (int) VarInt.decode(bb);
+                    byte[] key = bytes(bb);
+                    skip(bb);
+                    if (consumer != null) consumer.accept(cf, key);
+                    break;
+                }
+                case CF_RANGE_DELETION: {
+                    int cf = (int) VarInt.decode(bb);
+                    skip(bb);
+                    skip(bb);
+                    if (consumer != null) consumer.accept(cf, null);
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skip(ByteBuffer bb) {
+        int length = (int) VarInt.decode(bb);
+        bb.position(bb.position() + length);
+    }
+
+    private static byte[] bytes(ByteBuffer bb) {
+        byte[] bytes = new byte[(int) VarInt.decode(bb)];
+        bb.get(bytes);
+        return bytes;
+    }
+
+    private static void iterate(byte[] data, Consumer consumer) throws RocksDBException {
+        try (WriteBatch batch = new WriteBatch(data);
+             WriteBatch.Handler handler = new WriteBatch.Handler() {
+                 public void put(int columnFamilyId, byte[] key, byte[] value) { report(columnFamilyId, key); }
+                 public void put(byte[] key, byte[] value) {}
+                 public void merge(int columnFamilyId, byte[] key, byte[] value) { report(columnFamilyId, key); }
+                 public void merge(byte[] key, byte[] value) {}
+                 public void delete(int columnFamilyId, byte[] key) { report(columnFamilyId, key); }
+                 public void delete(byte[] key) {}
+                 public void singleDelete(int columnFamilyId, byte[] key) { report(columnFamilyId, key); }
+                 public void singleDelete(byte[] key) {}
+                 public void deleteRange(int columnFamilyId, byte[] beginKey, byte[] endKey) { report(columnFamilyId, null); }
+                 public void deleteRange(byte[] beginKey, byte[] endKey) {}
+                 public void logData(byte[] blob) {}
+                 public void putBlobIndex(int columnFamilyId, byte[] key, byte[] value) { report(columnFamilyId, key); }
+                 public void markBeginPrepare() {}
+                 public void markEndPrepare(byte[] xid) {}
+                 public void markNoop(boolean emptyBatch) {}
+                 public void markRollback(byte[] xid) {}
+                 public void markCommit(byte[] xid) {}
+                 public void markCommitWithTimestamp(byte[] xid, byte[] ts) {}
+
+                 private void report(int columnFamilyId, byte[] key) {
+                     if (columnFamilyId != 0) consumer.accept(columnFamilyId, key);
+                 }
+             }) {
+            batch.iterate(handler);
+        }
+    }
+}
@@ -22,16 +22,25 @@ public class XmlQuery {
     final static String DEFAULT_ENCODING = "UTF-8";
 
     final Index index;
+    final Web.Request request;
+    final ScanBudget budget;
     final String accessPoint;
     String queryUrl;
     final long offset;
     final long limit;
     final String queryType;
+    private long returned;
     final Long queryDate;
     private final long maxNumResults;
 
     public XmlQuery(Web.Request request, Index index, Iterable<FilterPlugin> filterPlugins, UrlCanonicalizer canonicalizer, long maxNumResults) {
+        this(request, index, filterPlugins, canonicalizer, maxNumResults, index.newBudget());
+    }
+
+    XmlQuery(Web.Request request, Index index, Iterable<FilterPlugin> filterPlugins, UrlCanonicalizer canonicalizer, long maxNumResults, ScanBudget budget) {
         this.index = index;
+        this.request = request;
+        this.budget = budget;
         this.maxNumResults = maxNumResults;
 
         Map<String, String> params = request.params();
@@ -110,6 +119,10 @@ public class XmlQuery {
                 out.flush();
             } catch (XMLStreamException e) {
                 throw new RuntimeException(e);
+            } finally {
+                budget.report(index, request);
+                Metrics.recordQuery("xml", queryType.equals("urlquery") || queryType.equals("prefixquery") ? queryType : "other",
+                        budget.scanned(), returned);
             }
         });
     }
@@ -120,7 +133,7 @@ public class XmlQuery {
         long numResults = 0;
         boolean scanningForClosestDate = queryDate != null;
 
-        try (CloseableIterator<Capture> iterator = index.queryAP(queryUrl, accessPoint)) {
+        try (CloseableIterator<Capture> iterator = index.queryAP(queryUrl, accessPoint, budget)) {
             Capture next = null;
             while (true) {
                 Capture capture;
@@ -177,6 +190,7 @@ public class XmlQuery {
 
                 out.writeEndElement(); // </result>
                 numReturned++;
+                returned++;
             }
         }
 
@@ -202,7 +216,7 @@ public class XmlQuery {
         boolean wroteHeader = false;
         long numResults = 0;
         long numReturned = 0;
-        try (Resources it = new Resources(index.prefixQueryAP(queryUrl, accessPoint))) {
+        try (Resources it = new Resources(index.prefixQueryAP(queryUrl, accessPoint, budget))) {
             while (it.hasNext()) {
                 Resource resource = it.next();
                 if (numResults < offset) {
@@ -231,6 +245,7 @@ public class XmlQuery {
                 writeElement(out, "lastcapturets", resource.lastCapture.timestamp);
                 out.writeEndElement(); // </result>
                 numReturned++;
+                returned++;
             }
         }
 
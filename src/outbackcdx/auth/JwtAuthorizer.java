@@ -62,7 +62,7 @@ public class JwtAuthorizer implements Authorizer {
                 }
                 permissions.add(permission);
             }
-            return new Permit(claimsSet.getStringClaim("preferred_username"), permissions);
+            return new Permit(claimsSet.getStringClaim("preferred_username"), permissions, new HashSet<>(roles));
         } catch (ParseException | BadJOSEException | JOSEException e) {
             throw new AuthException("Invalid access token: " + e.getMessage(), e);
         }
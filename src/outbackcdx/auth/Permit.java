@@ -1,5 +1,6 @@
 package outbackcdx.auth;
 
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -7,9 +8,19 @@ public class Permit {
     public final String username;
     public final Set<Permission> permissions;
 
+    /**
+     * All roles granted by the authorizer, including those that don't map to a permission.
+     */
+    public final Set<String> roles;
+
     public Permit(String username, Set<Permission> permissions) {
+        this(username, permissions, Collections.emptySet());
+    }
+
+    public Permit(String username, Set<Permission> permissions, Set<String> roles) {
         this.username = username;
         this.permissions = permissions;
+        this.roles = roles;
     }
 
     public static Permit full() {
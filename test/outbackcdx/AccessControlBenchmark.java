@@ -0,0 +1,130 @@
+package outbackcdx;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rocksdb.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Measures access control filtering as seen by a prefix scan: runs of captures of the same URL across a spread of
+ * sites, checked against 10k to 1M rules. The rules are a mix of domain wildcards, path prefixes and exact URLs, with
+ * some embargo periods and capture date ranges. The cold variants discard the rule set and decision caches first.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessControlBenchmark {
+    static final int CAPTURES = 10_000;
+
+    @Param({"10000", "100000", "1000000"})
+    int rules;
+
+    private RocksMemEnv env;
+    private RocksDB db;
+    private ColumnFamilyHandle ruleCf, policyCf;
+    private AccessControl accessControl;
+    private final List<Capture> captures = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws RocksDBException {
+        RocksDB.loadLibrary();
+        env = new RocksMemEnv(Env.getDefault());
+        try (Options options = new Options().setCreateIfMissing(true).setEnv(env)) {
+            db = RocksDB.open(options, Paths.get("bench").toAbsolutePath().toString());
+            ruleCf = db.getDefaultColumnFamily();
+            policyCf = db.createColumnFamily(new ColumnFamilyDescriptor("policies".getBytes(StandardCharsets.UTF_8)));
+        }
+        accessControl = new AccessControl(db, ruleCf, policyCf);
+        long publicPolicy = accessControl.put(new AccessPolicy("Bench Public", "public", "staff"));
+        long staffPolicy = accessControl.put(new AccessPolicy("Bench Staff", "staff"));
+
+        int sites = Math.max(1, rules / 4);
+        Random random = new Random(42);
+        for (int i = 0; i < rules; i++) {
+            AccessRule rule = new AccessRule();
+            int site = random.nextInt(sites);
+            int kind = random.nextInt(10);
+            if (kind < 4) {
+                rule.urlPatterns.add("*.site" + site + ".example.com.au");
+            } else if (kind < 8) {
+                rule.urlPatterns.add("http://site" + site + ".example.com.au/section" + random.nextInt(20) + "/*");
+            } else {
+                rule.urlPatterns.add("http://site" + site + ".example.com.au/section" + random.nextInt(20) + "/page"
+                        + random.nextInt(100) + ".html");
+            }
+            rule.policyId = random.nextBoolean() ? publicPolicy : staffPolicy;
+            if (random.nextInt(10) == 0) {
+                rule.period = Period.ofYears(1 + random.nextInt(10));
+            } else if (random.nextInt(10) == 0) {
+                rule.captured = new DateRange();
+                rule.captured.start = Capture.parseTimestamp(20000101000000L + random.nextInt(20) * 10000000000L);
+            }
+            accessControl.put(rule, "benchmark");
+        }
+
+        UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+        for (int i = 0; i < CAPTURES; ) {
+            String url = "http://site" + random.nextInt(sites) + ".example.com.au/section" + random.nextInt(20)
+                    + "/page" + random.nextInt(100) + ".html";
+            String urlkey = canonicalizer.surtCanonicalize(url);
+            int run = 1 + random.nextInt(20);
+            for (int j = 0; j < run && i < CAPTURES; j++, i++) {
+                Capture capture = new Capture();
+                capture.original = url;
+                capture.urlkey = urlkey;
+                capture.timestamp = 19960101000000L + random.nextInt(29) * 10000000000L + random.nextInt(12) * 100000000L
+                        + random.nextInt(28) * 1000000L;
+                captures.add(capture);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        policyCf.close();
+        db.close();
+        env.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public void filterScan(Blackhole blackhole) {
+        Predicate<Capture> filter = accessControl.filter("public", new Date());
+        for (Capture capture : captures) {
+            blackhole.consume(filter.test(capture));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public void filterScanCold(Blackhole blackhole) {
+        accessControl.invalidateCaches();
+        filterScan(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public void checkAccess(Blackhole blackhole) {
+        Date now = new Date();
+        for (Capture capture : captures) {
+            blackhole.consume(accessControl.checkAccess("public", capture.original, capture.date(), now));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -8,13 +8,19 @@ import org.rocksdb.*;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.function.Predicate;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class AccessControlTest {
@@ -119,6 +125,36 @@ public class AccessControlTest {
         assertEquals("org,example,//http:/index.html?hello", AccessControl.canonSsurt("http://PANDORA.nla.gov.au/pan/12345/20160101-1234/www.example.org/INDEX.html?hello#world"));
     }
 
+    @Test
+    public void testSsurtFromUrlkey() {
+        UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+        for (String url : asList("http://example.com", "https://WWW.Example.com/Foo/Bar.html",
+                "http://www2.example.com.au/a/../b/", "http://example.com:8080/a?B=1&a=2#frag",
+                "https://example.com:443/", "http://user@example.com/a;b=c", "http://example.com./~user/")) {
+            String urlkey = canonicalizer.surtCanonicalize(url);
+            assertEquals(url, AccessControl.canonSsurt(url), AccessControl.ssurtFromUrlkey(urlkey, url));
+        }
+
+        // cases where the canonicalizers disagree must fall back
+        for (String url : asList("http://example.com/a?jsessionid=0123456789abcdef", "http://example.com:/a",
+                "http://example.com:080/a", "http://example.com/a?x=y=z", "http://example.com//../a",
+                "http://1.2.3.4/a", "http://example.com/a%20b", "ftp://example.com/a", "youtube-dl:http://example.com/")) {
+            String urlkey = canonicalizer.surtCanonicalize(url);
+            assertEquals(url, null, AccessControl.ssurtFromUrlkey(urlkey, url));
+        }
+        assertEquals(null, AccessControl.ssurtFromUrlkey("com,example)/a?__wb_method=post&x=1", "http://example.com/a"));
+
+        // with the PANDORA hacks on, PANDORA URLs are canonicalized to the archived URL so must fall back too
+        boolean pandoraHacks = FeatureFlags.pandoraHacks();
+        FeatureFlags.setPandoraHacks(true);
+        try {
+            String url = "http://pandora.nla.gov.au/pan/12345/20160101-1234/www.example.org/index.html";
+            assertEquals(null, AccessControl.ssurtFromUrlkey(canonicalizer.surtCanonicalize(url), url));
+        } finally {
+            FeatureFlags.setPandoraHacks(pandoraHacks);
+        }
+    }
+
     @Test
     public void testJson() throws JsonProcessingException {
         AccessRule rule = new AccessRule();
@@ -180,5 +216,181 @@ public class AccessControlTest {
             assertTrue("Staff should be able to access open content", decision.isAllowed());
         }
     }
-}
 
+    private interface AccessControlTestBody {
+        void run(AccessControl accessControl) throws Exception;
+    }
+
+    /**
+     * Runs a test against its own empty rules database, so the rules it adds don't show up in the other tests.
+     */
+    private static void withFreshAccessControl(String name, AccessControlTestBody body) throws Exception {
+        try (Options options = new Options().setCreateIfMissing(true).setEnv(env);
+             RocksDB freshDb = RocksDB.open(options, Paths.get(name).toAbsolutePath().toString());
+             ColumnFamilyHandle freshRuleCf = freshDb.createColumnFamily(new ColumnFamilyDescriptor("rules".getBytes(StandardCharsets.UTF_8)));
+             ColumnFamilyHandle freshPolicyCf = freshDb.createColumnFamily(new ColumnFamilyDescriptor("policies".getBytes(StandardCharsets.UTF_8)))) {
+            body.run(new AccessControl(freshDb, freshRuleCf, freshPolicyCf));
+        }
+    }
+
+    private static Capture capture(String url, long timestamp) {
+        Capture capture = new Capture();
+        capture.original = url;
+        capture.timestamp = timestamp;
+        return capture;
+    }
+
+    @Test
+    public void testDecisionCacheInvalidation() throws Exception {
+        withFreshAccessControl("cache-test", accessControl -> {
+            long publicPolicyId = accessControl.put(new AccessPolicy("Cache Public", "public", "staff"));
+            long staffPolicyId = accessControl.put(new AccessPolicy("Cache Staff", "staff"));
+
+            AccessRule domainRule = new AccessRule();
+            domainRule.urlPatterns.add("*.cache-test.org");
+            domainRule.policyId = publicPolicyId;
+            accessControl.put(domainRule, "test-user");
+
+            Capture capture = capture("http://cache-test.org/page.html", 20200101000000L);
+            assertTrue(accessControl.filter("public", new Date()).test(capture));
+            assertTrue(accessControl.filter("public", new Date()).test(capture));
+
+            AccessRule pageRule = new AccessRule();
+            pageRule.urlPatterns.add("http://cache-test.org/page.html");
+            pageRule.policyId = staffPolicyId;
+            long pageRuleId = accessControl.put(pageRule, "test-user");
+            assertFalse(accessControl.filter("public", new Date()).test(capture));
+            assertTrue(accessControl.filter("staff", new Date()).test(capture));
+
+            accessControl.deleteRule(pageRuleId);
+            assertTrue(accessControl.filter("public", new Date()).test(capture));
+        });
+    }
+
+    @Test
+    public void testApplyReplicated() throws Exception {
+        try (Options options = new Options().setCreateIfMissing(true).setEnv(env);
+             RocksDB replicaDb = RocksDB.open(options, Paths.get("replica").toAbsolutePath().toString());
+             ColumnFamilyHandle replicaRuleCf = replicaDb.createColumnFamily(new ColumnFamilyDescriptor("rules".getBytes(StandardCharsets.UTF_8)));
+             ColumnFamilyHandle replicaPolicyCf = replicaDb.createColumnFamily(new ColumnFamilyDescriptor("policies".getBytes(StandardCharsets.UTF_8)))) {
+            AccessControl replica = new AccessControl(replicaDb, replicaRuleCf, replicaPolicyCf);
+
+            AccessPolicy staffOnly = new AccessPolicy("Replicated Staff", "staff");
+            staffOnly.id = 100L;
+            AccessRule rule = new AccessRule();
+            rule.id = 200L;
+            rule.policyId = staffOnly.id;
+            rule.urlPatterns.add("*.replicated.org");
+
+            try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+                batch.put("com,example)/ 20200101000000".getBytes(StandardCharsets.UTF_8), new byte[10]);
+                batch.put(replicaPolicyCf, AccessControl.encodeKey(staffOnly.id), Json.JSON_MAPPER.writeValueAsBytes(staffOnly));
+                batch.put(replicaRuleCf, AccessControl.encodeKey(rule.id), Json.JSON_MAPPER.writeValueAsBytes(rule));
+                replicaDb.write(writeOptions, batch);
+                assertEquals(2, replica.applyReplicated(batch.data()));
+            }
+            assertEquals(asList(rule), replica.rulesForUrl("http://www.replicated.org/"));
+            assertFalse(replica.checkAccess("public", "http://replicated.org/", new Date(), new Date()).isAllowed());
+            assertEquals("Replicated Staff", replica.policy(100).name);
+
+            try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+                batch.put("com,example)/ 20200101000001".getBytes(StandardCharsets.UTF_8), new byte[10]);
+                replicaDb.write(writeOptions, batch);
+                assertEquals(0, replica.applyReplicated(batch.data()));
+            }
+
+            try (WriteBatch batch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+                batch.delete(replicaRuleCf, AccessControl.encodeKey(rule.id));
+                replicaDb.write(writeOptions, batch);
+                assertEquals(1, replica.applyReplicated(batch.data()));
+            }
+            assertEquals(asList(), replica.rulesForUrl("http://www.replicated.org/"));
+            assertTrue(replica.checkAccess("public", "http://replicated.org/", new Date(), new Date()).isAllowed());
+
+            // a new rule from the primary must not collide with the next locally generated id
+            AccessRule local = new AccessRule();
+            local.policyId = staffOnly.id;
+            local.urlPatterns.add("*.local.org");
+            assertEquals(201L, (long) replica.put(local, "test-user"));
+        }
+    }
+
+    @Test
+    public void testRuleSetMatchesDates() {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Australia/Sydney"));
+        try {
+            Random random = new Random(0);
+            long base = Capture.parseTimestamp(20100101000000L).getTime();
+            long span = 20L * 365 * 24 * 60 * 60 * 1000;
+            for (int trial = 0; trial < 200; trial++) {
+                AccessRule[] rules = new AccessRule[1 + random.nextInt(20)];
+                for (int i = 0; i < rules.length; i++) {
+                    AccessRule rule = rules[i] = new AccessRule();
+                    if (random.nextInt(3) == 0) {
+                        rule.captured = new DateRange();
+                        if (random.nextBoolean()) rule.captured.start = new Date(base + (long) (random.nextDouble() * span));
+                        if (random.nextBoolean()) rule.captured.end = new Date(base + (long) (random.nextDouble() * span));
+                    }
+                    if (random.nextInt(8) == 0) {
+                        rule.accessed = new DateRange();
+                        rule.accessed.start = new Date(base + (long) (random.nextDouble() * span));
+                    }
+                    if (random.nextInt(3) == 0) {
+                        rule.period = Period.of(random.nextInt(3), random.nextInt(13), random.nextInt(32));
+                    }
+                }
+                Date accessTime = new Date(base + (long) (random.nextDouble() * span));
+                RuleSet.Evaluator evaluator = new RuleSet(rules).at(accessTime);
+                for (int j = 0; j < 500; j++) {
+                    long timestamp = RuleSet.timestamp((base + (long) (random.nextDouble() * span)) / 1000);
+                    if (j % 2 == 0 && rules[j % rules.length].period != null) {
+                        // probe near the embargo cut-off, where the calendar arithmetic gets uneven
+                        LocalDateTime cutoff = LocalDateTime.ofInstant(accessTime.toInstant(), ZoneId.systemDefault())
+                                .minus(rules[j % rules.length].period).plusSeconds(random.nextInt(7 * 86400) - 3 * 86400);
+                        timestamp = RuleSet.timestamp(cutoff.atZone(ZoneId.systemDefault()).toEpochSecond());
+                    }
+                    Date captureTime = Capture.parseTimestamp(timestamp);
+                    AccessRule expected = null;
+                    for (int i = rules.length - 1; i >= 0; i--) {
+                        if (rules[i].matchesDates(captureTime, accessTime)) {
+                            expected = rules[i];
+                            break;
+                        }
+                    }
+                    assertSame("trial " + trial + " capture " + timestamp, expected, evaluator.match(timestamp));
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    public void testCapturedRangeBoundaryDay() throws Exception {
+        withFreshAccessControl("boundary-test", accessControl -> {
+            long publicPolicyId = accessControl.put(new AccessPolicy("Boundary Public", "public", "staff"));
+            long staffPolicyId = accessControl.put(new AccessPolicy("Boundary Staff", "staff"));
+
+            AccessRule domainRule = new AccessRule();
+            domainRule.urlPatterns.add("*.boundary-test.org");
+            domainRule.policyId = publicPolicyId;
+            accessControl.put(domainRule, "test-user");
+
+            AccessRule earlyCaptures = new AccessRule();
+            earlyCaptures.urlPatterns.add("*.boundary-test.org");
+            earlyCaptures.policyId = staffPolicyId;
+            earlyCaptures.captured = new DateRange();
+            earlyCaptures.captured.end = Capture.parseTimestamp(20200615120000L);
+            accessControl.put(earlyCaptures, "test-user");
+
+            Predicate<Capture> filter = accessControl.filter("public", new Date());
+            for (int i = 0; i < 2; i++) {
+                assertFalse(filter.test(capture("http://boundary-test.org/", 20200614100000L)));
+                assertFalse(filter.test(capture("http://boundary-test.org/", 20200615100000L)));
+                assertTrue(filter.test(capture("http://boundary-test.org/", 20200615140000L)));
+                assertTrue(filter.test(capture("http://boundary-test.org/", 20200616100000L)));
+            }
+        });
+    }
+}
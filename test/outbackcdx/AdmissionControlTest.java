@@ -0,0 +1,99 @@
+package outbackcdx;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static outbackcdx.AdmissionControl.Lane.*;
+import static outbackcdx.Web.Method.GET;
+import static outbackcdx.Web.Method.POST;
+
+public class AdmissionControlTest {
+    @Test
+    public void testClassify() {
+        assertNull(AdmissionControl.classify(new DummyRequest(GET, "/")));
+        assertNull(AdmissionControl.classify(new DummyRequest(GET, "/api.js")));
+        assertNull(AdmissionControl.classify(new DummyRequest(GET, "/lib/vue.js")));
+        assertNull(AdmissionControl.classify(new DummyRequest(GET, "/test/stats")));
+        assertNull(AdmissionControl.classify(new DummyRequest(GET, "/test/access/rules")));
+
+        DummyRequest lookup = new DummyRequest(GET, "/test");
+        lookup.parm("url", "http://example.org/");
+        assertEquals(LOOKUP, AdmissionControl.classify(lookup));
+
+        DummyRequest prefix = new DummyRequest(GET, "/test");
+        prefix.parm("url", "http://example.org/");
+        prefix.parm("matchType", "domain");
+        assertEquals(SCAN, AdmissionControl.classify(prefix));
+
+        DummyRequest wildcard = new DummyRequest(GET, "/test");
+        wildcard.parm("url", "example.org/*");
+        assertEquals(SCAN, AdmissionControl.classify(wildcard));
+
+        assertEquals(SCAN, AdmissionControl.classify(new DummyRequest(GET, "/test/captures")));
+        assertEquals(INGEST, AdmissionControl.classify(new DummyRequest(POST, "/test")));
+        assertEquals(INGEST, AdmissionControl.classify(new DummyRequest(POST, "/test/delete")));
+        assertEquals(ADMIN, AdmissionControl.classify(new DummyRequest(POST, "/test/compact")));
+        assertEquals(ADMIN, AdmissionControl.classify(new DummyRequest(POST, "/test/access/rules")));
+        assertEquals(LOOKUP, AdmissionControl.classify(new DummyRequest(GET, "/test/ap/public")));
+        assertEquals(LOOKUP, AdmissionControl.classify(new DummyRequest(GET, "/test/ap/public/check")));
+        assertEquals(SCAN, AdmissionControl.classify(new DummyRequest(POST, "/test/ap/public/check")));
+        assertEquals(LOOKUP, AdmissionControl.classify(new DummyRequest(GET, "/test/20050101000000/http://example.org/")));
+
+        assertEquals(SCAN, AdmissionControl.classify(new DummyRequest(GET, "/test/changes")));
+        DummyRequest follow = new DummyRequest(GET, "/test/changes");
+        follow.parm("follow", "true");
+        assertEquals(FOLLOW, AdmissionControl.classify(follow));
+    }
+
+    @Test
+    public void testFollowLaneRefusesImmediately() throws Exception {
+        Map<AdmissionControl.Lane, AdmissionControl.LaneConfig> config = new EnumMap<>(AdmissionControl.Lane.class);
+        config.put(FOLLOW, AdmissionControl.followLane(4));
+        AdmissionControl admissionControl = new AdmissionControl(config);
+
+        DummyRequest follow = new DummyRequest(GET, "/test/changes");
+        follow.parm("follow", "true");
+        assertNotNull(admissionControl.admit(follow));
+        Web.ResponseException e = assertThrows(Web.ResponseException.class, () -> admissionControl.admit(follow));
+        assertEquals(Web.Status.SERVICE_UNAVAILABLE, e.response.getStatus());
+
+        // polling is unaffected
+        assertNotNull(admissionControl.admit(new DummyRequest(GET, "/test/changes")));
+    }
+
+    @Test
+    public void testRejectWhenLaneFull() throws Exception {
+        Map<AdmissionControl.Lane, AdmissionControl.LaneConfig> config = new EnumMap<>(AdmissionControl.Lane.class);
+        config.put(SCAN, new AdmissionControl.LaneConfig(1, 10));
+        AdmissionControl admissionControl = new AdmissionControl(config);
+
+        AdmissionControl.Ticket ticket = admissionControl.admit(new DummyRequest(GET, "/test/captures"));
+        assertNotNull(ticket);
+
+        Web.ResponseException e = assertThrows(Web.ResponseException.class,
+                () -> admissionControl.admit(new DummyRequest(GET, "/test/captures")));
+        assertEquals(Web.Status.SERVICE_UNAVAILABLE, e.response.getStatus());
+        assertEquals("1", e.response.getHeaders().get("Retry-After").get(0));
+
+        // other lanes are unaffected
+        assertNotNull(admissionControl.admit(new DummyRequest(POST, "/test")));
+
+        // the permit is held until the streamed body is closed
+        Web.IStreamer body = ticket.holdUntilClosed(out -> out.write('x'));
+        body.stream(new ByteArrayOutputStream());
+        ((Closeable) body).close();
+        ((Closeable) body).close();
+        assertNotNull(admissionControl.admit(new DummyRequest(GET, "/test/captures")));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> scan = (Map<String, Object>) admissionControl.stats().get("scan");
+        assertEquals(2L, scan.get("admitted"));
+        assertEquals(1L, scan.get("rejected"));
+        assertEquals(1, scan.get("active"));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.util.Arrays;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class CaptureTest {
@@ -30,6 +31,14 @@ public class CaptureTest {
         }
     }
 
+    @Test
+    public void testBase32Decode() {
+        for (String digest : Arrays.asList("M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI", "3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ",
+                "sha1:M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI", "m5orm4xq5qcezedrnzrgswxpcoguvasi", "-", "")) {
+            assertArrayEquals(digest, Capture.base32.decode(digest), Capture.base32Decode(digest));
+        }
+    }
+
     @Test
     public void testCdx9() {
         Capture src = Capture.fromCdxLine("- 19870102030405 http://example.org/ text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
@@ -0,0 +1,98 @@
+package outbackcdx;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import outbackcdx.auth.NullAuthorizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static outbackcdx.Web.Method.GET;
+import static outbackcdx.Web.Status.OK;
+
+public class CompressionTest {
+    private static final String BIG = "org,example)/ 20050101000000 http://example.org/ text/html 200\n".repeat(1000);
+    private static HttpServer server;
+    private static String baseUrl;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Web.Router router = new Web.Router();
+        router.on(GET, "/big", request -> new Web.Response(OK, "text/plain", BIG));
+        router.on(GET, "/small", request -> new Web.Response(OK, "text/plain", "small"));
+        router.on(GET, "/off", request -> new Web.Response(OK, "text/plain", BIG));
+        router.on(GET, "/stream/<n>", request -> {
+            try (OutputStream out = request.streamResponse(OK, MultiMap.of("Content-Type", "text/plain"))) {
+                out.write(BIG.substring(0, Integer.parseInt(request.param("n"))).getBytes(UTF_8));
+            }
+            return Web.Response.ALREADY_SENT;
+        });
+        Compression compression = new Compression();
+        compression.routes.put("/off", false);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new Web.SHandler(router, new NullAuthorizer(), compression));
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        server.stop(0);
+    }
+
+    private static String[] get(String path, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        String encoding = connection.getHeaderField("Content-Encoding");
+        try (InputStream raw = connection.getInputStream();
+             InputStream body = "gzip".equals(encoding) ? new GZIPInputStream(raw) : raw) {
+            return new String[]{encoding, new String(body.readAllBytes(), UTF_8)};
+        }
+    }
+
+    @Test
+    public void testNegotiation() throws IOException {
+        String[] response = get("/big", "br, gzip;q=0.8");
+        assertEquals("gzip", response[0]);
+        assertEquals(BIG, response[1]);
+
+        assertNull(get("/big", null)[0]);
+        assertNull(get("/big", "gzip;q=0")[0]);
+        assertNull(get("/big", "gzip;q=0, *")[0]);
+        assertNull(get("/big", "*, gzip;q=0")[0]);
+        assertEquals("gzip", get("/big", "br;q=0, *")[0]);
+        assertNull(get("/off", "gzip")[0]);
+
+        response = get("/small", "gzip");
+        assertNull(response[0]);
+        assertEquals("small", response[1]);
+
+        String metrics = Metrics.render(null);
+        assertTrue(metrics.contains("outbackcdx_compression_bytes_in_total{encoding=\"gzip\"} "));
+        assertTrue(metrics.contains("outbackcdx_compression_bytes_out_total{encoding=\"gzip\"} "));
+    }
+
+    @Test
+    public void testStreamedResponses() throws IOException {
+        String[] response = get("/stream/" + BIG.length(), "gzip");
+        assertEquals("gzip", response[0]);
+        assertEquals(BIG, response[1]);
+
+        response = get("/stream/100", "gzip");
+        assertNull(response[0]);
+        assertEquals(BIG.substring(0, 100), response[1]);
+    }
+}
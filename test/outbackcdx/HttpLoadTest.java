@@ -0,0 +1,323 @@
+package outbackcdx;
+
+import com.sun.net.httpserver.HttpServer;
+import outbackcdx.auth.NullAuthorizer;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Load test for mixed workloads. Starts OutbackCDX in-process on the JDK server over a synthetic collection (see
+ * {@link SyntheticCorpus}) and either replays the GET requests of an access log or generates a weighted mix of closest
+ * lookups, prefix scans, ingest POSTs and change feed polls. Reports latency percentiles for each kind of request.
+ *
+ * Without --rate it runs closed-loop: each of --concurrency clients sends its next request as soon as the last one
+ * finishes. With --rate requests arrive open-loop as a Poisson process regardless of how the server is keeping up and
+ * latency is measured from when each request was due, so queueing delay isn't hidden.
+ *
+ * When replaying a log the first path segment of each request is replaced with the synthetic collection's name.
+ *
+ * Usage: HttpLoadTest [options]
+ *   --log file               replay GET requests from an access log (common or combined format)
+ *   --mix closest=70,prefix=20,ingest=5,changes=5
+ *                            weights of the synthetic mix (the default)
+ *   --records N              synthetic collection size (default 100000)
+ *   --data dir               where synthetic collections are kept (default $TMPDIR/outbackcdx-benchmark)
+ *   --concurrency N          client threads (default 16)
+ *   --rate N                 open-loop arrival rate in requests per second
+ *   --seconds N              test duration (default 30)
+ *   --web-threads N          server worker threads (default 16)
+ *   --virtual-threads        run server requests on virtual threads (Java 21+)
+ */
+public class HttpLoadTest {
+    private static final Pattern LOG_REQUEST = Pattern.compile("\"GET (\\S+) HTTP/[0-9.]+\"");
+
+    private final String baseUrl;
+    private final String collection;
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    HttpLoadTest(String baseUrl, String collection) {
+        this.baseUrl = baseUrl;
+        this.collection = collection;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String log = null;
+        String mix = "closest=70,prefix=20,ingest=5,changes=5";
+        int records = 100_000;
+        File dataDir = new File(System.getProperty("java.io.tmpdir"), "outbackcdx-benchmark");
+        int concurrency = 16;
+        double rate = 0;
+        int seconds = 30;
+        int webThreads = 16;
+        boolean virtualThreads = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--log": log = args[++i]; break;
+                case "--mix": mix = args[++i]; break;
+                case "--records": records = Integer.parseInt(args[++i]); break;
+                case "--data": dataDir = new File(args[++i]); break;
+                case "--concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--web-threads": webThreads = Integer.parseInt(args[++i]); break;
+                case "--virtual-threads": virtualThreads = true; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        // synthetic collections carry access rules, so queries with an accesspoint are filtered as in production
+        FeatureFlags.setExperimentalAccessControl(true);
+        dataDir.mkdirs();
+        SyntheticCorpus corpus = new SyntheticCorpus(42, records);
+        String collection = "synthetic-v" + FeatureFlags.indexVersion() + "-" + records;
+        // keep the WAL around so change feed polls have something to read
+        try (DataStore dataStore = new DataStore(dataDir, 1024, 3600L, Long.MAX_VALUE, null)) {
+            Index index = corpus.load(dataDir, dataStore, collection);
+            Webapp webapp = new Webapp(dataStore, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000,
+                    new QueryConfig(), null, null);
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            Compression compression = new Compression();
+            compression.enabled = false;
+            server.createContext("/", new Web.SHandler(webapp, new NullAuthorizer(), compression));
+            WebExecutor executor = virtualThreads ? WebExecutor.virtual(WebExecutor.DEFAULT_MAX_CONCURRENT) : WebExecutor.fixed(webThreads);
+            server.setExecutor(executor);
+            server.start();
+            try {
+                HttpLoadTest test = new HttpLoadTest("http://localhost:" + server.getAddress().getPort(), collection);
+                RequestSource source = log != null ? test.replay(Paths.get(log).toFile())
+                        : test.mix(corpus, mix, index.getLatestSequenceNumber());
+                System.out.printf("%s against %s with %d clients%s for %ds (server: %s)%n",
+                        log != null ? "Replaying " + log : "Synthetic mix " + mix, collection, concurrency,
+                        rate > 0 ? String.format(" at %.0f req/s", rate) : "", seconds,
+                        virtualThreads ? "virtual threads" : webThreads + " threads");
+                long elapsed = rate > 0 ? test.runOpenLoop(source, concurrency, rate, seconds)
+                        : test.runClosedLoop(source, concurrency, seconds);
+                test.report(elapsed);
+            } finally {
+                server.stop(0);
+                executor.close();
+            }
+        }
+    }
+
+    /**
+     * A request to send: a label to report it under, the path and query, and a body if it's a POST.
+     */
+    static class LoadRequest {
+        final String route;
+        final String path;
+        final byte[] body;
+
+        LoadRequest(String route, String path, byte[] body) {
+            this.route = route;
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    interface RequestSource {
+        LoadRequest next(Random random);
+    }
+
+    RequestSource replay(File log) throws IOException {
+        List<LoadRequest> requests = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(log.toPath(), UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Matcher m = LOG_REQUEST.matcher(line);
+                if (!m.find()) continue;
+                String path = m.group(1).replaceFirst("^/[^/?]*", "/" + collection);
+                requests.add(new LoadRequest(routeOf(path), path, null));
+            }
+        }
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("No GET requests found in " + log);
+        }
+        int[] position = {0};
+        return random -> {
+            synchronized (position) {
+                LoadRequest request = requests.get(position[0]);
+                position[0] = (position[0] + 1) % requests.size();
+                return request;
+            }
+        };
+    }
+
+    /**
+     * Labels a logged request by what kind of query it is.
+     */
+    static String routeOf(String path) {
+        int i = path.indexOf('?');
+        String query = i < 0 ? "" : path.substring(i);
+        String route = (i < 0 ? path : path.substring(0, i)).replaceFirst("^/[^/]*", "/<collection>");
+        if (!route.equals("/<collection>")) return route;
+        if (query.contains("sort=closest") || query.contains("closest=")) return "closest";
+        if (query.contains("matchType=prefix") || query.matches(".*[?&]url=[^&]*(\\*|%2A)(&.*)?")) return "prefix";
+        if (query.contains("matchType=host")) return "host";
+        if (query.contains("matchType=domain") || query.matches(".*[?&]url=(\\*|%2A)\\..*")) return "domain";
+        return "exact";
+    }
+
+    RequestSource mix(SyntheticCorpus corpus, String spec, long changesSince) {
+        List<String> routes = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.split("=");
+            routes.add(parts[0]);
+            total += Integer.parseInt(parts[1]);
+            weights.add(total);
+        }
+        List<String> urls = corpus.sampleUrls(4096);
+        List<Long> timestamps = corpus.sampleTimestamps(4096);
+        int totalWeight = total;
+        return random -> {
+            int dice = random.nextInt(totalWeight);
+            int i = 0;
+            while (weights.get(i) <= dice) i++;
+            String url = urls.get(random.nextInt(urls.size()));
+            switch (routes.get(i)) {
+                case "closest":
+                    return new LoadRequest("closest", "/" + collection + "?url=" + encode(url) + "&sort=closest&closest="
+                            + timestamps.get(random.nextInt(timestamps.size())) + "&limit=10", null);
+                case "prefix":
+                    return new LoadRequest("prefix", "/" + collection + "?url=" + encode(url.substring(0, url.lastIndexOf('/') + 1))
+                            + "&matchType=prefix&limit=1000", null);
+                case "ingest":
+                    StringBuilder body = new StringBuilder();
+                    for (int n = 0; n < 100; n++) {
+                        body.append(corpus.capture(random, n)).append('\n');
+                    }
+                    return new LoadRequest("ingest", "/" + collection, body.toString().getBytes(UTF_8));
+                case "changes":
+                    return new LoadRequest("changes", "/" + collection + "/changes?since=" + changesSince
+                            + "&size=1048576", null);
+                default:
+                    throw new IllegalArgumentException("Unknown request type in mix: " + routes.get(i));
+            }
+        };
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns elapsed nanoseconds.
+     */
+    long runClosedLoop(RequestSource source, int concurrency, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            long seed = i;
+            clients.execute(() -> {
+                Random random = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    send(source.next(random), System.nanoTime());
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns elapsed nanoseconds.
+     */
+    long runOpenLoop(RequestSource source, int concurrency, double rate, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        Random random = new Random(0);
+        long due = start;
+        while (due < deadline) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            LoadRequest request = source.next(random);
+            long intended = due;
+            clients.execute(() -> send(request, intended));
+            due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        clients.shutdown();
+        clients.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        return System.nanoTime() - start;
+    }
+
+    private void send(LoadRequest request, long intendedStart) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + request.path).openConnection();
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(60_000);
+            if (request.body != null) {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(request.body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(request.body);
+                }
+            }
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) in.readAllBytes();
+            }
+            if (status >= 400 && status != 404) {
+                errors.computeIfAbsent(request.route, k -> new LongAdder()).increment();
+                return;
+            }
+            latencies.computeIfAbsent(request.route, k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add((System.nanoTime() - intendedStart) / 1000);
+        } catch (IOException e) {
+            errors.computeIfAbsent(request.route, k -> new LongAdder()).increment();
+        }
+    }
+
+    void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        Set<String> routes = new TreeSet<>(latencies.keySet());
+        routes.addAll(errors.keySet());
+        System.out.printf("%-24s %8s %8s %8s %10s %10s %10s %10s %10s%n",
+                "route", "requests", "req/s", "errors", "p50", "p90", "p99", "p99.9", "max");
+        for (String route : routes) {
+            long[] sorted;
+            synchronized (latencies.getOrDefault(route, Collections.emptyList())) {
+                sorted = latencies.getOrDefault(route, Collections.emptyList()).stream().mapToLong(Long::longValue).toArray();
+            }
+            Arrays.sort(sorted);
+            long errorCount = errors.containsKey(route) ? errors.get(route).sum() : 0;
+            System.out.printf("%-24s %8d %8.1f %8d %10s %10s %10s %10s %10s%n", route, sorted.length,
+                    sorted.length / seconds, errorCount, percentile(sorted, 0.50), percentile(sorted, 0.90),
+                    percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1.0));
+        }
+    }
+
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return "-";
+        int index = Math.max(0, (int) Math.ceil(p * sorted.length) - 1);
+        long micros = sorted[index];
+        return String.format("%.2fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,139 @@
+package outbackcdx;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each kind of cdx query against a synthetic on-disk collection (see {@link SyntheticCorpus}) at several
+ * corpus sizes and both index encodings, with and without filters and access control. Queries cycle through URLs,
+ * hosts and domains sampled from the same skewed distribution as the captures, so hot hosts dominate as they do in
+ * real traffic.
+ *
+ * The corpora are generated once under -Doutbackcdx.benchmark.dir (default: $TMPDIR/outbackcdx-benchmark) and
+ * reused by later runs. The benchmark profile runs JMH and writes the results as JSON for comparing releases:
+ *
+ *   mvn -Pbenchmark verify -Djmh.include=IndexQueryBenchmark -Djmh.args="-p size=100000"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexQueryBenchmark {
+    private static final int SAMPLES = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    int size;
+
+    @Param({"3", "5"})
+    int indexVersion;
+
+    @Param({"false", "true"})
+    boolean filter;
+
+    @Param({"false", "true"})
+    boolean accessControl;
+
+    @Param({"1000"})
+    int limit;
+
+    private DataStore dataStore;
+    private Index index;
+    private List<String> urls;
+    private List<String> hosts;
+    private List<String> domains;
+    private List<Long> timestamps;
+
+    @Setup
+    public void setUp() throws IOException {
+        FeatureFlags.setIndexVersion(indexVersion);
+        FeatureFlags.setExperimentalAccessControl(true);
+        File dataDir = new File(System.getProperty("outbackcdx.benchmark.dir",
+                new File(System.getProperty("java.io.tmpdir"), "outbackcdx-benchmark").getPath()));
+        dataDir.mkdirs();
+        SyntheticCorpus corpus = new SyntheticCorpus(42, size);
+        dataStore = new DataStore(dataDir, 1024, null, Long.MAX_VALUE, null);
+        index = corpus.load(dataDir, dataStore, "synthetic-v" + indexVersion + "-" + size);
+        urls = corpus.sampleUrls(SAMPLES);
+        hosts = corpus.sampleHosts(SAMPLES);
+        domains = corpus.sampleDomains(SAMPLES);
+        timestamps = corpus.sampleTimestamps(SAMPLES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataStore.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+
+        int next() {
+            return i++ & (SAMPLES - 1);
+        }
+    }
+
+    @Benchmark
+    public long exact(Cursor cursor, Blackhole blackhole) {
+        return run(blackhole, "url", urls.get(cursor.next()));
+    }
+
+    @Benchmark
+    public long closest(Cursor cursor, Blackhole blackhole) {
+        int i = cursor.next();
+        return run(blackhole, "url", urls.get(i), "sort", "closest", "closest", timestamps.get(i).toString());
+    }
+
+    @Benchmark
+    public long reverse(Cursor cursor, Blackhole blackhole) {
+        return run(blackhole, "url", urls.get(cursor.next()), "sort", "reverse");
+    }
+
+    @Benchmark
+    public long prefix(Cursor cursor, Blackhole blackhole) {
+        String url = urls.get(cursor.next());
+        return run(blackhole, "url", url.substring(0, url.lastIndexOf('/') + 1), "matchType", "prefix");
+    }
+
+    @Benchmark
+    public long host(Cursor cursor, Blackhole blackhole) {
+        return run(blackhole, "url", hosts.get(cursor.next()), "matchType", "host");
+    }
+
+    @Benchmark
+    public long domain(Cursor cursor, Blackhole blackhole) {
+        return run(blackhole, "url", domains.get(cursor.next()), "matchType", "domain");
+    }
+
+    private long run(Blackhole blackhole, String... params) {
+        MultiMap<String, String> map = MultiMap.of((Object[]) params);
+        map.add("limit", String.valueOf(limit));
+        if (filter) {
+            map.add("filter", "status:200");
+            map.add("filter", "!mimetype:image/.*");
+        }
+        if (accessControl) {
+            map.add("accesspoint", "public");
+        }
+        Query query = new Query(map, null);
+        long count = 0;
+        try (CloseableIterator<Capture> captures = query.execute(index)) {
+            while (count < query.limit && captures.hasNext()) {
+                blackhole.consume(captures.next());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -2,16 +2,24 @@ package outbackcdx;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Test;
 import org.rocksdb.*;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class IndexTest {
 
@@ -66,6 +74,29 @@ public class IndexTest {
         assertEquals(20050101000000L, results.get(3).timestamp);
     }
 
+    @Test
+    public void testScanBudget() throws IOException {
+        try (Index.Batch batch = index.beginUpdate()) {
+            for (int i = 0; i < 10; i++) {
+                batch.putCapture(Capture.fromCdxLine("- 2005010100000" + i + " http://budget.org/ text/html 200 - - 0 w1", index.canonicalizer));
+            }
+            batch.commit();
+        }
+
+        // both halves of a closest query share the one budget
+        ScanBudget capped = new ScanBudget(4);
+        assertEquals(4, list(index.closestQuery("org,budget)/", 20050101000005L, null, capped)).size());
+        assertEquals(ScanBudget.Reason.SCAN_CAP, capped.exhausted());
+
+        ScanBudget cancelled = new ScanBudget(Long.MAX_VALUE, 0, () -> true);
+        assertEquals(0, list(index.query("org,budget)/", Query.MIN_TIMESTAMP, Query.MAX_TIMESTAMP, null, cancelled)).size());
+        assertEquals(ScanBudget.Reason.CANCELLED, cancelled.exhausted());
+
+        ScanBudget unlimited = new ScanBudget(Long.MAX_VALUE, 60000, () -> false);
+        assertEquals(10, list(index.query("org,budget)/", Query.MIN_TIMESTAMP, Query.MAX_TIMESTAMP, null, unlimited)).size());
+        assertNull(unlimited.exhausted());
+    }
+
     @Test
     public void testPostData() throws IOException {
         try (Index.Batch batch = index.beginUpdate()) {
@@ -222,4 +253,41 @@ public class IndexTest {
 
         // Now upgrade the index
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("outbackcdx", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("outbackcdx.Query").withThreshold(Duration.ZERO);
+            recording.enable("outbackcdx.Scan").withThreshold(Duration.ZERO);
+            recording.enable("outbackcdx.BatchCommit").withThreshold(Duration.ZERO);
+            recording.start();
+
+            try (Index.Batch batch = index.beginUpdate()) {
+                batch.putCapture(Capture.fromCdxLine("- 20050101000000 http://jfr.org/ text/html 200 - - 0 w1", index.canonicalizer));
+                batch.putCapture(Capture.fromCdxLine("- 20060101000000 http://jfr.org/ text/html 200 - - 0 w2", index.canonicalizer));
+                batch.commit();
+            }
+            MultiMap<String, String> params = new MultiMap<>();
+            params.put("url", "http://jfr.org/");
+            assertEquals(2, list(new Query(params, null).execute(index)).size());
+
+            recording.stop();
+            recording.dump(file);
+        }
+        try {
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent query = events.stream().filter(e -> e.getEventType().getName().equals("outbackcdx.Query")).findFirst().get();
+            assertEquals("org,jfr)/", query.getString("urlkey"));
+            assertEquals("exact", query.getString("matchType"));
+            assertEquals(2, query.getLong("returned"));
+            RecordedEvent scan = events.stream().filter(e -> e.getEventType().getName().equals("outbackcdx.Scan")).findFirst().get();
+            assertEquals("test", scan.getString("collection"));
+            assertTrue(scan.getLong("records") >= 2); // includes the first record past the end of the range
+            assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("outbackcdx.BatchCommit")
+                    && e.getLong("operations") == 2));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
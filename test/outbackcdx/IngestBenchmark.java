@@ -0,0 +1,297 @@
+package outbackcdx;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.sun.net.httpserver.HttpServer;
+import org.rocksdb.FlushOptions;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.TickerType;
+import outbackcdx.auth.NullAuthorizer;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static outbackcdx.Json.JSON_MAPPER;
+import static outbackcdx.Web.Method.POST;
+
+/**
+ * Ingest throughput harness. Generates synthetic CDX or CDXJ input (see {@link SyntheticCorpus}) and loads it into a
+ * fresh collection through each write path in turn: Index.Batch on its own, Webapp.post in-process, POSTs over HTTP to
+ * the JDK and Undertow servers, and finally replication of the HTTP-loaded collection to secondaries, both through
+ * ChangePollingThread.replicate() and by timing ChangePollingThread.commitWriteBatch() alone.
+ *
+ * For each path reports records/s, input bytes/s, RocksDB write amplification (bytes flushed and compacted per byte
+ * written, after compactions settle) and commit latency percentiles, one commit per batch of input records.
+ *
+ * Usage: IngestBenchmark [records] [cdx|cdxj] [records-per-batch]
+ */
+public class IngestBenchmark {
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        String format = args.length > 1 ? args[1] : "cdx";
+        int batchRecords = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        List<byte[]> input = generate(records, format, batchRecords);
+        long inputBytes = input.stream().mapToLong(chunk -> chunk.length).sum();
+        System.out.printf("%d %s records in %d batches, %.1f MB%n", records, format, input.size(), inputBytes / 1e6);
+
+        File dataDir = Files.createTempDirectory("outbackcdx-ingest").toFile();
+        // keep the WAL around long enough for the replication runs to read it
+        try (DataStore dataStore = new DataStore(dataDir, 1024, 3600L, Long.MAX_VALUE, null)) {
+            Webapp webapp = new Webapp(dataStore, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000,
+                    new QueryConfig(), null, null);
+
+            batch(dataStore, "batch", input, records);
+            inProcess(webapp, dataStore, "inprocess", input, records);
+
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            httpServer.createContext("/", new Web.SHandler(webapp, new NullAuthorizer(), new Compression()));
+            WebExecutor executor = WebExecutor.fixed(4);
+            httpServer.setExecutor(executor);
+            httpServer.start();
+            String baseUrl = "http://localhost:" + httpServer.getAddress().getPort();
+            try {
+                http("http (jdk)", baseUrl, dataStore, "jdk", input, records);
+                undertow(webapp, dataStore, input, records);
+                replicate(dataStore, baseUrl, "jdk", "replica", records);
+                commitWriteBatch(dataStore, baseUrl, "jdk", "applied", records);
+            } finally {
+                httpServer.stop(0);
+                executor.close();
+            }
+        } finally {
+            deleteRecursively(dataDir);
+        }
+    }
+
+    /**
+     * Renders synthetic captures as POST bodies of batchRecords lines each.
+     */
+    private static List<byte[]> generate(int records, String format, int batchRecords) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(42, records);
+        Random random = new Random(42);
+        List<byte[]> chunks = new ArrayList<>();
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        for (int i = 0; i < records; i++) {
+            Capture capture = corpus.capture(random, i);
+            String line;
+            if (format.equals("cdxj")) {
+                Map<String, Object> json = new LinkedHashMap<>();
+                json.put("url", capture.original);
+                json.put("mime", capture.mimetype);
+                json.put("status", String.valueOf(capture.status));
+                json.put("digest", capture.digest);
+                json.put("length", String.valueOf(capture.length));
+                json.put("offset", String.valueOf(capture.compressedoffset));
+                json.put("filename", capture.file);
+                line = capture.urlkey + " " + capture.timestamp + " " + JSON_MAPPER.writeValueAsString(json);
+            } else {
+                line = capture.toString();
+            }
+            chunk.write(line.getBytes(UTF_8));
+            chunk.write('\n');
+            if ((i + 1) % batchRecords == 0 || i == records - 1) {
+                chunks.add(chunk.toByteArray());
+                chunk.reset();
+            }
+        }
+        return chunks;
+    }
+
+    private static void batch(DataStore dataStore, String collection, List<byte[]> input, int records) throws IOException {
+        Index index = dataStore.getIndex(collection, true);
+        UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+        long[] latencies = new long[input.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < input.size(); i++) {
+            long batchStart = System.nanoTime();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input.get(i)), UTF_8));
+            try (Index.Batch batch = index.beginUpdate()) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    batch.putCapture(Capture.fromCdxLine(line, canonicalizer));
+                }
+                batch.commit();
+            }
+            latencies[i] = System.nanoTime() - batchStart;
+        }
+        report("Index.Batch", records, bytes(input), System.nanoTime() - start, latencies, index);
+    }
+
+    private static void inProcess(Webapp webapp, DataStore dataStore, String collection, List<byte[]> input, int records) throws Exception {
+        long[] latencies = new long[input.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < input.size(); i++) {
+            byte[] body = input.get(i);
+            DummyRequest request = new DummyRequest(POST, "/" + collection) {
+                @Override
+                public InputStream inputStream() {
+                    return new ByteArrayInputStream(body);
+                }
+            };
+            long batchStart = System.nanoTime();
+            Web.Response response = webapp.handle(request);
+            latencies[i] = System.nanoTime() - batchStart;
+            if (response.getStatus() != Web.Status.OK) {
+                throw new IOException("POST failed with status " + response.getStatus());
+            }
+        }
+        report("Webapp.post", records, bytes(input), System.nanoTime() - start, latencies, dataStore.getIndex(collection));
+    }
+
+    private static void http(String name, String baseUrl, DataStore dataStore, String collection, List<byte[]> input, int records) throws IOException {
+        long[] latencies = new long[input.size()];
+        long start = System.nanoTime();
+        for (int i = 0; i < input.size(); i++) {
+            long batchStart = System.nanoTime();
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/" + collection).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(input.get(i).length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(input.get(i));
+            }
+            if (connection.getResponseCode() != Web.Status.OK) {
+                throw new IOException("POST failed with status " + connection.getResponseCode());
+            }
+            try (InputStream in = connection.getInputStream()) {
+                in.readAllBytes();
+            }
+            latencies[i] = System.nanoTime() - batchStart;
+        }
+        report(name, records, bytes(input), System.nanoTime() - start, latencies, dataStore.getIndex(collection));
+    }
+
+    private static void undertow(Webapp webapp, DataStore dataStore, List<byte[]> input, int records) throws IOException {
+        UWeb.UServer server;
+        try {
+            server = new UWeb.UServer("localhost", 0, "", webapp, new NullAuthorizer());
+            server.start();
+        } catch (RuntimeException | LinkageError e) {
+            System.out.println("http (undertow): skipped, " + e);
+            return;
+        }
+        try {
+            http("http (undertow)", "http://localhost:" + server.port(), dataStore, "undertow", input, records);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Replicates the source collection end to end: fetching and decoding the change feed and applying it.
+     */
+    private static void replicate(DataStore dataStore, String baseUrl, String source, String target, int records) throws Exception {
+        ChangePollingThread poller = new ChangePollingThread(baseUrl + "/" + source, 1, 10 * 1024 * 1024, dataStore);
+        poller.collection = target;
+        poller.index = dataStore.getIndex(target, true);
+        List<Long> latencies = new ArrayList<>();
+        long start = System.nanoTime();
+        String since = "0";
+        while (true) {
+            poller.finalUrl = poller.primaryReplicationUrl + "/changes?size=" + poller.batchSize + "&since=" + since;
+            long pollStart = System.nanoTime();
+            boolean more = poller.replicate();
+            latencies.add(System.nanoTime() - pollStart);
+            // replicate() waits for the applier once it has caught up
+            if (!more) break;
+            since = String.valueOf(poller.fetched);
+        }
+        long elapsed = System.nanoTime() - start;
+        long walBytes = poller.index.statistics.getTickerCount(TickerType.BYTES_WRITTEN);
+        report("replicate()", records, walBytes, elapsed,
+                latencies.stream().mapToLong(Long::longValue).toArray(), poller.index);
+    }
+
+    /**
+     * Fetches the whole change feed first, then times applying each write batch on its own.
+     */
+    private static void commitWriteBatch(DataStore dataStore, String baseUrl, String source, String target, int records) throws Exception {
+        List<ChangePollingThread.ChangeEvent> events = new ArrayList<>();
+        long since = 0;
+        for (int fetched = -1; fetched != events.size(); ) {
+            fetched = events.size();
+            URL url = new URL(baseUrl + "/" + source + "/changes?size=" + 10 * 1024 * 1024 + "&since=" + since);
+            try (InputStream in = url.openStream();
+                 MappingIterator<ChangePollingThread.ChangeEvent> iterator = JSON_MAPPER
+                         .readerFor(ChangePollingThread.ChangeEvent.class).readValues(in)) {
+                while (iterator.hasNext()) {
+                    ChangePollingThread.ChangeEvent event = iterator.next();
+                    // each response starts with the batch containing 'since', which we already have
+                    if (events.isEmpty() || event.sequenceNumber > since) {
+                        events.add(event);
+                        since = event.sequenceNumber;
+                    }
+                }
+            }
+        }
+
+        ChangePollingThread poller = new ChangePollingThread(baseUrl + "/" + source, 1, 10 * 1024 * 1024, dataStore);
+        Index index = dataStore.getIndex(target, true);
+        long[] latencies = new long[events.size()];
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < events.size(); i++) {
+            ChangePollingThread.ChangeEvent event = events.get(i);
+            long commitStart = System.nanoTime();
+            poller.commitWriteBatch(index, event.sequenceNumber, event.writeBatch);
+            latencies[i] = System.nanoTime() - commitStart;
+            bytes += event.writeBatch.length;
+        }
+        report("commitWriteBatch()", records, bytes, System.nanoTime() - start, latencies, index);
+    }
+
+    private static long bytes(List<byte[]> input) {
+        return input.stream().mapToLong(chunk -> chunk.length).sum();
+    }
+
+    private static void report(String name, long records, long bytes, long nanos, long[] latencies, Index index) {
+        double seconds = nanos / 1e9;
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s: %d records in %.2fs, %.0f records/s, %.1f MB/s, write amplification %s, " +
+                        "commit p50 %s p99 %s max %s%n", name, records, seconds, records / seconds, bytes / seconds / 1e6,
+                writeAmplification(index), percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    /**
+     * Flushes the memtables, waits for compactions to settle and returns the bytes written to SST files for each byte
+     * written to the database.
+     */
+    private static String writeAmplification(Index index) {
+        try (FlushOptions flushOptions = new FlushOptions().setWaitForFlush(true)) {
+            index.db.flush(flushOptions);
+            while (index.db.getLongProperty("rocksdb.compaction-pending") > 0 ||
+                    index.db.getLongProperty("rocksdb.num-running-compactions") > 0) {
+                Thread.sleep(100);
+            }
+        } catch (RocksDBException e) {
+            return "- (" + e.getMessage() + ")";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long written = index.statistics.getTickerCount(TickerType.BYTES_WRITTEN);
+        long sstBytes = index.statistics.getTickerCount(TickerType.FLUSH_WRITE_BYTES) +
+                index.statistics.getTickerCount(TickerType.COMPACT_WRITE_BYTES);
+        return written == 0 ? "-" : String.format("%.2f", (double) sstBytes / written);
+    }
+
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return "-";
+        int index = Math.max(0, (int) Math.ceil(p * sorted.length) - 1);
+        return String.format("%.2fms", sorted[index] / 1e6);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,53 @@
+package outbackcdx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LruCacheTest {
+    @Test
+    public void testEviction() {
+        LruCache<Integer, String> cache = new LruCache<>(3);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        assertEquals("one", cache.get(1));
+
+        cache.put(4, "four");
+        assertEquals(3, cache.size());
+        assertEquals("one", cache.get(1));
+        assertEquals("four", cache.get(4));
+    }
+
+    @Test
+    public void testStaysBoundedUnderConcurrentUse() throws InterruptedException {
+        LruCache<Integer, Integer> cache = new LruCache<>(100);
+        List<Thread> threads = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t * 10_000;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    cache.put(offset + i, i);
+                    Integer value = cache.get(offset + i / 2);
+                    assertTrue(value == null || value == i / 2);
+                }
+            });
+            thread.setUncaughtExceptionHandler((th, e) -> failure.set(e));
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertTrue(cache.size() <= 100 + threads.size());
+        assertNull(cache.get(0));
+    }
+}
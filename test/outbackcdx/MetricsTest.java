@@ -0,0 +1,65 @@
+package outbackcdx;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram(new long[]{10, 100});
+        histogram.observe(5);
+        histogram.observe(10);
+        histogram.observe(50);
+        histogram.observe(500);
+        assertEquals(4, histogram.count());
+
+        StringBuilder out = new StringBuilder();
+        histogram.write(out, "test", "a=\"b\"", 1);
+        assertEquals("test_bucket{a=\"b\",le=\"10\"} 2\n" +
+                "test_bucket{a=\"b\",le=\"100\"} 3\n" +
+                "test_bucket{a=\"b\",le=\"+Inf\"} 4\n" +
+                "test_sum{a=\"b\"} 565\n" +
+                "test_count{a=\"b\"} 4\n", out.toString());
+    }
+
+    @Test
+    public void testRequestMetrics() {
+        long start = System.nanoTime() - 3_000_000;
+        Metrics.recordRequest("GET", "/<collection>/metricstest", 200, start, 2000);
+        Metrics.recordRequest("GET", "/<collection>/metricstest", 503, start, 10);
+        String metrics = Metrics.render(null);
+        assertTrue(metrics.contains("outbackcdx_http_requests_total{method=\"GET\",route=\"/<collection>/metricstest\",status=\"2xx\"} 1\n"));
+        assertTrue(metrics.contains("outbackcdx_http_requests_total{method=\"GET\",route=\"/<collection>/metricstest\",status=\"5xx\"} 1\n"));
+        assertTrue(metrics.contains("outbackcdx_http_request_duration_seconds_bucket{method=\"GET\",route=\"/<collection>/metricstest\",le=\"0.001\"} 0\n"));
+        assertTrue(metrics.contains("outbackcdx_http_response_bytes_bucket{method=\"GET\",route=\"/<collection>/metricstest\",le=\"4096\"} 2\n"));
+    }
+
+    @Test
+    public void testUnknownMethod() {
+        Metrics.recordRequest("X-RANDOM-1234", "/<collection>/methodtest", 400, System.nanoTime(), 0);
+        String metrics = Metrics.render(null);
+        assertTrue(metrics.contains("outbackcdx_http_requests_total{method=\"other\",route=\"/<collection>/methodtest\",status=\"4xx\"} 1\n"));
+        assertFalse(metrics.contains("X-RANDOM-1234"));
+    }
+
+    @Test
+    public void testReplicasPerCollectionAreCapped() {
+        for (int i = 0; i < Metrics.MAX_REPLICAS_PER_COLLECTION * 2; i++) {
+            Metrics.recordChangeFeedRequest("replicacap", "10.0.0." + i, 0, false);
+        }
+        Map<?, ?> replicas = (Map<?, ?>) Metrics.replicationStatus(null).get("replicas");
+        Map<?, ?> clients = (Map<?, ?>) replicas.get("replicacap");
+        assertTrue(clients.size() <= Metrics.MAX_REPLICAS_PER_COLLECTION);
+        assertTrue(clients.containsKey("10.0.0." + (Metrics.MAX_REPLICAS_PER_COLLECTION * 2 - 1)));
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("a\\\\b\\\"c\\n", Metrics.escape("a\\b\"c\n"));
+    }
+}
@@ -0,0 +1,166 @@
+package outbackcdx;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures how long each output format takes to write 100k captures. The writerBaseline benchmark reproduces the
+ * old char-based cdx path (value.toString() through a BufferedWriter and OutputStreamWriter) for comparison.
+ * The decode benchmark measures the client side: parsing every value of the encoded output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputFormatBenchmark {
+    static final int CAPTURES = 100_000;
+
+    @State(Scope.Benchmark)
+    public static class MyState {
+        @Param({"cdx", "json", "jsondict", "cdxj", "cbor", "batch"})
+        String output;
+
+        List<Capture> captures = new ArrayList<>();
+        Query query;
+        byte[] encoded;
+
+        @Setup
+        public void setup() {
+            UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+            for (int i = 0; i < CAPTURES; i++) {
+                captures.add(Capture.fromCdxLine("- " + (20050101000000L + i) + " http://example" + (i % 100)
+                        + ".org/page/" + i + "?q=" + (i * 31) + " text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - "
+                        + (i * 1024L) + " example-" + (i / 1000) + ".warc.gz", canonicalizer));
+            }
+            query = new Query(new MultiMap<>(), Collections.emptyList());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (OutputBuffer out = new OutputBuffer(bos);
+                 WbCdxApi.OutputFormat format = construct(out)) {
+                for (Capture capture : captures) {
+                    format.writeCapture(capture);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            encoded = bos.toByteArray();
+        }
+
+        WbCdxApi.OutputFormat construct(OutputBuffer out) throws IOException {
+            switch (output) {
+                case "json": return new WbCdxApi.JsonFormat(query, Collections.emptyMap(), out);
+                case "jsondict": return new WbCdxApi.JsonDictFormat(query, Collections.emptyMap(), out);
+                case "cdxj": return new WbCdxApi.CdxjFormat(query, Collections.emptyMap(), out);
+                case "cbor": return new WbCdxApi.CborFormat(query, Collections.emptyMap(), out);
+                case "batch": return new WbCdxApi.RecordBatchFormat(query, Collections.emptyMap(), out);
+                default: return new WbCdxApi.TextFormat(query, Collections.emptyMap(), out);
+            }
+        }
+    }
+
+    /**
+     * Discards output, counting the bytes so the JIT can't eliminate the writes.
+     */
+    static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public long format(MyState state) throws IOException {
+        CountingStream stream = new CountingStream();
+        try (OutputBuffer out = new OutputBuffer(stream);
+             WbCdxApi.OutputFormat format = state.construct(out)) {
+            for (Capture capture : state.captures) {
+                format.writeCapture(capture);
+            }
+        }
+        return stream.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public long writerBaseline(MyState state) throws IOException {
+        CountingStream stream = new CountingStream();
+        String[] fields = state.query.fields;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8))) {
+            for (Capture capture : state.captures) {
+                for (int i = 0; i < fields.length; i++) {
+                    Object value = capture.get(fields[i]);
+                    writer.write(value == null ? "-" : value.toString());
+                    if (i < fields.length - 1) {
+                        writer.write(' ');
+                    }
+                }
+                writer.write('\n');
+            }
+        }
+        return stream.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CAPTURES)
+    public long decode(MyState state, Blackhole blackhole) throws IOException {
+        switch (state.output) {
+            case "json":
+            case "jsondict":
+                return decodeTokens(Json.JSON_FACTORY.createParser(state.encoded), blackhole);
+            case "cbor":
+                return decodeTokens(Json.CBOR_FACTORY.createParser(state.encoded), blackhole);
+            case "batch":
+                RecordBatchDecoder decoder = new RecordBatchDecoder(new ByteArrayInputStream(state.encoded));
+                long rows = 0;
+                for (List<Object[]> batch = decoder.nextBatch(); batch != null; batch = decoder.nextBatch()) {
+                    blackhole.consume(batch);
+                    rows += batch.size();
+                }
+                return rows;
+            default:
+                long lines = 0;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(state.encoded), UTF_8));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    blackhole.consume(line.split(" ", 3));
+                    lines++;
+                }
+                return lines;
+        }
+    }
+
+    private static long decodeTokens(JsonParser parser, Blackhole blackhole) throws IOException {
+        long values = 0;
+        for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+            switch (token) {
+                case VALUE_STRING: blackhole.consume(parser.getText()); break;
+                case VALUE_NUMBER_INT: blackhole.consume(parser.getLongValue()); break;
+                case VALUE_EMBEDDED_OBJECT: blackhole.consume(parser.getBinaryValue()); break;
+                default: continue;
+            }
+            values++;
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws IOException {
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -0,0 +1,114 @@
+package outbackcdx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static outbackcdx.Json.JSON_MAPPER;
+import static outbackcdx.Web.Method.GET;
+import static outbackcdx.Web.Method.POST;
+import static outbackcdx.Web.Status.FORBIDDEN;
+import static outbackcdx.Web.Status.OK;
+
+/**
+ * Runs a read replica against the data directory of a primary in the same JVM, as a second process on the same host
+ * would.
+ */
+public class ReadReplicaTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DataStore primary;
+    private DataStore replica;
+    private Webapp primaryWebapp;
+    private Webapp replicaWebapp;
+
+    @Before
+    public void setUp() throws Exception {
+        FeatureFlags.setExperimentalAccessControl(true);
+        File primaryDir = folder.newFolder();
+        primary = new DataStore(primaryDir, 256, null, Long.MAX_VALUE, null);
+        primaryWebapp = new Webapp(primary, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000, new QueryConfig(), null, null);
+        DataStore.Settings settings = new DataStore.Settings();
+        settings.primaryDataDir = primaryDir;
+        settings.catchUpIntervalMillis = 20;
+        replica = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null, settings);
+        replicaWebapp = new Webapp(replica, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000, new QueryConfig(), null, null);
+    }
+
+    @After
+    public void tearDown() {
+        replica.close();
+        primary.close();
+        FeatureFlags.setExperimentalAccessControl(false);
+    }
+
+    @Test
+    public void test() throws Exception {
+        handle(primaryWebapp, POST, "/test", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        assertTrue(query("http://nla.gov.au/").contains("http://nla.gov.au/ "));
+        assertEquals(Collections.singletonList("test"), replica.listCollections());
+
+        // writes are refused rather than failing inside RocksDB
+        handle(replicaWebapp, POST, "/test", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", FORBIDDEN);
+        handle(replicaWebapp, POST, "/test/compact", "", FORBIDDEN);
+
+        // the primary's writes show up once we've caught up, access rules included
+        handle(primaryWebapp, POST, "/test", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        Index primaryIndex = primary.getIndex("test");
+        AccessRule rule = new AccessRule();
+        rule.policyId = primaryIndex.accessControl.listPolicies().iterator().next().id;
+        rule.urlPatterns.add("*.nla.gov.au");
+        primaryIndex.accessControl.put(rule, "test");
+        Index replicaIndex = replica.getIndex("test");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!query("http://nla.gov.au/two").contains("http://nla.gov.au/two ")
+                || replicaIndex.accessControl.list().size() != 1) {
+            assertTrue("replica didn't catch up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(primaryIndex.getLatestSequenceNumber(), replicaIndex.getLatestSequenceNumber());
+
+        Map<?, ?> stats = JSON_MAPPER.readValue(handle(replicaWebapp, GET, "/test/stats", null, OK), Map.class);
+        Map<?, ?> catchUp = (Map<?, ?>) stats.get("catchUp");
+        assertNotNull(catchUp);
+        assertTrue(((Number) catchUp.get("lagMillis")).longValue() < 10000);
+    }
+
+    private String query(String url) throws Exception {
+        DummyRequest request = new DummyRequest(GET, "/test");
+        request.parm("url", url);
+        Web.Response response = replicaWebapp.handle(request);
+        if (response == Web.Response.ALREADY_SENT) {
+            response = request.streamedResponse();
+        }
+        assertEquals(OK, response.getStatus());
+        return slurp(response);
+    }
+
+    private String handle(Webapp webapp, Web.Method method, String url, String data, int expectedStatus) throws Exception {
+        Web.Response response = webapp.handle(new DummyRequest(method, url, data));
+        assertEquals(expectedStatus, response.getStatus());
+        return slurp(response);
+    }
+
+    private String slurp(Web.Response response) throws Exception {
+        if (response.getBodyWriter() == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBodyWriter().stream(out);
+        return out.toString(UTF_8);
+    }
+}
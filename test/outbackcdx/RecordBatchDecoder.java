@@ -0,0 +1,112 @@
+package outbackcdx;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static outbackcdx.WbCdxApi.RecordBatchFormat.*;
+
+/**
+ * Reference decoder for the output=batch format written by {@link WbCdxApi.RecordBatchFormat}. Rows are returned
+ * as arrays in field order holding Long, String or byte[] values, with null for absent values.
+ */
+class RecordBatchDecoder {
+    final String[] fields;
+    final int[] types;
+    private final DataInputStream in;
+    private boolean finished;
+
+    RecordBatchDecoder(InputStream stream) throws IOException {
+        in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a record batch stream");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported record batch version " + version);
+        }
+        int fieldCount = (int) readVarint(in);
+        fields = new String[fieldCount];
+        types = new int[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            byte[] name = new byte[(int) readVarint(in)];
+            in.readFully(name);
+            fields[i] = new String(name, UTF_8);
+            types[i] = in.readUnsignedByte();
+        }
+    }
+
+    /**
+     * Returns the rows of the next batch or null at the end of the stream.
+     */
+    List<Object[]> nextBatch() throws IOException {
+        if (finished) return null;
+        int length = in.readInt();
+        if (length == 0) {
+            finished = true;
+            return null;
+        }
+        byte[] batch = new byte[length];
+        in.readFully(batch);
+        ByteBuffer data = ByteBuffer.wrap(batch);
+        int count = (int) VarInt.decode(data);
+        List<Object[]> rows = new ArrayList<>(count);
+        for (int r = 0; r < count; r++) {
+            rows.add(new Object[fields.length]);
+        }
+        for (int f = 0; f < fields.length; f++) {
+            long previous = 0;
+            for (int r = 0; r < count; r++) {
+                Object value;
+                if (types[f] == INTEGER) {
+                    long zigzag = VarInt.decode(data);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    value = previous == Long.MIN_VALUE ? null : previous;
+                } else {
+                    int n = (int) VarInt.decode(data);
+                    if (n == 0) {
+                        value = null;
+                    } else if (types[f] == BYTES) {
+                        byte[] bytes = new byte[n - 1];
+                        data.get(bytes);
+                        value = bytes;
+                    } else {
+                        value = new String(batch, data.position(), n - 1, UTF_8);
+                        data.position(data.position() + n - 1);
+                    }
+                }
+                rows.get(r)[f] = value;
+            }
+        }
+        return rows;
+    }
+
+    List<Object[]> readAll() throws IOException {
+        List<Object[]> rows = new ArrayList<>();
+        for (List<Object[]> batch = nextBatch(); batch != null; batch = nextBatch()) {
+            rows.addAll(batch);
+        }
+        return rows;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long x = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) throw new EOFException();
+            x |= (long) (b & 127) << shift;
+            shift += 7;
+        } while ((b & 128) != 0);
+        return x;
+    }
+}
@@ -5,13 +5,30 @@ import org.junit.rules.TemporaryFolder;
 
 import outbackcdx.Web.Status;
 import outbackcdx.auth.NullAuthorizer;
+import outbackcdx.auth.Permission;
+
+import org.rocksdb.WriteBatch;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static outbackcdx.Web.Method.*;
 import static outbackcdx.Web.Status.OK;
 
@@ -82,6 +99,456 @@ public class ReplicationFeaturesTest {
         }
     }
 
+    @Test
+    public void testBinaryChangeFeed() throws Exception {
+        POST("/src", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        POST("/src", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+
+        ChangePollingThread.ChangeEvent[] json = Json.JSON_MAPPER.readValue(GET("/src/changes", OK, "since", "0"),
+                ChangePollingThread.ChangeEvent[].class);
+        assertEquals(json.length, Json.JSON_MAPPER.readValue(GET("/src/changes", OK, "since", "0", "format", "json"),
+                ChangePollingThread.ChangeEvent[].class).length);
+
+        DummyRequest request = new DummyRequest(GET, "/src/changes");
+        request.parm("since", "0");
+        request.parm("format", "binary");
+        Web.Response response = webapp.handle(request);
+        assertEquals(OK, response.getStatus());
+        assertEquals(Webapp.ChangeFeedBinaryStream.CONTENT_TYPE, response.getHeaders().get("Content-Type").get(0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBodyWriter().stream(out);
+
+        ChangePollingThread pollingThread = new ChangePollingThread("http://localhost/src", 1000, 10 * 1024 * 1024, manager);
+        Index dest = manager.getIndex("dest", true);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (ChangePollingThread.ChangeEvent event : json) {
+            assertEquals(event.sequenceNumber, input.readLong());
+            byte[] writeBatch = new byte[input.readInt()];
+            input.readFully(writeBatch);
+            assertArrayEquals(event.writeBatch, writeBatch);
+            pollingThread.commitWriteBatch(dest, event.sequenceNumber, writeBatch);
+        }
+        assertEquals(-1, input.readLong());
+        assertEquals(-1, input.readInt());
+        assertEquals(-1, input.read());
+        assertTrue(GET("/dest", OK, "url", "http://nla.gov.au/two").contains("http://nla.gov.au/two"));
+
+        GET("/src/changes", Status.BAD_REQUEST, "since", "0", "format", "xml");
+    }
+
+    /**
+     * Requests a followed change feed and streams it on another thread, so the test can read it as it arrives.
+     */
+    private DataInputStream follow(String since, int heartbeatSecs, List<Thread> streamers) throws Exception {
+        DummyRequest request = new DummyRequest(GET, "/src/changes");
+        request.parm("since", since);
+        request.parm("follow", "true");
+        request.parm("heartbeat", String.valueOf(heartbeatSecs));
+        Web.Response response = webapp.handle(request);
+        assertEquals(OK, response.getStatus());
+        PipedInputStream pipe = new PipedInputStream(64 * 1024);
+        PipedOutputStream out = new PipedOutputStream(pipe);
+        Thread streamer = new Thread(() -> {
+            try {
+                response.getBodyWriter().stream(out);
+            } catch (IOException e) {
+                // reader went away
+            }
+        });
+        streamer.start();
+        streamers.add(streamer);
+        return new DataInputStream(pipe);
+    }
+
+    @Test
+    public void testFollowChangeFeed() throws Exception {
+        POST("/src", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        long seq = Long.parseLong(GET("/src/sequence", OK));
+
+        List<Thread> streamers = new ArrayList<>();
+        // with a long heartbeat interval, the next thing after committing must be the batch rather than a heartbeat
+        try (DataInputStream input = follow("0", 60, streamers)) {
+            assertEquals(1, input.readLong());
+            input.readFully(new byte[input.readInt()]);
+            assertEquals(seq, input.readLong());
+            assertEquals(Webapp.ChangeFeedBinaryStream.HEARTBEAT, input.readInt());
+
+            // pushed as soon as it's committed
+            POST("/src", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            assertEquals(seq + 1, input.readLong());
+            int length = input.readInt();
+            assertTrue("expected the batch before the next heartbeat", length >= 0);
+            byte[] batch = new byte[length];
+            input.readFully(batch);
+            assertTrue(new String(batch, UTF_8).contains("nla.gov.au/two"));
+            assertEquals(seq + 1, input.readLong());
+            assertEquals(Webapp.ChangeFeedBinaryStream.HEARTBEAT, input.readInt());
+        }
+
+        // and heartbeats keep coming while idle
+        try (DataInputStream input = follow(String.valueOf(seq + 1), 1, streamers)) {
+            // the feed resends the batch containing since before it goes idle
+            assertEquals(seq + 1, input.readLong());
+            input.readFully(new byte[input.readInt()]);
+            for (int i = 0; i < 2; i++) {
+                assertEquals(seq + 1, input.readLong());
+                assertEquals(Webapp.ChangeFeedBinaryStream.HEARTBEAT, input.readInt());
+            }
+        }
+
+        // the first feed would only notice we've gone at its next heartbeat, a minute away
+        streamers.get(0).interrupt();
+        for (Thread streamer : streamers) {
+            streamer.join(5000);
+            assertFalse(streamer.isAlive());
+        }
+
+        GET("/src/changes", Status.BAD_REQUEST, "since", "0", "follow", "true", "format", "json");
+    }
+
+    @Test
+    public void testCoalescedApply() throws Exception {
+        List<ReplicationApplier.Batch> batches = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            try (WriteBatch batch = new WriteBatch()) {
+                for (int j = 0; j <= i; j++) {
+                    batch.put(("key" + i + "-" + j).getBytes(UTF_8), "value".getBytes(UTF_8));
+                }
+                batches.add(new ReplicationApplier.Batch(10 + i, batch.data()));
+            }
+        }
+        byte[] merged = ReplicationApplier.merge(batches);
+        try (WriteBatch batch = new WriteBatch(merged)) {
+            assertEquals(6, batch.count());
+        }
+
+        ChangePollingThread pollingThread = new ChangePollingThread("http://localhost/src", 1000, 10 * 1024 * 1024, manager);
+        Index dest = manager.getIndex("dest", true);
+        List<Long> commits = Collections.synchronizedList(new ArrayList<>());
+        ReplicationApplier applier = new ReplicationApplier("test apply", (sequenceNumber, writeBatch) -> {
+            commits.add(sequenceNumber);
+            pollingThread.commitWriteBatch(dest, sequenceNumber, writeBatch);
+        });
+        for (ReplicationApplier.Batch batch : batches) {
+            applier.put(batch.sequenceNumber, batch.data);
+        }
+        applier.await();
+        assertEquals(Long.valueOf(12), commits.get(commits.size() - 1));
+        assertEquals("12", new String(dest.db.get(pollingThread.SEQ_NUM_KEY), UTF_8));
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j <= i; j++) {
+                assertArrayEquals("value".getBytes(UTF_8), dest.db.get(("key" + i + "-" + j).getBytes(UTF_8)));
+            }
+        }
+
+        // a failed batch is reported to the fetcher, and reset clears it
+        byte[] corrupt = new byte[13];
+        corrupt[8] = 1;
+        corrupt[12] = 0x42; // not a record type
+        applier.put(13, corrupt);
+        try {
+            applier.await();
+            fail("expected failure");
+        } catch (IOException e) {
+            // expected
+        }
+        applier.reset();
+        applier.await();
+    }
+
+    @Test
+    public void testCascadingReplication() throws Exception {
+        POST("/src", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        DataStore relayStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        DataStore leafStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        Webapp relayWebapp = new Webapp(relayStore, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000, new QueryConfig(), null, null);
+        HttpServer primaryServer = serve(webapp);
+        HttpServer relayServer = serve(relayWebapp);
+        ChangePollingThread relay = new ChangePollingThread("http://localhost:" + primaryServer.getAddress().getPort() + "/src", 1, 10 * 1024 * 1024, relayStore);
+        ChangePollingThread leaf = new ChangePollingThread("http://localhost:" + relayServer.getAddress().getPort() + "/src", 1, 10 * 1024 * 1024, leafStore);
+        try {
+            relay.setDaemon(true);
+            relay.start();
+            Index relayIndex = awaitReplica(relayStore, "http://nla.gov.au/");
+            leaf.setDaemon(true);
+            leaf.start();
+            Index leafIndex = awaitReplica(leafStore, "http://nla.gov.au/");
+
+            // a new record flows down the tree through the followed feeds
+            POST("/src", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            awaitReplica(leafStore, "http://nla.gov.au/two");
+
+            // each node tracks its position in its own upstream's sequence numbers
+            long primarySequence = manager.getIndex("src").getLatestSequenceNumber();
+            long deadline = System.currentTimeMillis() + 30000;
+            while (Long.parseLong(new String(relayIndex.db.get(relay.SEQ_NUM_KEY), UTF_8)) != primarySequence) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            long leafPosition = Long.parseLong(new String(leafIndex.db.get(leaf.SEQ_NUM_KEY), UTF_8));
+            assertTrue(leafPosition <= relayIndex.getLatestSequenceNumber());
+            assertTrue(leafPosition > relayIndex.getLatestSequenceNumber() - 5);
+        } finally {
+            relay.shuttingDown = true;
+            leaf.shuttingDown = true;
+            relayServer.stop(0);
+            primaryServer.stop(0);
+            relay.join(30000);
+            leaf.join(30000);
+            relayStore.close();
+            leafStore.close();
+        }
+    }
+
+    @Test
+    public void testReplicationStatus() throws Exception {
+        POST("/status", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        DataStore replicaStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        HttpServer primaryServer = serve(webapp);
+        ChangePollingThread poller = new ChangePollingThread("http://localhost:" + primaryServer.getAddress().getPort() + "/status", 1, 10 * 1024 * 1024, replicaStore);
+        try {
+            poller.setDaemon(true);
+            poller.start();
+            awaitReplica(replicaStore, "status", "http://nla.gov.au/");
+            POST("/status", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            awaitReplica(replicaStore, "status", "http://nla.gov.au/two");
+
+            // both ends agree the secondary has everything once the next heartbeat arrives
+            long latest = manager.getIndex("status").getLatestSequenceNumber();
+            long deadline = System.currentTimeMillis() + 30000;
+            Map<?, ?> secondary;
+            Map<?, ?> replica;
+            while (true) {
+                Map<?, ?> status = Json.JSON_MAPPER.readValue(GET("/api/replication", OK), Map.class);
+                secondary = (Map<?, ?>) ((Map<?, ?>) status.get("replicating")).get("status");
+                replica = (Map<?, ?>) ((Map<?, ?>) ((Map<?, ?>) status.get("replicas")).get("status")).values().iterator().next();
+                if (((Number) secondary.get("appliedSequenceNumber")).longValue() == latest
+                        && ((Number) replica.get("behind")).longValue() == 0) {
+                    break;
+                }
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(latest, ((Number) secondary.get("primarySequenceNumber")).longValue());
+            assertEquals(0L, ((Number) secondary.get("behind")).longValue());
+            assertEquals(0, ((Number) secondary.get("consecutiveFailures")).intValue());
+            assertTrue(((Number) secondary.get("bytesPerSecond")).doubleValue() > 0);
+            assertEquals(true, replica.get("following"));
+
+            String metrics = GET("/metrics", OK);
+            assertTrue(metrics.contains("outbackcdx_replication_primary_sequence_number{collection=\"status\"} " + latest));
+            assertTrue(metrics.contains("outbackcdx_replica_behind{collection=\"status\","));
+            assertTrue(metrics.contains("outbackcdx_replication_apply_duration_seconds_count{collection=\"status\"}"));
+        } finally {
+            poller.shuttingDown = true;
+            primaryServer.stop(0);
+            poller.join(30000);
+            replicaStore.close();
+        }
+    }
+
+    @Test
+    public void testPollWhenFollowRefused() throws Exception {
+        POST("/refused", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        Map<AdmissionControl.Lane, AdmissionControl.LaneConfig> lanes = AdmissionControl.defaults();
+        lanes.put(AdmissionControl.Lane.FOLLOW, AdmissionControl.followLane(1));
+        webapp.admissionControl = new AdmissionControl(lanes);
+        // another secondary already has the only follow slot
+        DummyRequest other = new DummyRequest(GET, "/refused/changes");
+        other.parm("follow", "true");
+        AdmissionControl.Ticket ticket = webapp.admissionControl.admit(other);
+
+        DataStore replicaStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        HttpServer primaryServer = serve(webapp);
+        ChangePollingThread poller = new ChangePollingThread("http://localhost:" + primaryServer.getAddress().getPort() + "/refused", 1, 10 * 1024 * 1024, replicaStore);
+        try {
+            poller.setDaemon(true);
+            poller.start();
+            awaitReplica(replicaStore, "refused", "http://nla.gov.au/");
+            POST("/refused", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            awaitReplica(replicaStore, "refused", "http://nla.gov.au/two");
+            assertEquals(0, poller.failures);
+        } finally {
+            ticket.release();
+            webapp.admissionControl = null;
+            poller.shuttingDown = true;
+            primaryServer.stop(0);
+            poller.join(30000);
+            replicaStore.close();
+        }
+    }
+
+    @Test
+    public void testFullJsonWindowIsNotCaughtUp() throws Exception {
+        // a primary that predates the binary format counts the window in base64, about 4/3 of the raw size
+        StringBuilder json = new StringBuilder("[\n");
+        long rawSize = 0;
+        for (int i = 1; i <= 2; i++) {
+            try (WriteBatch batch = new WriteBatch()) {
+                batch.put(("key" + i).getBytes(UTF_8), new byte[40]);
+                byte[] data = batch.data();
+                rawSize += data.length;
+                json.append(i > 1 ? ",\n" : "").append("{\"sequenceNumber\": \"").append(i)
+                        .append("\", \"writeBatch\": \"").append(Base64.getEncoder().encodeToString(data)).append("\"}");
+            }
+        }
+        byte[] body = json.append("\n]\n").toString().getBytes(UTF_8);
+        HttpServer legacy = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        legacy.createContext("/legacy/changes", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        legacy.start();
+        DataStore replicaStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        try {
+            replicaStore.getIndex("legacy", true);
+            ChangePollingThread poller = new ChangePollingThread("http://localhost:" + legacy.getAddress().getPort() + "/legacy",
+                    1, rawSize + 10, replicaStore);
+            poller.follow = false;
+            assertTrue("a window full in base64 should be fetched again straight away", poller.poll());
+            assertEquals(0, poller.failures);
+        } finally {
+            legacy.stop(0);
+            replicaStore.close();
+        }
+    }
+
+    @Test
+    public void testMirrorAllCollections() throws Exception {
+        POST("/one", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        POST("/two", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        Map<String, Long> sequences = Json.JSON_MAPPER.readValue(GET("/api/sequences", OK), new TypeReference<Map<String, Long>>() {});
+        assertEquals(Long.valueOf(manager.getIndex("two").getLatestSequenceNumber()), sequences.get("two"));
+
+        DataStore mirrorStore = new DataStore(folder.newFolder(), 256, null, Long.MAX_VALUE, null);
+        HttpServer primaryServer = serve(webapp);
+        ReplicationScheduler scheduler = new ReplicationScheduler("http://localhost:" + primaryServer.getAddress().getPort() + "/", 1, 10 * 1024 * 1024, 2, mirrorStore);
+        try {
+            scheduler.setDaemon(true);
+            scheduler.start();
+            awaitReplica(mirrorStore, "one", "http://nla.gov.au/");
+            awaitReplica(mirrorStore, "two", "http://nla.gov.au/");
+
+            // new collections and new records are both picked up
+            POST("/three", "- 20050614070159 http://nla.gov.au/three text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            POST("/one", "- 20050614070159 http://nla.gov.au/more text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+            awaitReplica(mirrorStore, "three", "http://nla.gov.au/three");
+            awaitReplica(mirrorStore, "one", "http://nla.gov.au/more");
+        } finally {
+            scheduler.shuttingDown = true;
+            scheduler.interrupt();
+            scheduler.join(30000);
+            primaryServer.stop(0);
+            mirrorStore.close();
+        }
+    }
+
+    private HttpServer serve(Webapp webapp) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new Web.SHandler(webapp, new NullAuthorizer(), new Compression()));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private Index awaitReplica(DataStore replica, String url) throws Exception {
+        return awaitReplica(replica, "src", url);
+    }
+
+    /**
+     * Waits for a replica's copy of a collection to contain the given URL.
+     */
+    private Index awaitReplica(DataStore replica, String collection, String url) throws Exception {
+        Webapp replicaWebapp = new Webapp(replica, false, Collections.emptyMap(), null, Collections.emptyMap(), 10000, new QueryConfig(), null, null);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            if (replica.getIndex(collection) != null) {
+                DummyRequest request = new DummyRequest(GET, "/" + collection);
+                request.parm("url", url);
+                request.parm("matchType", "exact");
+                Web.Response response = replicaWebapp.handle(request);
+                if (response == Web.Response.ALREADY_SENT) {
+                    response = request.streamedResponse();
+                }
+                if (slurp(response).contains(url + " ")) {
+                    return replica.getIndex(collection);
+                }
+            }
+            assertTrue("replica didn't receive " + url, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testBootstrap() throws Exception {
+        POST("/src", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        POST("/src", "- 20050614070159 http://nla.gov.au/two text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        long sequenceNumber = Long.parseLong(GET("/src/sequence", OK));
+
+        Bootstrap.Manifest manifest = Json.JSON_MAPPER.readValue(POST("/src/bootstrap", "", OK), Bootstrap.Manifest.class);
+        assertEquals(sequenceNumber, manifest.sequenceNumber);
+        assertFalse(manifest.files.isEmpty());
+        assertEquals(manifest.files.size(), Json.JSON_MAPPER.readValue(GET("/src/bootstrap/" + manifest.id, OK),
+                Bootstrap.Manifest.class).files.size());
+
+        // fetch every file as a secondary would and install the result as a new collection
+        Path db = folder.newFolder().toPath().resolve("db");
+        Files.createDirectories(db);
+        for (Bootstrap.FileEntry file : manifest.files) {
+            DummyRequest request = new DummyRequest(GET, "/src/bootstrap/" + manifest.id + "/" + file.name);
+            Web.Response response = webapp.handle(request);
+            assertEquals(OK, response.getStatus());
+            try (OutputStream out = Files.newOutputStream(db.resolve(file.name))) {
+                response.getBodyWriter().stream(out);
+            }
+            assertEquals(file.size, Files.size(db.resolve(file.name)));
+            assertEquals(file.crc32c, Bootstrap.crc32c(db.resolve(file.name)));
+        }
+        GET("/src/bootstrap/" + manifest.id + "/..", Status.NOT_FOUND);
+        GET("/src/bootstrap/" + manifest.id + "/missing", Status.NOT_FOUND);
+
+        Index copy = manager.install("copy", db);
+        assertEquals(sequenceNumber, copy.getLatestSequenceNumber());
+        assertTrue(GET("/copy", OK, "url", "http://nla.gov.au/two").contains("http://nla.gov.au/two"));
+
+        Web.Response response = webapp.handle(new DummyRequest(DELETE, "/src/bootstrap/" + manifest.id));
+        assertEquals(OK, response.getStatus());
+        GET("/src/bootstrap/" + manifest.id, Status.NOT_FOUND);
+    }
+
+    @Test
+    public void testBootstrapLimits() throws Exception {
+        POST("/limited", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 NLA-AU-CRAWL-000-20050614070144-00003-crawling016.archive.org\n", OK);
+        DummyRequest anonymous = new DummyRequest(POST, "/limited/bootstrap", "") {
+            @Override
+            public boolean hasPermission(Permission permission) {
+                return false;
+            }
+        };
+        assertEquals(Status.FORBIDDEN, webapp.handle(anonymous).getStatus());
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < Webapp.MAX_BOOTSTRAP_CHECKPOINTS; i++) {
+            ids.add(Json.JSON_MAPPER.readValue(POST("/limited/bootstrap", "", OK), Bootstrap.Manifest.class).id);
+        }
+        Web.Response refused = webapp.handle(new DummyRequest(POST, "/limited/bootstrap", ""));
+        assertEquals(Status.SERVICE_UNAVAILABLE, refused.getStatus());
+        assertEquals("60", refused.getHeaders().get("Retry-After").get(0));
+
+        DummyRequest anonymousDelete = new DummyRequest(DELETE, "/limited/bootstrap/" + ids.get(0)) {
+            @Override
+            public boolean hasPermission(Permission permission) {
+                return false;
+            }
+        };
+        assertEquals(Status.FORBIDDEN, webapp.handle(anonymousDelete).getStatus());
+        assertEquals(OK, webapp.handle(new DummyRequest(DELETE, "/limited/bootstrap/" + ids.get(0))).getStatus());
+        POST("/limited/bootstrap", "", OK);
+    }
+
     /*@Test
     public void testDeleteWals() throws Exception {
         FeatureFlags.setSecondaryMode(false);
@@ -0,0 +1,279 @@
+package outbackcdx;
+
+import org.rocksdb.RocksDBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.Period;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A deterministic synthetic web archive for benchmarks. Host popularity follows a Zipf distribution so a handful of
+ * hot hosts hold most of the captures, hosts share registered domains so domain queries span several of them, a few
+ * URLs per host (home pages, feeds) are captured over and over, and every twentieth host was renamed and has
+ * aliases from its old name. The same seed and size always produce the same corpus, and the same query samples.
+ */
+class SyntheticCorpus {
+    private static final String[] TLDS = {"com", "org", "net", "gov.au", "edu.au", "com.au", "org.au", "co.uk", "de"};
+    private static final String[] SUBDOMAINS = {"www", "www", "www", "news", "static", "blog", "shop", "m"};
+    private static final String[] WORDS = {"about", "archive", "article", "blog", "contact", "data", "events",
+            "files", "gallery", "help", "images", "library", "media", "news", "policy", "products", "reports",
+            "research", "search", "services", "story", "topics", "uploads", "video"};
+    private static final String[] EXTENSIONS = {"", "/", ".html", ".html", ".html", ".php", ".jpg", ".png", ".css",
+            ".js", ".pdf"};
+    private static final String[] HOT_PATHS = {"/", "/index.html", "/feed.xml", "/news/"};
+    private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    private static final long FIRST_CAPTURE = Instant.parse("1996-01-01T00:00:00Z").getEpochSecond();
+    private static final long LAST_CAPTURE = Instant.parse("2024-12-31T00:00:00Z").getEpochSecond();
+    private static final int BATCH_SIZE = 10_000;
+
+    final long seed;
+    final int size;
+    final String[] hosts;
+    final String[] domains;
+    private final int[] hostDomain;
+    private final double[] hostCdf;
+    private final UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+
+    SyntheticCorpus(long seed, int size) {
+        this.seed = seed;
+        this.size = size;
+        Random random = new Random(seed);
+        domains = new String[Math.max(4, size / 500)];
+        for (int i = 0; i < domains.length; i++) {
+            domains[i] = WORDS[random.nextInt(WORDS.length)] + i + "." + TLDS[random.nextInt(TLDS.length)];
+        }
+        hosts = new String[Math.max(10, size / 200)];
+        hostDomain = new int[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            hostDomain[i] = i < domains.length ? i : random.nextInt(domains.length);
+            String subdomain = i < domains.length ? "www" : SUBDOMAINS[random.nextInt(SUBDOMAINS.length)] + i;
+            hosts[i] = subdomain + "." + domains[hostDomain[i]];
+        }
+        hostCdf = zipfCdf(hosts.length, 1.1);
+    }
+
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    int pickHost(Random random) {
+        int i = Arrays.binarySearch(hostCdf, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, hosts.length - 1);
+    }
+
+    /**
+     * Picks a URL the way captures are distributed: mostly on hot hosts and a fifth of the time a hot path.
+     */
+    String pickUrl(Random random) {
+        int host = pickHost(random);
+        if (random.nextInt(5) == 0) {
+            return "http://" + hosts[host] + HOT_PATHS[random.nextInt(HOT_PATHS.length)];
+        }
+        // skewed towards low page numbers so ordinary pages get recaptured too
+        int page = random.nextInt(random.nextInt(size / 4 + 1) + 1);
+        return "http://" + hosts[host] + path(host, page);
+    }
+
+    private String path(int host, int page) {
+        Random random = new Random(seed ^ ((long) host << 32) ^ page);
+        StringBuilder path = new StringBuilder();
+        int depth = random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            path.append('/').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        path.append('/').append(WORDS[random.nextInt(WORDS.length)]).append('-').append(page);
+        path.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+        if (random.nextInt(10) == 0) {
+            path.append("?id=").append(random.nextInt(1000));
+        }
+        return path.toString();
+    }
+
+    /**
+     * The old name of a renamed host, or null if it was never renamed.
+     */
+    String oldHost(int host) {
+        return host % 20 == 19 ? "old-" + hosts[host] : null;
+    }
+
+    long pickTimestamp(Random random) {
+        long seconds = FIRST_CAPTURE + (long) (random.nextDouble() * (LAST_CAPTURE - FIRST_CAPTURE));
+        return Long.parseLong(Capture.arcTimeFormat.format(Instant.ofEpochSecond(seconds).atOffset(ZoneOffset.UTC)));
+    }
+
+    Capture capture(Random random, int n) {
+        Capture capture = new Capture();
+        capture.original = pickUrl(random);
+        capture.urlkey = canonicalizer.surtCanonicalize(capture.original);
+        capture.timestamp = pickTimestamp(random);
+        capture.mimetype = mimetype(capture.original);
+        int dice = random.nextInt(100);
+        if (dice < 85) {
+            capture.status = 200;
+        } else if (dice < 93) {
+            capture.status = dice % 2 == 0 ? 301 : 302;
+            capture.redirecturl = capture.original.endsWith("/") ? capture.original + "index.html" : capture.original + "/";
+        } else if (dice < 98) {
+            capture.status = 404;
+        } else {
+            capture.status = 503;
+        }
+        char[] digest = new char[32];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = BASE32[random.nextInt(BASE32.length)];
+        }
+        capture.digest = new String(digest);
+        capture.length = 300 + random.nextInt(100_000);
+        capture.file = "SYNTHETIC-" + capture.timestamp / 10_000_000_000L + "-" + (n / 5000) + ".warc.gz";
+        capture.compressedoffset = (n % 5000) * 50_000L;
+        return capture;
+    }
+
+    private static String mimetype(String url) {
+        if (url.endsWith(".jpg")) return "image/jpeg";
+        if (url.endsWith(".png")) return "image/png";
+        if (url.endsWith(".css")) return "text/css";
+        if (url.endsWith(".js")) return "application/javascript";
+        if (url.endsWith(".pdf")) return "application/pdf";
+        if (url.endsWith(".xml")) return "application/rss+xml";
+        return "text/html";
+    }
+
+    /**
+     * Loads the corpus into a collection of the data store, unless a previous run already did. Access rules are
+     * added too when experimental access control is enabled.
+     */
+    Index load(File dataDir, DataStore dataStore, String collection) throws IOException {
+        Index index = dataStore.getIndex(collection, true);
+        File marker = new File(new File(dataDir, collection), "SYNTHETIC-CORPUS");
+        if (marker.exists()) {
+            return index;
+        }
+        System.err.println(new Date() + " Generating " + size + " synthetic captures (seed " + seed +
+                ", index version " + FeatureFlags.indexVersion() + ") into " + collection);
+        Random random = new Random(seed);
+        for (int n = 0; n < size; ) {
+            try (Index.Batch batch = index.beginUpdate()) {
+                if (n == 0) {
+                    putAliases(batch);
+                }
+                for (int end = Math.min(size, n + BATCH_SIZE); n < end; n++) {
+                    batch.putCapture(capture(random, n));
+                }
+                batch.commit();
+            }
+        }
+        if (index.accessControl != null) {
+            putAccessRules(index.accessControl);
+        }
+        index.compact();
+        Files.write(marker.toPath(), (size + " captures, seed " + seed + "\n").getBytes(UTF_8));
+        return index;
+    }
+
+    private void putAliases(Index.Batch batch) throws IOException {
+        for (int host = 0; host < hosts.length; host++) {
+            String oldHost = oldHost(host);
+            if (oldHost == null) continue;
+            for (String path : HOT_PATHS) {
+                batch.putAlias(canonicalizer.surtCanonicalize("http://" + oldHost + path),
+                        canonicalizer.surtCanonicalize("http://" + hosts[host] + path));
+            }
+        }
+    }
+
+    /**
+     * Restricts every tenth registered domain to staff while leaving its home page public, and adds a site-wide one
+     * year embargo so every capture has at least one rule to evaluate.
+     */
+    private void putAccessRules(AccessControl accessControl) throws IOException {
+        Long publicPolicy = null, staffPolicy = null;
+        for (AccessPolicy policy : accessControl.listPolicies()) {
+            if (policy.name.equals("Public")) publicPolicy = policy.id;
+            if (policy.name.equals("Staff Only")) staffPolicy = policy.id;
+        }
+        try {
+            AccessRule embargo = new AccessRule();
+            embargo.policyId = staffPolicy;
+            embargo.urlPatterns.add("*");
+            embargo.period = Period.ofYears(1);
+            accessControl.put(embargo, "benchmark");
+            for (int domain = 3; domain < domains.length; domain += 10) {
+                AccessRule restricted = new AccessRule();
+                restricted.policyId = staffPolicy;
+                restricted.urlPatterns.add("*." + domains[domain]);
+                accessControl.put(restricted, "benchmark");
+                AccessRule homePage = new AccessRule();
+                homePage.policyId = publicPolicy;
+                homePage.urlPatterns.add("http://www." + domains[domain] + "/");
+                accessControl.put(homePage, "benchmark");
+            }
+        } catch (RocksDBException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * URLs to query, drawn from the same distribution as the captures and including some old aliased names.
+     */
+    List<String> sampleUrls(int n) {
+        Random random = new Random(seed + 1);
+        List<String> urls = new ArrayList<>(n);
+        while (urls.size() < n) {
+            int host = pickHost(random);
+            String oldHost = oldHost(host);
+            if (oldHost != null && random.nextBoolean()) {
+                urls.add("http://" + oldHost + HOT_PATHS[random.nextInt(HOT_PATHS.length)]);
+            } else {
+                urls.add(pickUrl(random));
+            }
+        }
+        return urls;
+    }
+
+    List<String> sampleHosts(int n) {
+        Random random = new Random(seed + 2);
+        List<String> sample = new ArrayList<>(n);
+        while (sample.size() < n) {
+            sample.add(hosts[pickHost(random)]);
+        }
+        return sample;
+    }
+
+    List<String> sampleDomains(int n) {
+        Random random = new Random(seed + 3);
+        List<String> sample = new ArrayList<>(n);
+        while (sample.size() < n) {
+            sample.add(domains[hostDomain[pickHost(random)]]);
+        }
+        return sample;
+    }
+
+    List<Long> sampleTimestamps(int n) {
+        Random random = new Random(seed + 4);
+        List<Long> sample = new ArrayList<>(n);
+        while (sample.size() < n) {
+            sample.add(pickTimestamp(random));
+        }
+        return sample;
+    }
+}
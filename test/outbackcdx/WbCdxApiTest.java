@@ -1,13 +1,16 @@
 package outbackcdx;
 
-import static org.junit.Assert.assertEquals;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.*;
 
 public class WbCdxApiTest {
     @Test
@@ -60,32 +63,116 @@ public class WbCdxApiTest {
     @Test
     public void testCdxjOutputFormat() throws IOException {
         Query query = new Query(new MultiMap<>(), Collections.emptyList());
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
         Capture capture = Capture.fromCdxLine("- 19870102030405 http://example.org/ text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
         capture.put("non-standard-field", Arrays.asList("yes", 2, 3));
-        new WbCdxApi.CdxjFormat(query, Collections.emptyMap(), sw).writeCapture(capture);
-        assertEquals("org,example)/ 19870102030405 {\"url\":\"http://example.org/\",\"mime\":\"text/html\",\"status\":\"200\",\"digest\":\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"offset\":\"100\",\"filename\":\"test.warc.gz\",\"non-standard-field\":[\"yes\",2,3]}\n", sw.toString());
+        try (WbCdxApi.CdxjFormat format = new WbCdxApi.CdxjFormat(query, Collections.emptyMap(), new OutputBuffer(bos))) {
+            format.writeCapture(capture);
+        }
+        assertEquals("org,example)/ 19870102030405 {\"url\":\"http://example.org/\",\"mime\":\"text/html\",\"status\":\"200\",\"digest\":\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"offset\":\"100\",\"filename\":\"test.warc.gz\",\"non-standard-field\":[\"yes\",2,3]}\n", bos.toString(UTF_8));
     }
 
     @Test
     public void testJsonDictOutputFormat() throws IOException {
         Query query = new Query(new MultiMap<>(), Collections.emptyList());
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
         Capture capture = Capture.fromCdxLine("- 19870102030405 http://example.org/ text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
-        try (WbCdxApi.JsonDictFormat format = new WbCdxApi.JsonDictFormat(query, Collections.emptyMap(), sw)) {
+        try (WbCdxApi.JsonDictFormat format = new WbCdxApi.JsonDictFormat(query, Collections.emptyMap(), new OutputBuffer(bos))) {
             format.writeCapture(capture);
         }
-        assertEquals("[{\"urlkey\":\"org,example)/\",\"timestamp\":19870102030405,\"url\":\"http://example.org/\",\"mime\":\"text/html\",\"status\":200,\"digest\":\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"offset\":100,\"filename\":\"test.warc.gz\"}]", sw.toString());
+        assertEquals("[{\"urlkey\":\"org,example)/\",\"timestamp\":19870102030405,\"url\":\"http://example.org/\",\"mime\":\"text/html\",\"status\":200,\"digest\":\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"offset\":100,\"filename\":\"test.warc.gz\"}]", bos.toString(UTF_8));
     }
 
     @Test
     public void testJsonOutputFormat() throws IOException {
         Query query = new Query(new MultiMap<>(), Collections.emptyList());
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Capture capture = Capture.fromCdxLine("- 19870102030405 http://example.org/ text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
+        try (WbCdxApi.JsonFormat format = new WbCdxApi.JsonFormat(query, Collections.emptyMap(), new OutputBuffer(bos))) {
+            format.writeCapture(capture);
+        }
+        assertEquals("[[\"urlkey\",\"timestamp\",\"url\",\"mime\",\"status\",\"digest\",\"redirecturl\",\"robotflags\",\"length\",\"offset\",\"filename\"],[\"org,example)/\",19870102030405,\"http://example.org/\",\"text/html\",200,\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"-\",\"-\",null,100,\"test.warc.gz\"]]", bos.toString(UTF_8));
+    }
+
+    @Test
+    public void testTextOutputFormat() throws IOException {
+        Query query = new Query(new MultiMap<>(), Collections.emptyList());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Capture capture = Capture.fromCdxLine("- 19870102030405 http://example.org/caf\u00e9 text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
+        try (WbCdxApi.TextFormat format = new WbCdxApi.TextFormat(query, Collections.emptyMap(), new OutputBuffer(bos, 16))) {
+            format.writeCapture(capture);
+        }
+        assertEquals(capture.urlkey + " 19870102030405 http://example.org/caf\u00e9 text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - - - 100 test.warc.gz\n", bos.toString(UTF_8));
+    }
+
+    @Test
+    public void testOutputBufferEscaping() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        String s = "a\"b\\c\n\u0001\u00e9\u20ac\ud83d\ude00";
+        try (OutputBuffer out = new OutputBuffer(bos, 8)) {
+            out.writeJsonString(s);
+            out.write(' ');
+            out.write(-1234567890123L);
+            out.write(' ');
+            out.write(Long.MIN_VALUE);
+        }
+        assertEquals(Json.JSON_MAPPER.writeValueAsString(s) + " -1234567890123 " + Long.MIN_VALUE, bos.toString(UTF_8));
+    }
+
+    @Test
+    public void testCborOutputFormat() throws IOException {
+        Query query = new Query(new MultiMap<>(), Collections.emptyList());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
         Capture capture = Capture.fromCdxLine("- 19870102030405 http://example.org/ text/html 200 M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI - 100 test.warc.gz", new UrlCanonicalizer());
-        try (WbCdxApi.JsonFormat format = new WbCdxApi.JsonFormat(query, Collections.emptyMap(), sw)) {
+        try (WbCdxApi.CborFormat format = new WbCdxApi.CborFormat(query, Collections.emptyMap(), new OutputBuffer(bos))) {
             format.writeCapture(capture);
         }
-        assertEquals("[[\"urlkey\",\"timestamp\",\"url\",\"mime\",\"status\",\"digest\",\"redirecturl\",\"robotflags\",\"length\",\"offset\",\"filename\"],[\"org,example)/\",19870102030405,\"http://example.org/\",\"text/html\",200,\"M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI\",\"-\",\"-\",null,100,\"test.warc.gz\"]]", sw.toString());
+        List<Map<String, Object>> records = Json.CBOR_MAPPER.readValue(bos.toByteArray(), new TypeReference<>() {});
+        assertEquals(1, records.size());
+        Map<String, Object> record = records.get(0);
+        assertEquals(19870102030405L, record.get("timestamp"));
+        assertEquals(200, record.get("status"));
+        assertEquals("http://example.org/", record.get("url"));
+        assertEquals("M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI", Capture.base32Encode((byte[]) record.get("digest")));
+        assertFalse(record.containsKey("length"));
+        assertFalse(record.containsKey("redirecturl"));
+    }
+
+    @Test
+    public void testRecordBatchOutputFormat() throws IOException {
+        Query query = new Query(new MultiMap<>(), Collections.emptyList());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        List<Capture> captures = new ArrayList<>();
+        UrlCanonicalizer canonicalizer = new UrlCanonicalizer();
+        for (int i = 0; i < 2500; i++) {
+            captures.add(Capture.fromCdxLine("- " + (20050101000000L + i) + " http://example.org/" + i + " text/html "
+                    + (i % 2 == 0 ? 200 : 404) + (i % 3 == 0 ? " - " : " M5ORM4XQ5QCEZEDRNZRGSWXPCOGUVASI ")
+                    + "- " + (i * 1000L) + " test.warc.gz", canonicalizer));
+        }
+        try (WbCdxApi.RecordBatchFormat format = new WbCdxApi.RecordBatchFormat(query, Collections.emptyMap(), new OutputBuffer(bos))) {
+            for (Capture capture : captures) {
+                format.writeCapture(capture);
+            }
+        }
+
+        RecordBatchDecoder decoder = new RecordBatchDecoder(new ByteArrayInputStream(bos.toByteArray()));
+        assertArrayEquals(query.fields, decoder.fields);
+        List<Object[]> rows = decoder.readAll();
+        assertEquals(captures.size(), rows.size());
+        List<String> fields = Arrays.asList(decoder.fields);
+        for (int i = 0; i < rows.size(); i++) {
+            Capture capture = captures.get(i);
+            Object[] row = rows.get(i);
+            assertEquals(capture.urlkey, row[fields.indexOf("urlkey")]);
+            assertEquals(capture.timestamp, row[fields.indexOf("timestamp")]);
+            assertEquals((long) capture.status, row[fields.indexOf("status")]);
+            assertEquals(capture.compressedoffset, row[fields.indexOf("offset")]);
+            assertNull(row[fields.indexOf("length")]);
+            if (capture.digest.equals("-")) {
+                assertNull(row[fields.indexOf("digest")]);
+            } else {
+                assertEquals(capture.digest, Capture.base32Encode((byte[]) row[fields.indexOf("digest")]));
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package outbackcdx;
+
+import com.sun.net.httpserver.HttpServer;
+import outbackcdx.auth.NullAuthorizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static outbackcdx.Web.Method.GET;
+import static outbackcdx.Web.Status.OK;
+
+/**
+ * Load test comparing the fixed thread pool with virtual threads under a mix of slow consumers (clients that read a
+ * large response a trickle at a time) and fast lookups. Reports fast lookup latency percentiles for each mode.
+ *
+ * Usage: WebExecutorLoadTest [threads] [slow-clients] [seconds]
+ */
+public class WebExecutorLoadTest {
+    private static final byte[] CHUNK = new byte[64 * 1024];
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int slowClients = args.length > 1 ? Integer.parseInt(args[1]) : threads * 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        run("fixed pool (" + threads + " threads)", WebExecutor.fixed(threads), slowClients, seconds);
+        if (WebExecutor.virtualThreadsSupported()) {
+            run("virtual threads (limit " + WebExecutor.DEFAULT_MAX_CONCURRENT + ")",
+                    WebExecutor.virtual(WebExecutor.DEFAULT_MAX_CONCURRENT), slowClients, seconds);
+        } else {
+            System.out.println("virtual threads: skipped, requires Java 21+");
+        }
+        // same shape as virtual mode but with platform threads, for comparison on older JDKs
+        run("thread per request (limit " + WebExecutor.DEFAULT_MAX_CONCURRENT + ")",
+                new WebExecutor(Executors.newCachedThreadPool(), WebExecutor.DEFAULT_MAX_CONCURRENT), slowClients, seconds);
+    }
+
+    private static void run(String name, WebExecutor executor, int slowClients, int seconds) throws Exception {
+        Web.Router router = new Web.Router();
+        router.on(GET, "/slow", request -> {
+            try (OutputStream out = request.streamResponse(OK, MultiMap.of("Content-Type", "application/octet-stream"))) {
+                for (int i = 0; i < 1024; i++) {
+                    out.write(CHUNK);
+                }
+            } catch (IOException e) {
+                // slow consumer hung up
+            }
+            return Web.Response.ALREADY_SENT;
+        });
+        router.on(GET, "/fast", request -> new Web.Response(OK, "text/plain", "ok\n"));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        Compression compression = new Compression();
+        compression.enabled = false;
+        server.createContext("/", new Web.SHandler(router, new NullAuthorizer(), compression));
+        server.setExecutor(executor);
+        server.start();
+        int port = server.getAddress().getPort();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < slowClients; i++) {
+                clients.execute(() -> slowConsumer(port, deadline));
+            }
+            Thread.sleep(500); // let the slow consumers occupy the server
+
+            List<Future<List<Long>>> fastResults = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                fastResults.add(clients.submit(() -> fastLookups(port, deadline)));
+            }
+            List<Long> latencies = new ArrayList<>();
+            long timeouts = 0;
+            for (Future<List<Long>> future : fastResults) {
+                for (long latency : future.get()) {
+                    if (latency < 0) timeouts++;
+                    else latencies.add(latency);
+                }
+            }
+            report(name, latencies, timeouts, seconds);
+        } finally {
+            clients.shutdownNow();
+            server.stop(0);
+            executor.close();
+        }
+    }
+
+    private static void slowConsumer(int port, long deadline) {
+        byte[] buffer = new byte[8192];
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setReceiveBufferSize(16 * 1024);
+                socket.getOutputStream().write("GET /slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(US_ASCII));
+                InputStream in = socket.getInputStream();
+                while (System.nanoTime() < deadline && in.read(buffer) >= 0) {
+                    Thread.sleep(20);
+                }
+            } catch (IOException e) {
+                // server closed on us, reconnect
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns latencies in microseconds, or -1 for a lookup that timed out.
+     */
+    private static List<Long> fastLookups(int port, long deadline) {
+        List<Long> latencies = new ArrayList<>();
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/fast").openConnection();
+                connection.setConnectTimeout(5000);
+                connection.setReadTimeout(5000);
+                try (InputStream in = connection.getInputStream()) {
+                    in.readAllBytes();
+                }
+                latencies.add((System.nanoTime() - start) / 1000);
+            } catch (IOException e) {
+                latencies.add(-1L);
+            }
+        }
+        return latencies;
+    }
+
+    private static void report(String name, List<Long> latencies, long timeouts, int seconds) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("%s: %d fast lookups (%.0f/s), %d timed out, p50 %s p99 %s max %s%n", name,
+                sorted.length, (double) sorted.length / seconds, timeouts,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    private static String percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return "-";
+        int index = Math.max(0, (int) Math.ceil(p * sorted.length) - 1);
+        long micros = sorted[index];
+        return String.format("%.2fms", micros / 1000.0);
+    }
+}
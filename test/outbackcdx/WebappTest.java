@@ -203,6 +203,62 @@ public class WebappTest {
         }
     }
 
+    @Test
+    public void testMetrics() throws Exception {
+        POST("/metricstest", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n" +
+                "- 20060614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n");
+        GET("/metricstest", "url", "nla.gov.au", "limit", "1");
+
+        String metrics = GET("/metrics");
+        assertTrue(metrics.contains("outbackcdx_ingested_records_total{collection=\"metricstest\"} 2\n"));
+        assertTrue(metrics.contains("outbackcdx_query_records_returned_bucket{endpoint=\"cdx\",type=\"exact\",le=\"1\"}"));
+        assertTrue(metrics.contains("outbackcdx_index_estimated_records{collection=\"metricstest\"}"));
+        assertTrue(metrics.contains("outbackcdx_rocksdb_bytes_written_total{collection=\"metricstest\"}"));
+        assertTrue(metrics.contains("outbackcdx_rocksdb_db_seek_micros{collection=\"metricstest\",quantile=\"0.99\"}"));
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        POST("/explaintest", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n" +
+                "- 20060614070159 http://nla.gov.au/ text/html 404 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n" +
+                "@alias http://example.org/old http://nla.gov.au/\n");
+
+        Map<?,?> profile = JSON_MAPPER.readValue(GET("/explaintest", "url", "example.org/old", "filter", "status:200", "explain", "1"), Map.class);
+        assertEquals("org,example)/old", profile.get("urlkey"));
+        assertEquals("exact", profile.get("matchType"));
+        assertEquals(2, profile.get("scanned"));
+        assertEquals(1, profile.get("returned"));
+        assertEquals(1, ((Map<?,?>) profile.get("filtered")).get("filter"));
+        assertEquals(1, profile.get("aliasHops"));
+        assertTrue(((Number) profile.get("bytesSent")).longValue() > 0);
+        assertTrue(((Map<?,?>) profile.get("rocksdb")).containsKey("internalKeySkippedCount"));
+    }
+
+    @Test
+    public void testInvalidTimeout() throws Exception {
+        POST("/timeouttest", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n");
+        DummyRequest request = new DummyRequest(GET, "/timeouttest");
+        request.parm("url", "nla.gov.au");
+        request.parm("timeout", "abc");
+        Web.ResponseException e = assertThrows(Web.ResponseException.class, () -> webapp.handle(request));
+        assertEquals(BAD_REQUEST, e.response.getStatus());
+
+        for (String timeout : new String[]{"Infinity", "NaN", "0", "-5"}) {
+            DummyRequest invalid = new DummyRequest(GET, "/timeouttest");
+            invalid.parm("url", "nla.gov.au");
+            invalid.parm("timeout", timeout);
+            e = assertThrows(Web.ResponseException.class, () -> webapp.handle(invalid));
+            assertEquals(BAD_REQUEST, e.response.getStatus());
+        }
+    }
+
+    @Test
+    public void testHugeTimeout() throws Exception {
+        POST("/hugetimeout", "- 20050614070159 http://nla.gov.au/ text/html 200 AKMCCEPOOWFMGGO5635HFZXGFRLRGWIX - 337023 example.warc.gz\n");
+        assertTrue(GET("/hugetimeout", "url", "nla.gov.au", "timeout", "1e10").contains("20050614070159"));
+        assertTrue(GET("/hugetimeout", "url", "nla.gov.au", "timeout", "1e300").contains("20050614070159"));
+    }
+
     @Test
     public void testAccessPoint() throws Exception {
         POST("/testap",
@@ -283,6 +339,36 @@ public class WebappTest {
         assertEquals(asList("http://a.ex.org/", "http://a.ex.org/", "http://b.ex.org/"),
                 cdxUrls(GET("/testap/ap/public", "url", "*.ex.org")));
 
+        //
+        // bulk access checks
+        //
+
+        StringBuilder queries = new StringBuilder("[");
+        for (int i = 0; i < BulkAccessCheck.CHUNK_SIZE * 3 + 7; i++) {
+            if (i > 0) queries.append(",");
+            queries.append("{\"url\":\"http://").append(i % 2 == 0 ? "a.multi" : "b").append(".ex.org/")
+                    .append(i).append("\",\"timestamp\":\"20050614070159\"}");
+        }
+        queries.append("]");
+        Map<?,?>[] decisions = JSON_MAPPER.readValue(POST("/testap/ap/public/check", queries.toString()), Map[].class);
+        assertEquals(BulkAccessCheck.CHUNK_SIZE * 3 + 7, decisions.length);
+        for (int i = 0; i < decisions.length; i++) {
+            assertEquals(i % 2 != 0, decisions[i].get("allowed"));
+        }
+
+        String ndjson = POST("/testap/ap/public/check",
+                "{\"url\":\"http://a.multi.ex.org/\",\"timestamp\":20050614070159}\n" +
+                "{\"url\":\"http://b.ex.org/\",\"timestamp\":\"20050614070159\",\"extra\":[1]}\n",
+                OK, "output", "ndjson");
+        String[] lines = ndjson.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(false, JSON_MAPPER.readValue(lines[0], Map.class).get("allowed"));
+        assertEquals(true, JSON_MAPPER.readValue(lines[1], Map.class).get("allowed"));
+
+        assertEquals("[]", POST("/testap/ap/public/check", "[]"));
+        POST("/testap/ap/public/check", "\"nope\"", BAD_REQUEST);
+        assertFalse(BulkAccessCheck.isValidTimestamp(20050229000000L));
+        assertTrue(BulkAccessCheck.isValidTimestamp(20040229235959L));
 
         //
         // invalid rules should be rejected